@@ -0,0 +1,27 @@
+package com.tenforce.semtech.SPARQLParser.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like the JMH main class does, with the GC profiler always enabled so every benchmark
+ * reports its gc.alloc.rate.norm (the bytes allocated per operation). All JMH command line options can
+ * still be used, for instance to select benchmarks or parameters:
+ *
+ * java -jar target/benchmarks.jar parse -p type=SELECT -p size=1000
+ */
+public class BenchmarkMain
+{
+    public static void main(String [] args) throws Exception
+    {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        Options options = new OptionsBuilder()
+                .parent(commandLineOptions)
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,44 @@
+package com.tenforce.semtech.SPARQLParser.benchmarks;
+
+import com.tenforce.semtech.SPARQLParser.SPARQL.InvalidSPARQLException;
+import com.tenforce.semtech.SPARQLParser.SPARQL.SPARQLQuery;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shows how the time to parse a query grows with its size. The sizes grow by a factor 4, so when parsing is
+ * linear in the size of the query the average time of every size is about 4 times the time of the size before
+ * it. A parser that is quadratic somewhere shows up as a factor 16.
+ *
+ * java -jar target/benchmarks.jar ParseScalingBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseScalingBenchmark
+{
+    @Param({"SELECT", "UPDATE"})
+    public Queries.Type type;
+
+    @Param({"250", "1000", "4000", "16000"})
+    public int size;
+
+    // the query as a string
+    private String queryString;
+
+    @Setup
+    public void setup()
+    {
+        this.queryString = Queries.generate(this.type, this.size);
+    }
+
+    @Benchmark
+    public SPARQLQuery parse() throws InvalidSPARQLException
+    {
+        return new SPARQLQuery(this.queryString);
+    }
+}
@@ -0,0 +1,130 @@
+package com.tenforce.semtech.SPARQLParser.benchmarks;
+
+/**
+ * Generates the queries the benchmarks run on. Every query type is generated with a given number of
+ * triple patterns, so the benchmarks can show how the parser scales with the size of a query.
+ *
+ * The queries only use the constructs the parser supports: prefixes, FROM/WITH graphs, GRAPH and OPTIONAL
+ * blocks, LIMIT/OFFSET and, for updates, a DELETE ... WHERE followed by an INSERT DATA.
+ */
+public class Queries
+{
+    /**
+     * The query types that are benchmarked
+     */
+    public enum Type {
+        SELECT, CONSTRUCT, DESCRIBE, ASK, UPDATE
+    }
+
+    // the prefixes every query starts with
+    private static final String PROLOGUE = "PREFIX ex: <http://example.com/ns#>\n" +
+            "PREFIX foaf: <http://xmlns.com/foaf/0.1/>\n";
+
+    /**
+     * @param type the type of the query
+     * @param size the number of triple patterns in the query
+     * @return a query of the given type
+     */
+    public static String generate(Type type, int size)
+    {
+        StringBuilder query = new StringBuilder(PROLOGUE);
+
+        switch(type)
+        {
+            case SELECT:
+                query.append("SELECT DISTINCT ?s ?o0 ?label\nFROM <http://example.com/graph>\nWHERE\n{\n");
+                appendPatterns(query, size);
+                query.append("}\nLIMIT 100\nOFFSET 10");
+                break;
+
+            case CONSTRUCT:
+                query.append("CONSTRUCT\n{\n");
+                appendTemplate(query, size);
+                query.append("}\nWHERE\n{\n");
+                appendPatterns(query, size);
+                query.append("}");
+                break;
+
+            case DESCRIBE:
+                query.append("DESCRIBE ?s\nWHERE\n{\n");
+                appendPatterns(query, size);
+                query.append("}");
+                break;
+
+            case ASK:
+                query.append("ASK\n{\n");
+                appendPatterns(query, size);
+                query.append("}");
+                break;
+
+            default:
+                query.append("WITH <http://example.com/graph>\nDELETE\n{\n");
+                appendTemplate(query, size);
+                query.append("}\nWHERE\n{\n");
+                appendPatterns(query, size);
+                query.append("} ;\nINSERT DATA\n{\n  GRAPH <http://example.com/graph> {\n");
+                appendData(query, size);
+                query.append("  }\n}");
+                break;
+        }
+
+        return query.toString();
+    }
+
+    /**
+     * appends size triple patterns, every 10th pattern is put in a GRAPH block and every 10th pattern after
+     * that in an OPTIONAL block
+     *
+     * @param query the query that is being generated
+     * @param size the number of triple patterns
+     */
+    private static void appendPatterns(StringBuilder query, int size)
+    {
+        for(int i = 0; i < size; ++i)
+        {
+            if(i % 10 == 3)
+            {
+                query.append("  GRAPH <http://example.com/graph").append(i % 3).append("> {\n    ?s ex:p")
+                        .append(i).append(" ?o").append(i).append(" .\n  }\n");
+            }
+            else if(i % 10 == 7)
+            {
+                query.append("  OPTIONAL {\n    ?s foaf:name ?label .\n    ?o").append(i - 1).append(" ex:p")
+                        .append(i).append(" \"literal ").append(i).append("\" .\n  }\n");
+            }
+            else
+            {
+                query.append("  ?s ex:p").append(i).append(" ?o").append(i).append(" .\n");
+            }
+        }
+    }
+
+    /**
+     * appends size triples without variables to an INSERT DATA block
+     *
+     * @param query the query that is being generated
+     * @param size the number of triples
+     */
+    private static void appendData(StringBuilder query, int size)
+    {
+        for(int i = 0; i < size; ++i)
+        {
+            query.append("    <http://example.com/s").append(i).append("> ex:q").append(i).append(" \"value ")
+                    .append(i).append("\" .\n");
+        }
+    }
+
+    /**
+     * appends size triples to a construct or update template
+     *
+     * @param query the query that is being generated
+     * @param size the number of triples
+     */
+    private static void appendTemplate(StringBuilder query, int size)
+    {
+        for(int i = 0; i < size; ++i)
+        {
+            query.append("  ?s ex:q").append(i).append(" ?o").append(i).append(" .\n");
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.tenforce.semtech.SPARQLParser.benchmarks;
+
+import com.tenforce.semtech.SPARQLParser.SPARQL.InvalidSPARQLException;
+import com.tenforce.semtech.SPARQLParser.SPARQL.SPARQLQuery;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the operations on the hot path of a SPARQL endpoint: parsing a query, turning it back into a
+ * String, cloning it and replacing its graphs. Every operation is run on all query types, at an increasing
+ * number of triple patterns.
+ *
+ * Run with BenchmarkMain (the main class of the benchmarks jar) to get the gc.alloc.rate.norm of every
+ * benchmark next to its throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SPARQLQueryBenchmark
+{
+    @Param({"SELECT", "CONSTRUCT", "DESCRIBE", "ASK", "UPDATE"})
+    public Queries.Type type;
+
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    // the query as a string
+    private String queryString;
+
+    // the parsed query
+    private SPARQLQuery query;
+
+    @Setup
+    public void setup() throws InvalidSPARQLException
+    {
+        this.queryString = Queries.generate(this.type, this.size);
+        this.query = new SPARQLQuery(this.queryString);
+    }
+
+    @Benchmark
+    public SPARQLQuery parse() throws InvalidSPARQLException
+    {
+        return new SPARQLQuery(this.queryString);
+    }
+
+    @Benchmark
+    public String queryToString()
+    {
+        return this.query.toString();
+    }
+
+    @Benchmark
+    public SPARQLQuery cloneQuery()
+    {
+        return this.query.clone();
+    }
+
+    @Benchmark
+    public SPARQLQuery replaceGraphStatements()
+    {
+        // replacing the graphs with the same graph every time does the same work on every invocation
+        this.query.replaceGraphStatements("http://example.com/other-graph");
+        return this.query;
+    }
+}
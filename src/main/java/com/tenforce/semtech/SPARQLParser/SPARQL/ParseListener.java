@@ -0,0 +1,23 @@
+package com.tenforce.semtech.SPARQLParser.SPARQL;
+
+/**
+ * A ParseListener is told about every query that is parsed, together with statistics about the parsing
+ * effort. It can be used to gather metrics, for instance how long it takes to parse the queries that an
+ * endpoint receives.
+ *
+ * A listener is registered with SPARQLQuery.setParseListener. When no listener is registered nothing is
+ * measured at all.
+ *
+ * The listener is called on the thread that parsed the query, right after the query was parsed
+ * successfully. It should return quickly as it holds up the parsing thread.
+ */
+public interface ParseListener
+{
+    /**
+     * called after a query was parsed successfully
+     *
+     * @param query the parsed query
+     * @param statistics the statistics of parsing the query
+     */
+    public void queryParsed(SPARQLQuery query, ParseStatistics statistics);
+}
@@ -0,0 +1,178 @@
+package com.tenforce.semtech.SPARQLParser.SPARQL;
+
+import com.tenforce.semtech.SPARQLParser.SPARQLStatements.*;
+
+/**
+ * The statistics of parsing a single query, as reported to a ParseListener.
+ *
+ * The lexer runs on demand while the query is parsed, the lex time is the part of the total time that
+ * was spent in the lexer and the parse time is the rest.
+ */
+public class ParseStatistics
+{
+    // the time spent lexing and parsing, in nanoseconds
+    private final long lexTime;
+    private final long parseTime;
+
+    // the number of tokens the lexer produced
+    private final int tokenCount;
+
+    // the deepest nesting of blocks in the query
+    private final int maxBlockDepth;
+
+    // the number of statements in the query
+    private final int statementCount;
+
+    /**
+     * default constructor
+     *
+     * @param lexTime the time spent lexing in nanoseconds
+     * @param parseTime the time spent parsing in nanoseconds
+     * @param tokenCount the number of tokens the lexer produced
+     * @param maxBlockDepth the deepest nesting of blocks
+     * @param statementCount the number of statements
+     */
+    public ParseStatistics(long lexTime, long parseTime, int tokenCount, int maxBlockDepth, int statementCount)
+    {
+        this.lexTime = lexTime;
+        this.parseTime = parseTime;
+        this.tokenCount = tokenCount;
+        this.maxBlockDepth = maxBlockDepth;
+        this.statementCount = statementCount;
+    }
+
+    /**
+     * Measures the statistics of a query that was just parsed.
+     *
+     * @param query the parsed query
+     * @param splitQuery the split query it was parsed from
+     * @param totalTime the time it took to lex and parse the query, in nanoseconds
+     * @return the statistics
+     */
+    static ParseStatistics of(SPARQLQuery query, SplitQuery splitQuery, long totalTime)
+    {
+        StatementWalker walker = new StatementWalker();
+        Counter counter = new Counter(walker);
+        query.walk(walker, counter);
+        long lexTime = splitQuery.getLexTime();
+        return new ParseStatistics(lexTime, totalTime - lexTime, splitQuery.getLexedTokenCount(), counter.maxDepth, counter.count);
+    }
+
+    /**
+     * Counts the statements it visits and keeps the deepest depth it saw. It walks the statements instead of
+     * going through getStatements, which would make the statements of the query forget what they cached while
+     * the query was parsed (where they come from in the query text, their unknowns).
+     */
+    private static class Counter implements IStatementVisitor
+    {
+        // the walker that visits the statements, it knows their depth
+        private final StatementWalker walker;
+
+        // the deepest depth that was seen and the number of statements
+        private int maxDepth = 0;
+        private int count = 0;
+
+        Counter(StatementWalker walker)
+        {
+            this.walker = walker;
+        }
+
+        /**
+         * counts the statement that is being visited
+         *
+         * @return true, the statements inside it are counted as well
+         */
+        private boolean count()
+        {
+            ++this.count;
+            this.maxDepth = Math.max(this.maxDepth, this.walker.getDepth());
+            return true;
+        }
+
+        public boolean visit(SimpleStatement statement)
+        {
+            return count();
+        }
+
+        public boolean visit(ParenthesesBlock block)
+        {
+            return count();
+        }
+
+        public boolean visit(AskBlock block)
+        {
+            return count();
+        }
+
+        public boolean visit(SelectBlock block)
+        {
+            return count();
+        }
+
+        public boolean visit(DescribeBlock block)
+        {
+            return count();
+        }
+
+        public boolean visit(ConstructBlock block)
+        {
+            return count();
+        }
+
+        public boolean visit(UpdateBlockStatement block)
+        {
+            return count();
+        }
+
+        public boolean visit(WhereBlockStatement block)
+        {
+            return count();
+        }
+    }
+
+    /**
+     * @return the time spent in the lexer, in nanoseconds
+     */
+    public long getLexTime()
+    {
+        return this.lexTime;
+    }
+
+    /**
+     * @return the time spent parsing, without the time spent in the lexer, in nanoseconds
+     */
+    public long getParseTime()
+    {
+        return this.parseTime;
+    }
+
+    /**
+     * @return the number of tokens, including newlines, the lexer produced
+     */
+    public int getTokenCount()
+    {
+        return this.tokenCount;
+    }
+
+    /**
+     * @return the deepest nesting of statements, a query that only has statements on the top level has depth 1
+     */
+    public int getMaxBlockDepth()
+    {
+        return this.maxBlockDepth;
+    }
+
+    /**
+     * @return the number of statements in the query, including the statements nested in other statements
+     */
+    public int getStatementCount()
+    {
+        return this.statementCount;
+    }
+
+    public String toString()
+    {
+        return "lex time: " + this.lexTime + "ns, parse time: " + this.parseTime + "ns, tokens: " + this.tokenCount +
+                ", max block depth: " + this.maxBlockDepth + ", statements: " + this.statementCount;
+    }
+}
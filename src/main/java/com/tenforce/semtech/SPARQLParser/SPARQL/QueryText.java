@@ -0,0 +1,343 @@
+package com.tenforce.semtech.SPARQLParser.SPARQL;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The text of a query as the SPARQLLexer and the SplitQuery see it: a sequence of characters that are
+ * addressed by their offset in the query.
+ *
+ * The text does not have to be available as a whole. A text that is read from a Reader only holds a window
+ * of the query in memory: hasCharAt reads more of the query when it is needed and release tells the text
+ * that the characters before an offset will never be asked for again, so they can be thrown away. The
+ * characters between the released offset and the last character that was read can always be asked for.
+ *
+ * length() returns the number of characters that are known so far, for a text that is read from a Reader
+ * this is not the length of the query until hasCharAt returned false.
+ *
+ * A text can also be a buffer of UTF-8 bytes. Its offsets are then byte offsets and charAt returns the byte
+ * itself: all characters the lexer looks for are ASCII and every byte of a multi-byte UTF-8 character is
+ * larger than 0x7F, so they never match. The bytes are only decoded when a part of the query is turned into
+ * a String.
+ */
+abstract class QueryText implements CharSequence
+{
+    // the number of characters that are read from a Reader at once
+    static final int CHUNK_SIZE = 8192;
+
+    /**
+     * @param query the query
+     * @return a QueryText for a query that is completely in memory
+     */
+    static QueryText of(CharSequence query)
+    {
+        if(query instanceof QueryText)
+        {
+            return (QueryText) query;
+        }
+        return new CharSequenceText(query);
+    }
+
+    /**
+     * @param reader the reader the query is read from, it is read in chunks and never closed
+     * @return a QueryText that only keeps the part of the query that was not released in memory
+     */
+    static QueryText of(Reader reader)
+    {
+        return new ReaderText(reader, CHUNK_SIZE);
+    }
+
+    /**
+     * @param utf8Query a buffer containing the UTF-8 bytes of the query between its position and its limit,
+     *                  a byte order mark in front of the query is skipped
+     * @return a QueryText that reads the query straight from the buffer
+     */
+    static QueryText of(ByteBuffer utf8Query)
+    {
+        return new Utf8Text(utf8Query);
+    }
+
+    /**
+     * Checks whether the query has a character at the given offset, reading more of the query if
+     * necessary.
+     *
+     * @param offset the offset of a character
+     * @return true if the query is longer than offset
+     * @throws UncheckedIOException if the query could not be read
+     */
+    abstract boolean hasCharAt(int offset);
+
+    /**
+     * @param start the offset of the first character
+     * @param end the offset just after the last character
+     * @return the characters between start and end as a String
+     */
+    abstract String substring(int start, int end);
+
+    /**
+     * tells the text that the characters before the given offset will not be asked for anymore
+     *
+     * @param offset the offset of the first character that is still needed
+     */
+    void release(int offset)
+    {
+        // a text that is completely in memory keeps everything
+    }
+
+    public CharSequence subSequence(int start, int end)
+    {
+        return substring(start, end);
+    }
+
+    /**
+     * appends a part of the text to the output
+     *
+     * @param out the output
+     * @param start the offset of the first character
+     * @param end the offset just after the last character
+     * @throws IOException if the output cannot be written to
+     */
+    void appendTo(Appendable out, int start, int end) throws IOException
+    {
+        out.append(this, start, end);
+    }
+
+    /**
+     * A query that is completely in memory.
+     */
+    private static class CharSequenceText extends QueryText
+    {
+        // the query
+        private final CharSequence query;
+
+        CharSequenceText(CharSequence query)
+        {
+            this.query = query;
+        }
+
+        boolean hasCharAt(int offset)
+        {
+            return offset < this.query.length();
+        }
+
+        public char charAt(int offset)
+        {
+            return this.query.charAt(offset);
+        }
+
+        public int length()
+        {
+            return this.query.length();
+        }
+
+        String substring(int start, int end)
+        {
+            return this.query.subSequence(start, end).toString();
+        }
+
+        void appendTo(Appendable out, int start, int end) throws IOException
+        {
+            out.append(this.query, start, end);
+        }
+
+        public String toString()
+        {
+            return this.query.toString();
+        }
+    }
+
+    /**
+     * A query that is read from a Reader. It keeps a window of the query in a buffer, the buffer only grows
+     * when the part that was not yet released does not fit in it anymore. Its size is thus bounded by the
+     * largest part of the query that is needed at once (mostly the largest token) and not by the query.
+     */
+    private static class ReaderText extends QueryText
+    {
+        // the reader the query is read from
+        private final Reader reader;
+
+        // the window, buffer[0] is the character at bufferOffset in the query
+        private char [] buffer;
+        private int bufferOffset = 0;
+
+        // the number of characters in the buffer
+        private int available = 0;
+
+        // the offset of the first character that is still needed
+        private int released = 0;
+
+        // true once the reader has no more characters
+        private boolean endOfInput = false;
+
+        ReaderText(Reader reader, int chunkSize)
+        {
+            this.reader = reader;
+            this.buffer = new char[chunkSize];
+        }
+
+        boolean hasCharAt(int offset)
+        {
+            while(offset >= this.bufferOffset + this.available)
+            {
+                if(this.endOfInput)
+                {
+                    return false;
+                }
+                fill();
+            }
+            return true;
+        }
+
+        public char charAt(int offset)
+        {
+            return this.buffer[offset - this.bufferOffset];
+        }
+
+        public int length()
+        {
+            return this.bufferOffset + this.available;
+        }
+
+        String substring(int start, int end)
+        {
+            return new String(this.buffer, start - this.bufferOffset, end - start);
+        }
+
+        void release(int offset)
+        {
+            if(offset > this.released)
+            {
+                this.released = offset;
+            }
+        }
+
+        public String toString()
+        {
+            return new String(this.buffer, 0, this.available);
+        }
+
+        /**
+         * reads the next chunk of the query, the characters that were released are thrown away first
+         * if the buffer is full
+         *
+         * @result at least 1 character was added to the buffer or endOfInput is true
+         */
+        private void fill()
+        {
+            if(this.available == this.buffer.length)
+            {
+                int discard = Math.min(this.released - this.bufferOffset, this.available);
+                if(discard > 0)
+                {
+                    System.arraycopy(this.buffer, discard, this.buffer, 0, this.available - discard);
+                    this.bufferOffset += discard;
+                    this.available -= discard;
+                }
+                if(this.available * 2 > this.buffer.length)
+                {
+                    // less than half of the buffer would be free, the part that is needed has grown
+                    char [] bigger = new char[this.buffer.length * 2];
+                    System.arraycopy(this.buffer, 0, bigger, 0, this.available);
+                    this.buffer = bigger;
+                }
+            }
+
+            try
+            {
+                int read = this.reader.read(this.buffer, this.available, this.buffer.length - this.available);
+                if(read < 0)
+                {
+                    this.endOfInput = true;
+                }
+                else
+                {
+                    this.available += read;
+                }
+            }
+            catch(IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * A query that is a buffer of UTF-8 bytes, for instance a memory mapped file. The bytes are never copied
+     * as a whole, only the parts that are turned into a String are decoded.
+     */
+    private static class Utf8Text extends QueryText
+    {
+        // the bytes of the query, the query starts at start in this buffer
+        private final ByteBuffer buffer;
+        private final int start;
+
+        // the number of bytes in the query
+        private final int length;
+
+        Utf8Text(ByteBuffer utf8Query)
+        {
+            int start = utf8Query.position();
+            int length = utf8Query.remaining();
+            if(length >= 3 && utf8Query.get(start) == (byte) 0xEF && utf8Query.get(start + 1) == (byte) 0xBB &&
+                    utf8Query.get(start + 2) == (byte) 0xBF)
+            {
+                start += 3;
+                length -= 3;
+            }
+            this.buffer = utf8Query;
+            this.start = start;
+            this.length = length;
+        }
+
+        boolean hasCharAt(int offset)
+        {
+            return offset < this.length;
+        }
+
+        public char charAt(int offset)
+        {
+            return (char) (this.buffer.get(this.start + offset) & 0xFF);
+        }
+
+        public int length()
+        {
+            return this.length;
+        }
+
+        String substring(int start, int end)
+        {
+            if(this.buffer.hasArray())
+            {
+                return new String(this.buffer.array(), this.buffer.arrayOffset() + this.start + start, end - start,
+                        StandardCharsets.UTF_8);
+            }
+            byte [] bytes = new byte[end - start];
+            for(int i = 0; i < bytes.length; ++i)
+            {
+                bytes[i] = this.buffer.get(this.start + start + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * the bytes are copied as they are when the output encodes UTF-8 itself, otherwise they are decoded
+         */
+        void appendTo(Appendable out, int start, int end) throws IOException
+        {
+            if(out instanceof Utf8Sink)
+            {
+                ((Utf8Sink) out).appendUtf8(this.buffer, this.start + start, this.start + end);
+                return;
+            }
+            out.append(substring(start, end));
+        }
+
+        public String toString()
+        {
+            return substring(0, this.length);
+        }
+    }
+}
@@ -0,0 +1,549 @@
+package com.tenforce.semtech.SPARQLParser.SPARQL;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The SPARQLLexer walks over a query exactly once and reports the tokens it finds as offsets
+ * into that query. It never builds intermediate strings, it is up to the caller to decide if and
+ * when a token has to become a String.
+ *
+ * The token stream is the one described in the SplitQuery class:
+ *  - ' ' and '\t' end the current token
+ *  - '\n', '\r', '{' and '}' end the current token and are a token of their own
+ *  - everything between 2 '\"' characters is a single token (including the '\"' characters)
+ *  - everything between '&lt;' and '&gt;' is a single token (including the '&lt;' and '&gt;' characters)
+ *  - everything from a '#' up until the next newline or carriage return is thrown away, the
+ *    newline or carriage return that ends the comment is thrown away as well
+ *
+ * Tokens are trimmed, meaning that leading and trailing characters that are smaller than or equal
+ * to ' ' are never part of a token.
+ *
+ * Next to its offsets every token also gets a kind (see the TOKEN_ constants) and, if it is a word, the
+ * keyword it represents (see Keyword). Keywords are recognized ignoring case, so the parser never has to
+ * lower case a token to know what it is. The lexer also remembers where the first '?' of a word is, so the
+ * variables in a query can be collected from the few tokens that contain one (see addVariables) without
+ * scanning the query again.
+ *
+ * The lexer reads the query strictly front to back and only looks at the characters of the token it is
+ * reading, so the query does not have to be in memory as a whole (see QueryText).
+ *
+ * Usage:
+ * <pre>
+ * SPARQLLexer lexer = new SPARQLLexer(query);
+ * while(lexer.nextToken())
+ * {
+ *     CharSequence token = query.subSequence(lexer.getTokenStart(), lexer.getTokenEnd());
+ *     int kind = lexer.getTokenKind();
+ *     Keyword keyword = lexer.getTokenKeyword();
+ * }
+ * </pre>
+ */
+public class SPARQLLexer
+{
+    /**
+     * The kinds of tokens the lexer reports. Single character tokens ('\n', '\r', '{' and '}') have
+     * a kind of their own, all other tokens are words, strings or uri's.
+     */
+    public static final int TOKEN_WORD = 0;
+    public static final int TOKEN_STRING = 1;
+    public static final int TOKEN_URI = 2;
+    public static final int TOKEN_NEWLINE = 3;
+    public static final int TOKEN_CARRIAGE_RETURN = 4;
+    public static final int TOKEN_OPEN_BRACE = 5;
+    public static final int TOKEN_CLOSE_BRACE = 6;
+
+    /**
+     * The keywords the parser switches on. Every word token is looked up once, when it is lexed, with
+     * a case insensitive perfect hash: the hash of a word points to the only keyword it can be, so
+     * recognizing a keyword costs one pass over the word and one comparison.
+     *
+     * NONE is used for every token that is not a keyword.
+     */
+    public enum Keyword
+    {
+        NONE(""), PREFIX("prefix"), SELECT("select"), CONSTRUCT("construct"), DESCRIBE("describe"),
+        ASK("ask"), INSERT("insert"), DELETE("delete"), DATA("data"), WHERE("where"), WITH("with"),
+        FROM("from"), NAMED("named"), GRAPH("graph"), OPTIONAL("optional"), DISTINCT("distinct"),
+        REDUCE("reduce"), LIMIT("limit"), OFFSET("offset"), ORDER("order"), GROUP("group"), BY("by");
+
+        // the lower case text of the keyword
+        private final String text;
+
+        // the perfect hash table, every keyword is in the slot its hash points to
+        private static final Keyword [] TABLE;
+
+        // the multiplier used to spread the hashes over the table
+        private static final int MULTIPLIER;
+
+        // the keywords are between these lengths, other words are never looked up
+        private static final int MIN_LENGTH = 2;
+        private static final int MAX_LENGTH = 9;
+
+        static
+        {
+            // the keywords are fixed, so we can look for the smallest table and multiplier that do not
+            // give any collisions once, when this enum is loaded
+            Keyword [] table = null;
+            int multiplier = 0;
+            for(int size = 32; table == null; size <<= 1)
+            {
+                for(int m = 1; m < 4096 && table == null; m += 2)
+                {
+                    table = buildTable(size, m);
+                    multiplier = m;
+                }
+            }
+            TABLE = table;
+            MULTIPLIER = multiplier;
+        }
+
+        Keyword(String text)
+        {
+            this.text = text;
+        }
+
+        /**
+         * @return the lower case text of this keyword
+         */
+        public String getText()
+        {
+            return this.text;
+        }
+
+        /**
+         * Looks up the keyword the given part of the text represents, ignoring case.
+         *
+         * @param text the text that contains the word
+         * @param start the offset of the first character of the word
+         * @param end the offset just after the last character of the word
+         * @return the keyword, NONE if the word is not a keyword
+         */
+        public static Keyword lookup(CharSequence text, int start, int end)
+        {
+            int length = end - start;
+            if(length < MIN_LENGTH || length > MAX_LENGTH)
+            {
+                return NONE;
+            }
+
+            int hash = 0;
+            for(int i = start; i < end; ++i)
+            {
+                hash = 31 * hash + (text.charAt(i) | 0x20);
+            }
+
+            Keyword candidate = TABLE[slot(hash, MULTIPLIER, TABLE.length)];
+            if(candidate == null || candidate.text.length() != length)
+            {
+                return NONE;
+            }
+
+            for(int i = 0; i < length; ++i)
+            {
+                char c = text.charAt(start + i);
+                // only ascii letters become lower case letters by setting the 0x20 bit
+                if(c > 'z' || (c | 0x20) != candidate.text.charAt(i))
+                {
+                    return NONE;
+                }
+            }
+            return candidate;
+        }
+
+        /**
+         * @param text the text of a word
+         * @return the keyword, NONE if the word is not a keyword
+         */
+        public static Keyword lookup(CharSequence text)
+        {
+            return lookup(text, 0, text.length());
+        }
+
+        /**
+         * Checks, ignoring case, whether the given part of the text starts with this keyword.
+         *
+         * @param text the text that contains the word
+         * @param start the offset of the first character of the word
+         * @param end the offset just after the last character of the word
+         * @return true if the word starts with this keyword
+         */
+        public boolean isStartOf(CharSequence text, int start, int end)
+        {
+            if(end - start < this.text.length())
+            {
+                return false;
+            }
+            for(int i = 0; i < this.text.length(); ++i)
+            {
+                if(Character.toLowerCase(text.charAt(start + i)) != this.text.charAt(i))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @param size the size of the table, a power of 2
+         * @param multiplier the multiplier to try
+         * @return a table without collisions or null if the multiplier gives a collision
+         */
+        private static Keyword [] buildTable(int size, int multiplier)
+        {
+            Keyword [] table = new Keyword[size];
+            for(Keyword keyword : values())
+            {
+                if(keyword == NONE)
+                {
+                    continue;
+                }
+                int hash = 0;
+                for(int i = 0; i < keyword.text.length(); ++i)
+                {
+                    hash = 31 * hash + keyword.text.charAt(i);
+                }
+                int slot = slot(hash, multiplier, size);
+                if(table[slot] != null)
+                {
+                    return null;
+                }
+                table[slot] = keyword;
+            }
+            return table;
+        }
+
+        /**
+         * @param hash the hash of a word
+         * @param multiplier the multiplier that spreads the hashes
+         * @param size the size of the table, a power of 2
+         * @return the slot in the table for the hash
+         */
+        private static int slot(int hash, int multiplier, int size)
+        {
+            int h = hash * multiplier;
+            return (h ^ (h >>> 16)) & (size - 1);
+        }
+    }
+
+    // the states the lexer can be in
+    private static final int NORMAL = 0;
+    private static final int IN_STRING = 1;
+    private static final int IN_URI = 2;
+    private static final int IN_COMMENT = 3;
+
+    // the query we are lexing
+    private final QueryText query;
+
+    // the position of the next character that will be read
+    private int position = 0;
+
+    // the position where the token that is currently being read started
+    private int bufferStart = 0;
+
+    // the state the lexer is in
+    private int state = NORMAL;
+
+    // the position of a single character token that still has to be reported, -1 if there is none
+    private int pendingToken = -1;
+
+    // the position of the first '?' in the token that is currently being read, -1 if there is none
+    private int variableMarker = -1;
+
+    // the offsets and the kind of the last token that was found
+    private int tokenStart = 0;
+    private int tokenEnd = 0;
+    private int tokenKind = TOKEN_WORD;
+    private Keyword tokenKeyword = Keyword.NONE;
+
+    // the offset of the first '?' in the last token that was found relative to its start, -1 if there is none
+    private int tokenVariable = -1;
+
+    /**
+     * default constructor
+     *
+     * @param query the query that needs to be lexed
+     */
+    public SPARQLLexer(CharSequence query)
+    {
+        this(QueryText.of(query));
+    }
+
+    /**
+     * Constructor for a query that does not have to be completely in memory, the lexer only asks for the
+     * characters from the start of the token it is reading on.
+     *
+     * @param query the query that needs to be lexed
+     */
+    SPARQLLexer(QueryText query)
+    {
+        this.query = query;
+    }
+
+    /**
+     * Reads up to the next token.
+     *
+     * @return true if a token was found, its offsets can then be retrieved with getTokenStart() and
+     *         getTokenEnd(). False if the end of the query was reached.
+     */
+    public boolean nextToken()
+    {
+        if(this.pendingToken >= 0)
+        {
+            return emitPendingToken();
+        }
+
+        while(this.query.hasCharAt(this.position))
+        {
+            char c = this.query.charAt(this.position);
+
+            switch(this.state)
+            {
+                case IN_STRING:
+                    ++this.position;
+                    if(c == '\"')
+                    {
+                        this.state = NORMAL;
+                        if(flushBuffer(this.position, TOKEN_STRING)) return true;
+                    }
+                    continue;
+
+                case IN_URI:
+                    ++this.position;
+                    if(c == '>')
+                    {
+                        this.state = NORMAL;
+                        if(flushBuffer(this.position, TOKEN_URI)) return true;
+                    }
+                    continue;
+
+                case IN_COMMENT:
+                    ++this.position;
+                    if(c == '\n' || c == '\r')
+                    {
+                        this.state = NORMAL;
+                        this.bufferStart = this.position;
+                    }
+                    continue;
+
+                default:
+                    break;
+            }
+
+            if(c == ' ' || c == '\t')
+            {
+                boolean found = flushBuffer(this.position, TOKEN_WORD);
+                ++this.position;
+                this.bufferStart = this.position;
+                if(found) return true;
+                continue;
+            }
+
+            if(c == '\n' || c == '\r' || c == '{' || c == '}')
+            {
+                boolean found = flushBuffer(this.position, TOKEN_WORD);
+                this.pendingToken = this.position;
+                ++this.position;
+                this.bufferStart = this.position;
+                if(found) return true;
+                return emitPendingToken();
+            }
+
+            if(c == '\"' || c == '<')
+            {
+                boolean found = flushBuffer(this.position, TOKEN_WORD);
+                this.state = (c == '\"') ? IN_STRING : IN_URI;
+                // the buffer for the string or uri starts with the quote or bracket itself
+                this.bufferStart = this.position;
+                ++this.position;
+                if(found) return true;
+                continue;
+            }
+
+            if(c == '#')
+            {
+                boolean found = flushBuffer(this.position, TOKEN_WORD);
+                this.state = IN_COMMENT;
+                ++this.position;
+                if(found) return true;
+                continue;
+            }
+
+            if(c == '?' && this.variableMarker < 0)
+            {
+                this.variableMarker = this.position;
+            }
+            ++this.position;
+        }
+
+        // a string or uri that is not closed at the end of the query is still reported as such,
+        // everything in a comment at the end of the query is thrown away
+        switch(this.state)
+        {
+            case IN_COMMENT:
+                return false;
+            case IN_STRING:
+                return flushBuffer(this.position, TOKEN_STRING);
+            case IN_URI:
+                return flushBuffer(this.position, TOKEN_URI);
+            default:
+                return flushBuffer(this.position, TOKEN_WORD);
+        }
+    }
+
+    /**
+     * @return the offset of the first character of the last token that was found
+     */
+    public int getTokenStart()
+    {
+        return this.tokenStart;
+    }
+
+    /**
+     * @return the offset just after the last character of the last token that was found
+     */
+    public int getTokenEnd()
+    {
+        return this.tokenEnd;
+    }
+
+    /**
+     * @return the kind of the last token that was found, one of the TOKEN_ constants
+     */
+    public int getTokenKind()
+    {
+        return this.tokenKind;
+    }
+
+    /**
+     * @return the keyword the last token that was found represents, NONE if it is not a keyword
+     */
+    public Keyword getTokenKeyword()
+    {
+        return this.tokenKeyword;
+    }
+
+    /**
+     * @return the offset of the first '?' in the last token that was found, relative to the start of the
+     *         token, or -1 if the token has no '?' (strings and uri's never have one)
+     */
+    public int getTokenVariable()
+    {
+        return this.tokenVariable;
+    }
+
+    /**
+     * Adds the names of the variables in a part of a text to a set. A variable is a '?' followed by at
+     * least 1 character that can be part of a name (see isVariableNameChar), the name is everything up to
+     * the first character that cannot, so "(?x", "?x)" and "?x." all give the name x.
+     *
+     * @param text the text
+     * @param start the offset of the first character that is looked at
+     * @param end the offset just after the last character that is looked at
+     * @param variables the set to add the names to, may be null
+     * @return the set the names were added to, this is a new set if variables was null and a variable was
+     *         found
+     */
+    public static Set<String> addVariables(CharSequence text, int start, int end, Set<String> variables)
+    {
+        for(int i = start; i < end; ++i)
+        {
+            if(text.charAt(i) != '?')
+            {
+                continue;
+            }
+            int nameEnd = i + 1;
+            while(nameEnd < end && isVariableNameChar(text.charAt(nameEnd)))
+                ++nameEnd;
+            if(nameEnd > i + 1)
+            {
+                if(variables == null)
+                {
+                    variables = new HashSet<String>();
+                }
+                variables.add(text.subSequence(i + 1, nameEnd).toString());
+            }
+            i = nameEnd - 1;
+        }
+        return variables;
+    }
+
+    /**
+     * @param c a character
+     * @return true if the character can be part of the name of a variable: an ascii letter or digit, '_' or
+     *         any character outside of ascii
+     */
+    public static boolean isVariableNameChar(char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c >= 0x80;
+    }
+
+    /**
+     * reports the single character token that is pending
+     *
+     * @return true
+     */
+    private boolean emitPendingToken()
+    {
+        this.tokenStart = this.pendingToken;
+        this.tokenEnd = this.pendingToken + 1;
+        this.tokenKind = kindOf(this.query.charAt(this.pendingToken));
+        this.tokenKeyword = Keyword.NONE;
+        this.tokenVariable = -1;
+        this.pendingToken = -1;
+        return true;
+    }
+
+    /**
+     * @param c a single character token
+     * @return the kind of the single character token
+     */
+    private static int kindOf(char c)
+    {
+        switch(c)
+        {
+            case '\n':
+                return TOKEN_NEWLINE;
+            case '\r':
+                return TOKEN_CARRIAGE_RETURN;
+            case '{':
+                return TOKEN_OPEN_BRACE;
+            default:
+                return TOKEN_CLOSE_BRACE;
+        }
+    }
+
+    /**
+     * Ends the buffer that is currently being read at the given offset. If the trimmed buffer is not
+     * empty it becomes the current token.
+     *
+     * @param end the offset just after the last character of the buffer
+     * @param kind the kind the token will have
+     * @return true if the buffer contained a token
+     * @result the buffer is empty and starts at end
+     */
+    private boolean flushBuffer(int end, int kind)
+    {
+        int start = this.bufferStart;
+        int variableMarker = this.variableMarker;
+        this.bufferStart = end;
+        this.variableMarker = -1;
+
+        while(start < end && this.query.charAt(start) <= ' ')
+            ++start;
+        while(end > start && this.query.charAt(end - 1) <= ' ')
+            --end;
+
+        if(start == end)
+        {
+            return false;
+        }
+
+        this.tokenStart = start;
+        this.tokenEnd = end;
+        this.tokenKind = kind;
+        this.tokenKeyword = (kind == TOKEN_WORD) ? Keyword.lookup(this.query, start, end) : Keyword.NONE;
+        this.tokenVariable = (kind == TOKEN_WORD && variableMarker >= start) ? variableMarker - start : -1;
+        return true;
+    }
+}
@@ -0,0 +1,215 @@
+package com.tenforce.semtech.SPARQLParser.SPARQL;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread safe service that parses queries, making sure that the same query is never parsed by 2 threads
+ * at the same time.
+ *
+ * When a thread asks for a query that is already being parsed by another thread it does not parse the query
+ * itself, it waits for that parse to finish and uses its result. parse gives every caller its own copy of the
+ * parsed query (see SPARQLQuery.clone), which it is free to change. parseShared gives every caller the same
+ * frozen query (see SPARQLQuery.freeze), which saves the copy. If the parse fails every waiting caller gets
+ * an InvalidSPARQLException of its own, with the same message, caused by the exception of the parse.
+ *
+ * The service can be backed by a SPARQLQueryCache. Queries are then looked up in the cache first and a query
+ * that is parsed is added to the cache before the threads that waited for it are released, so a burst of
+ * requests for a query that is not cached yet results in exactly 1 parse.
+ *
+ * Usage:
+ * <pre>
+ * SPARQLParseService service = new SPARQLParseService(new SPARQLQueryCache(1000));
+ * SPARQLQuery query = service.parse(queryString);
+ * </pre>
+ */
+public class SPARQLParseService
+{
+    // the cache that is used, null if there is none
+    private final SPARQLQueryCache cache;
+
+    // the parses that are in progress, by query string
+    private final ConcurrentHashMap<String, FutureTask<SPARQLQuery>> inFlight =
+            new ConcurrentHashMap<String, FutureTask<SPARQLQuery>>();
+
+    // the number of queries that were parsed and the number of requests that used a parse of another thread
+    private final LongAdder parses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Constructor for a service without a cache, only parses that happen at the same time are shared.
+     */
+    public SPARQLParseService()
+    {
+        this(null);
+    }
+
+    /**
+     * Constructor for a service that is backed by a cache
+     *
+     * @param cache the cache, null for no cache
+     */
+    public SPARQLParseService(SPARQLQueryCache cache)
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * Parses the given query, or waits for the thread that is already parsing it.
+     *
+     * @param query the query
+     * @return a parsed query that is not shared with anyone else
+     * @throws InvalidSPARQLException if the query is not a valid SPARQL query
+     */
+    public SPARQLQuery parse(String query) throws InvalidSPARQLException
+    {
+        return parseShared(query).clone();
+    }
+
+    /**
+     * Parses the given query, or waits for the thread that is already parsing it, and returns the parsed
+     * query that is shared with the other threads that asked for it and with the cache.
+     *
+     * @param query the query
+     * @return a frozen parsed query, use its with methods to change it
+     * @throws InvalidSPARQLException if the query is not a valid SPARQL query
+     */
+    public SPARQLQuery parseShared(final String query) throws InvalidSPARQLException
+    {
+        if(this.cache != null)
+        {
+            SPARQLQuery cached = this.cache.getSharedIfPresent(query);
+            if(cached != null)
+            {
+                return cached;
+            }
+        }
+
+        FutureTask<SPARQLQuery> task = new FutureTask<SPARQLQuery>(new Callable<SPARQLQuery>() {
+            public SPARQLQuery call() throws InvalidSPARQLException
+            {
+                if(cache != null)
+                {
+                    // the thread that parsed the query before can have cached it and stopped being in flight
+                    // between the lookup above and putIfAbsent, the query is not parsed again then
+                    SPARQLQuery cached = cache.recheck(query);
+                    if(cached != null)
+                    {
+                        return cached;
+                    }
+                }
+                parses.increment();
+                SPARQLQuery parsed = new SPARQLQuery(query).freeze();
+                if(cache != null)
+                {
+                    // the query is cached before it stops being in flight, so a thread that comes in between
+                    // finds it in the cache
+                    cache.put(query, parsed);
+                }
+                return parsed;
+            }
+        });
+
+        FutureTask<SPARQLQuery> running = this.inFlight.putIfAbsent(query, task);
+        if(running == null)
+        {
+            // this thread parses the query
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                this.inFlight.remove(query, task);
+            }
+            running = task;
+        }
+        else
+        {
+            this.coalesced.increment();
+        }
+
+        // the parsed query is shared with the other threads that waited for it (and the cache)
+        return await(running);
+    }
+
+    /**
+     * @return the number of queries this service parsed
+     */
+    public long getParseCount()
+    {
+        return this.parses.sum();
+    }
+
+    /**
+     * @return the number of times a request used the parse of another thread instead of parsing the query
+     */
+    public long getCoalescedCount()
+    {
+        return this.coalesced.sum();
+    }
+
+    /**
+     * @return the cache that backs this service, null if there is none
+     */
+    public SPARQLQueryCache getCache()
+    {
+        return this.cache;
+    }
+
+    /**
+     * Waits for a parse to finish. An interrupt does not stop the wait, the interrupt status of the thread is
+     * restored when the parse is finished.
+     *
+     * The exception of a failed parse is shared by all threads that waited for it, so every thread throws
+     * an exception of its own, with its own stack trace, that is caused by it.
+     *
+     * @param task the parse
+     * @return the parsed query
+     * @throws InvalidSPARQLException if the query is not a valid SPARQL query
+     * @throws IllegalStateException if the parse failed in another way
+     */
+    private static SPARQLQuery await(FutureTask<SPARQLQuery> task) throws InvalidSPARQLException
+    {
+        boolean interrupted = false;
+        try
+        {
+            while(true)
+            {
+                try
+                {
+                    return task.get();
+                }
+                catch(InterruptedException e)
+                {
+                    interrupted = true;
+                }
+                catch(ExecutionException e)
+                {
+                    Throwable cause = e.getCause();
+                    if(cause instanceof InvalidSPARQLException)
+                    {
+                        InvalidSPARQLException invalid = new InvalidSPARQLException(cause.getMessage());
+                        invalid.initCause(cause);
+                        throw invalid;
+                    }
+                    if(cause instanceof Error)
+                    {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        }
+        finally
+        {
+            if(interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
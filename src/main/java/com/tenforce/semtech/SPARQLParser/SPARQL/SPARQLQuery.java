@@ -1,7 +1,19 @@
 package com.tenforce.semtech.SPARQLParser.SPARQL;
 
+import com.tenforce.semtech.SPARQLParser.SPARQL.SPARQLLexer.Keyword;
 import com.tenforce.semtech.SPARQLParser.SPARQLStatements.*;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /**
@@ -38,6 +50,24 @@ import java.util.*;
  *
  *  The original query string is always stored so that it can be returned unmodified if necessary. In the
  *  case of the query being build the getOriginalQuery method will throw a noSuchElementException.
+ *
+ *  Very large queries (think of INSERT DATA blocks of hundreds of megabytes) can be parsed from a Reader,
+ *  an InputStream or a file with the parse methods. The query is then tokenized in chunks while it is read (or,
+ *  for a file, straight from the memory mapped file) and its text is never held in memory as a whole, which
+ *  also means that such a query has no original query string.
+ *
+ *  A ParseListener can be registered with setParseListener to be told about every query that is parsed,
+ *  together with statistics such as the time spent lexing and parsing it.
+ *
+ *  A query can be frozen, after which neither the query nor any of its statements can be changed anymore and
+ *  the query can be shared freely, also between threads. The with methods of a frozen query return a new
+ *  frozen query with the change applied. That query shares every statement that the change does not touch
+ *  with the original query, so changing the graph of a large query only copies the blocks that name a graph.
+ *
+ *  clone uses the same sharing for queries that are not frozen: the clone and the original hold the same
+ *  statements, prefixes and unknowns until one of them changes them. A statement they share is not frozen, but
+ *  whichever query changes it first copies it, and the blocks on the path to it, before it does (see
+ *  Statements.share), so replacing a graph in a clone only copies the blocks that name the graph.
  */
 public class SPARQLQuery
 {
@@ -57,15 +87,76 @@ public class SPARQLQuery
     // a map with all blocks based on type
     private List<IStatement> statements;
 
+    // where the graphs of the statements are named, built once the query is parsed, see GraphIndex
+    private GraphIndex graphIndex = new GraphIndex();
+
     // a list of the unknowns
     private Set<String> unknowns;
 
+    // the ids of the unknowns of this query and its statements. A frozen query shares it with the frozen
+    // copies made by the with methods, which have the same unknowns. A clone gets its own copy of it the first
+    // time it is asked for, so the unknowns a clone adds never end up in the table of the query it came from.
+    private VariableTable variableTable;
+    private boolean sharedVariableTable = false;
+
     // the graph upon which we want to run this query
     private String graph = "";
 
+    // the listener that is told about every query that is parsed, null if there is none
+    private static volatile ParseListener parseListener = null;
+
     // the original query
     private String originalQuery = null;
 
+    // the UTF-8 bytes of the original query if it was parsed from bytes, they are only decoded to the
+    // originalQuery when it is asked for
+    private ByteBuffer originalBytes = null;
+
+    // true once the query is frozen
+    private boolean frozen = false;
+
+    // true if the prefixes, the unknowns or the list of statements may be shared with another query, they are
+    // copied before they are handed out or changed
+    private boolean sharedPrefixes = false;
+    private boolean sharedUnknowns = false;
+    private boolean sharedList = false;
+
+    // true if some of the statements may be shared with another query or be frozen, those are copied before they
+    // are changed (see Statements.share) and cloned before they are handed out
+    private boolean sharedStatements = false;
+
+    // true once the prefixes, the unknowns or the statements were handed out to a caller that may still change
+    // them, a clone then gets copies of its own of them
+    private boolean handedOutPrefixes = false;
+    private boolean handedOutUnknowns = false;
+    private boolean handedOutStatements = false;
+
+    // the text the query was parsed from, null if it was not kept. As long as only graph names are changed the
+    // query can be written by copying this text and replacing those names, see getRewrittenQuery.
+    private QueryText source = null;
+
+    // the offsets of the graph name of the query in the source, -1 if the source names no graph, and the graph
+    // as it was parsed
+    private int sourceGraphStart = -1;
+    private int sourceGraphEnd = -1;
+    private String sourceGraph = "";
+
+    // the start and end offset in the source of every top level statement as it was parsed, null if one of them
+    // does not have them
+    private int [] sourceStatements = null;
+
+    // the prefixes as they were parsed, kept the first time the prefixes are handed out to a caller that may
+    // change them, null until then. The source can only be used as long as the prefixes are still the same.
+    private Map<String, String> sourcePrefixes = null;
+
+    // the string representation of this query, kept once it is asked for if the query is frozen, see toString
+    private String rendered = null;
+
+    // the graphs named in this query if its own graph is not named by its statements, see getGraphs, and the
+    // graphs of the statements they were made from
+    private Set<String> graphs = null;
+    private Set<String> graphsInner = null;
+
     /**
      * Default constructor
      *
@@ -87,13 +178,186 @@ public class SPARQLQuery
      */
     public SPARQLQuery(String query) throws InvalidSPARQLException
     {
-        this.originalQuery = query;
+        this(new SplitQuery(query), query);
+    }
+
+    /**
+     * Constructor for a copy of a query with another graph and other statements, all other members are
+     * shared with that query
+     *
+     * @param query the query
+     * @param graph the graph of the copy
+     * @param statements the statements of the copy
+     * @param frozen true if the copy is frozen, otherwise it copies what it shares before changing it
+     */
+    private SPARQLQuery(SPARQLQuery query, String graph, List<IStatement> statements, boolean frozen)
+    {
+        this.prefixes = query.prefixes;
+        this.type = query.type;
+        this.unknowns = query.unknowns;
+        this.variableTable = query.variableTable;
+        this.originalQuery = query.originalQuery;
+        this.originalBytes = query.originalBytes;
+        this.graph = graph;
+        this.statements = statements;
+        this.graphIndex = query.graphIndex.copy();
+        this.source = query.source;
+        this.sourceGraphStart = query.sourceGraphStart;
+        this.sourceGraphEnd = query.sourceGraphEnd;
+        this.sourceGraph = query.sourceGraph;
+        this.sourceStatements = query.sourceStatements;
+        this.sourcePrefixes = query.sourcePrefixes;
+        this.frozen = frozen;
+        this.sharedPrefixes = !frozen;
+        this.sharedUnknowns = !frozen;
+        this.sharedList = !frozen;
+        this.sharedStatements = !frozen;
+        this.sharedVariableTable = !frozen;
+    }
 
-        SplitQuery splitQuery = new SplitQuery(query);
+    /**
+     * Constructor that parses an already split query
+     *
+     * @param splitQuery the split query
+     * @param originalQuery the query string the split query was made from, null if it was not kept
+     * @throws InvalidSPARQLException
+     */
+    private SPARQLQuery(SplitQuery splitQuery, String originalQuery) throws InvalidSPARQLException
+    {
+        this.originalQuery = originalQuery;
 
         initializeVariables();
 
+        ParseListener listener = parseListener;
+        if(listener == null)
+        {
+            parseSplitQuery(splitQuery);
+            return;
+        }
+
+        long start = System.nanoTime();
+        splitQuery.measureLexTime();
         parseSplitQuery(splitQuery);
+        long totalTime = System.nanoTime() - start;
+
+        listener.queryParsed(this, ParseStatistics.of(this, splitQuery, totalTime));
+    }
+
+    /**
+     * Registers the listener that will be told about every query that is parsed from then on, on any
+     * thread. There is only 1 listener, registering a listener replaces the previous one.
+     *
+     * @param listener the listener, null to stop listening. When there is no listener nothing is measured.
+     */
+    public static void setParseListener(ParseListener listener)
+    {
+        parseListener = listener;
+    }
+
+    /**
+     * @return the listener that is told about every query that is parsed, null if there is none
+     */
+    public static ParseListener getParseListener()
+    {
+        return parseListener;
+    }
+
+    /**
+     * Parses the query that is read from the given reader. The reader is read in chunks while the query is
+     * parsed, the query text is never held in memory as a whole. The reader is not closed.
+     *
+     * As the query text is not kept, getOriginalQuery will return null for the returned query.
+     *
+     * @param reader the reader containing the query
+     * @return the parsed query
+     * @throws IOException if the reader could not be read
+     * @throws InvalidSPARQLException if the query is not a valid SPARQL query
+     */
+    public static SPARQLQuery parse(Reader reader) throws IOException, InvalidSPARQLException
+    {
+        try
+        {
+            return new SPARQLQuery(new SplitQuery(reader), null);
+        }
+        catch(UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Parses the UTF-8 encoded query that is read from the given stream, see parse(Reader). The stream is
+     * not closed.
+     *
+     * @param inputStream the stream containing the query
+     * @return the parsed query
+     * @throws IOException if the stream could not be read
+     * @throws InvalidSPARQLException if the query is not a valid SPARQL query
+     */
+    public static SPARQLQuery parse(InputStream inputStream) throws IOException, InvalidSPARQLException
+    {
+        return parse(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parses the UTF-8 encoded query in the given byte array, see parse(ByteBuffer).
+     *
+     * @param utf8Query the UTF-8 bytes of the query
+     * @return the parsed query
+     * @throws InvalidSPARQLException if the query is not a valid SPARQL query
+     */
+    public static SPARQLQuery parse(byte [] utf8Query) throws InvalidSPARQLException
+    {
+        return parse(ByteBuffer.wrap(utf8Query));
+    }
+
+    /**
+     * Parses the UTF-8 encoded query between the position and the limit of the given buffer. The query is
+     * lexed straight from the bytes, only the tokens that end up in the parsed query are decoded. The original
+     * query is only decoded when getOriginalQuery is called, so the bytes should not be changed afterwards.
+     * The position of the buffer is not changed.
+     *
+     * @param utf8Query the buffer containing the UTF-8 bytes of the query
+     * @return the parsed query
+     * @throws InvalidSPARQLException if the query is not a valid SPARQL query
+     */
+    public static SPARQLQuery parse(ByteBuffer utf8Query) throws InvalidSPARQLException
+    {
+        ByteBuffer bytes = utf8Query.slice();
+        SPARQLQuery query = new SPARQLQuery(new SplitQuery(bytes), null);
+        query.originalBytes = bytes;
+        return query;
+    }
+
+    /**
+     * Parses the UTF-8 encoded query in the given file (a .rq or .ru file for instance). The file is memory
+     * mapped and lexed straight from the mapped bytes, it is never read into a String. Only the tokens that
+     * end up in the parsed query are decoded.
+     *
+     * As the query text is not kept, getOriginalQuery will return null for the returned query.
+     *
+     * @param path the path of the file containing the query
+     * @return the parsed query
+     * @throws IOException if the file could not be read or if it is larger than 2GB
+     * @throws InvalidSPARQLException if the query is not a valid SPARQL query
+     */
+    public static SPARQLQuery parse(Path path) throws IOException, InvalidSPARQLException
+    {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try
+        {
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE)
+            {
+                throw new IOException("Cannot parse " + path + ", files larger than 2GB are not supported");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new SPARQLQuery(new SplitQuery(buffer), null);
+        }
+        finally
+        {
+            channel.close();
+        }
     }
 
     /**
@@ -104,8 +368,9 @@ public class SPARQLQuery
     private void initializeVariables()
     {
         this.prefixes = new HashMap<String, String>();
-        this.statements = new ArrayList<IStatement>();
+        this.statements = this.graphIndex.track(new ArrayList<IStatement>());
         this.unknowns = new HashSet<String>();
+        this.variableTable = new VariableTable();
     }
 
     /**
@@ -202,10 +467,11 @@ public class SPARQLQuery
 
         while (iterator.hasNext())
         {
+            Keyword keyword = iterator.peekNextKeyword();
             String next = iterator.next();
 
             // maybe this is a prefix thingie
-            if(next.toLowerCase().equals("prefix"))
+            if(keyword == Keyword.PREFIX)
             {
                 if(prologueDone == true)
                 {
@@ -221,25 +487,26 @@ public class SPARQLQuery
             prologueDone = true;
 
             // are we describing a graph?
-            if(next.toLowerCase().equals("from"))
+            if(keyword == Keyword.FROM)
             {
-                String graph = iterator.next();
-                if(graph.toLowerCase().equals("named"))
+                if(iterator.peekNextKeyword() == Keyword.NAMED)
                 {
                     // ok you can have from and from named :)
                     // thus the graph name follows
-                    graph = iterator.next();
+                    iterator.next();
                 }
+                String graph = iterator.next();
                 if(!graph.startsWith("<") || !graph.endsWith(">"))
                 {
                     throw new InvalidSPARQLException("Invalid SPARQL on line: " + iterator.getCurrentLine() + graph + "is not a valid graph name near " + iterator.getPrevious());
                 }
                 this.graph = graph.substring(1, graph.length() - 1);
+                recordSourceGraph(iterator);
                 continue;
             }
 
             // we can also describe a graph with "WITH"
-            if(next.toLowerCase().equals("with"))
+            if(keyword == Keyword.WITH)
             {
                 String graph = iterator.next();
                 if(!graph.startsWith("<") || !graph.endsWith(">"))
@@ -247,12 +514,13 @@ public class SPARQLQuery
                     throw new InvalidSPARQLException("Invalid SPARQL on line: " + iterator.getCurrentLine() + graph + "is not a valid graph name near " + iterator.getPrevious());
                 }
                 this.graph = graph.substring(1, graph.length() - 1);
+                recordSourceGraph(iterator);
                 continue;
             }
 
 
             // is it a select?
-            if(next.toLowerCase().equals("select"))
+            if(keyword == Keyword.SELECT)
             {
                 if(typeDone)
                 {
@@ -268,7 +536,7 @@ public class SPARQLQuery
             }
 
             // or a construct
-            if(next.toLowerCase().equals("construct"))
+            if(keyword == Keyword.CONSTRUCT)
             {
                 if(typeDone)
                 {
@@ -281,7 +549,7 @@ public class SPARQLQuery
             }
 
             // or a describe
-            if(next.toLowerCase().equals("describe"))
+            if(keyword == Keyword.DESCRIBE)
             {
                 if(typeDone)
                 {
@@ -294,7 +562,7 @@ public class SPARQLQuery
             }
 
             // or an ask
-            if(next.toLowerCase().equals("ask"))
+            if(keyword == Keyword.ASK)
             {
                 if(typeDone)
                 {
@@ -302,7 +570,7 @@ public class SPARQLQuery
                 }
                 typeDone = true;
                 this.type = Type.ASK;
-                if(iterator.peekNext().toLowerCase().equals("from"))
+                if(iterator.peekNextKeyword() == Keyword.FROM)
                 {
                     // we are asking stuff about a specific graph
                     iterator.next(); // the 'FROM'
@@ -312,6 +580,7 @@ public class SPARQLQuery
                         throw new InvalidSPARQLException("Invalid SPARQL on line :" + iterator.getCurrentLine() + " " + graph + " is not a valid graph name");
                     }
                     this.graph = graph.substring(1, graph.length() - 1);
+                    recordSourceGraph(iterator);
                 }
                 // add the next thing as an ask block
                 this.statements.add(new AskBlock(iterator));
@@ -319,7 +588,7 @@ public class SPARQLQuery
             }
 
             // or a delete
-            if(next.toLowerCase().equals("delete"))
+            if(keyword == Keyword.DELETE)
             {
                 if(this.type != Type.UPDATE && typeDone)
                 {
@@ -333,7 +602,7 @@ public class SPARQLQuery
             }
 
             // or a insert
-            if(next.toLowerCase().equals("insert"))
+            if(keyword == Keyword.INSERT)
             {
                 if(this.type != Type.UPDATE && typeDone)
                 {
@@ -347,7 +616,7 @@ public class SPARQLQuery
             }
 
             // maybe we encounter a where block
-            if(next.toLowerCase().equals("where"))
+            if(keyword == Keyword.WHERE)
             {
                 //extractBlocks(iterator, UpdateBlockStatement.BLOCKTYPE.WHERE);
                 statements.add(new WhereBlockStatement(iterator));
@@ -365,7 +634,8 @@ public class SPARQLQuery
 
         }
 
-        System.out.println("PARSED!!");
+        recordSource(iterator);
+        this.graphIndex.build(this.statements);
     }
 
     /**
@@ -386,23 +656,250 @@ public class SPARQLQuery
      * @return string representation of this object
      */
     public String toString() {
-        String asString = "";
-        for (String key : this.prefixes.keySet())
+        // a frozen query never changes, so it is only written once. Its statements keep their own string
+        // representation as well, so a frozen query made by one of the with methods only writes the statements
+        // that changed.
+        String rendered = this.rendered;
+        if(rendered != null)
+        {
+            return rendered;
+        }
+
+        StringBuilder builder = new StringBuilder(getLength());
+        writePrologue(builder);
+        for(IStatement statement:this.statements)
+        {
+            builder.append(statement.toString());
+        }
+        rendered = builder.toString();
+        if(this.frozen)
+        {
+            this.rendered = rendered;
+        }
+        return rendered;
+    }
+
+    /**
+     * Writes the query to the given output without building it as a string first, so a large query can be
+     * streamed straight to a Writer (for instance the connection to the triplestore). The output is the
+     * same as toString(). Only a string representation that was already built by toString is used, the
+     * statements are streamed to the output and no strings are built for them.
+     *
+     * @param out the output, a StringBuilder, a Writer, ...
+     * @throws IOException if the output cannot be written to
+     */
+    public void writeTo(Appendable out) throws IOException
+    {
+        if(this.rendered != null)
+        {
+            out.append(this.rendered);
+            return;
+        }
+
+        writePrologue(out);
+
+        for(IStatement statement:this.statements)
+        {
+            statement.writeTo(out);
+        }
+    }
+
+    /**
+     * writes the prefixes and the graph of this query
+     *
+     * @param out the output
+     * @throws IOException if the output cannot be written to
+     */
+    private void writePrologue(Appendable out) throws IOException
+    {
+        for (Map.Entry<String, String> prefix : this.prefixes.entrySet())
+        {
+            out.append("PREFIX ").append(prefix.getKey()).append(": <").append(prefix.getValue()).append(">\n");
+        }
+
+        if(this.graph != null && !this.graph.isEmpty())
+        {
+            out.append("WITH <").append(this.graph).append(">\n");
+        }
+    }
+
+    /**
+     * writes the prefixes and the graph of this query to a builder, a builder never throws an IOException
+     *
+     * @param builder the builder
+     */
+    private void writePrologue(StringBuilder builder)
+    {
+        try
+        {
+            writePrologue((Appendable) builder);
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the query as UTF-8 into the given buffer, from its position on, without turning it into a
+     * String first. The bytes are the same as those of toString().getBytes(UTF_8). The position of the
+     * buffer is moved to just after the query.
+     *
+     * @param out the buffer
+     * @throws java.nio.BufferOverflowException if the query does not fit in the remaining bytes of the buffer,
+     *         part of the query may then be written already
+     */
+    public void writeUtf8(ByteBuffer out)
+    {
+        Utf8Sink sink = new Utf8Sink(out);
+        writeTo(sink);
+        sink.finish();
+    }
+
+    /**
+     * Encodes the query as UTF-8 without turning it into a String first, for instance for the body of the
+     * request that forwards it. The buffer is sized with getLength(), which is exact for an ascii query.
+     *
+     * @return a buffer holding the bytes of toString().getBytes(UTF_8) between its position and its limit
+     */
+    public ByteBuffer toUtf8()
+    {
+        Utf8Sink sink = new Utf8Sink(getLength());
+        writeTo(sink);
+        ByteBuffer bytes = sink.finish();
+        bytes.flip();
+        return bytes;
+    }
+
+    /**
+     * Writes the query by copying the text it was parsed from and only replacing the graph names that were
+     * changed since, so writing a large query of which only the graph changed is little more than a copy. When
+     * more than graph names changed, or when the text was not kept (the query was read from a Reader), the query
+     * is written with writeTo instead.
+     *
+     * Unlike writeTo this keeps the query as it was written: its whitespace, its comments and the parts of it
+     * that the parsed statements do not represent.
+     *
+     * @param out the output
+     * @throws IOException if the output cannot be written to
+     */
+    public void writeRewrittenQuery(Appendable out) throws IOException
+    {
+        List<Splice> splices = collectSplices();
+        if(splices == null)
+        {
+            writeTo(out);
+            return;
+        }
+
+        int position = 0;
+        for(Splice splice : splices)
+        {
+            this.source.appendTo(out, position, splice.getStart());
+            out.append(splice.getText());
+            position = splice.getEnd();
+        }
+        this.source.appendTo(out, position, this.source.length());
+    }
+
+    /**
+     * @return the query as writeRewrittenQuery writes it
+     */
+    public String getRewrittenQuery()
+    {
+        List<Splice> splices = collectSplices();
+        if(splices == null)
+        {
+            return toString();
+        }
+
+        StringBuilder builder = new StringBuilder(this.source.length());
+        try
+        {
+            writeRewrittenQuery(builder);
+        }
+        catch(IOException e)
+        {
+            // a StringBuilder never throws
+            throw new UncheckedIOException(e);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The UTF-8 bytes of the query as writeRewrittenQuery writes it. For a query that was parsed from UTF-8
+     * bytes (see parse(ByteBuffer) and parse(Path)) the unchanged parts are copied as they are, without
+     * decoding them.
+     *
+     * @return a buffer holding the bytes between its position and its limit
+     */
+    public ByteBuffer toRewrittenUtf8()
+    {
+        List<Splice> splices = collectSplices();
+        if(splices == null)
+        {
+            return toUtf8();
+        }
+
+        Utf8Sink sink = new Utf8Sink(this.source.length());
+        try
+        {
+            writeRewrittenQuery(sink);
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        ByteBuffer bytes = sink.finish();
+        bytes.flip();
+        return bytes;
+    }
+
+    /**
+     * writes the query to a sink, a sink never throws an IOException
+     *
+     * @param sink the sink
+     */
+    private void writeTo(Utf8Sink sink)
+    {
+        try
+        {
+            writeTo((Appendable) sink);
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the length of the string representation of this query, without building it
+     */
+    public int getLength()
+    {
+        if(this.rendered != null)
         {
-            asString += "PREFIX " + key + ": <" + this.prefixes.get(key) + ">\n";
+            return this.rendered.length();
+        }
+
+        int length = 0;
+        for (Map.Entry<String, String> prefix : this.prefixes.entrySet())
+        {
+            length += "PREFIX ".length() + String.valueOf(prefix.getKey()).length() + ": <".length() +
+                    String.valueOf(prefix.getValue()).length() + ">\n".length();
         }
 
         if(this.graph != null && !this.graph.isEmpty())
         {
-            asString += "WITH <" + this.graph + ">\n";
+            length += "WITH <".length() + this.graph.length() + ">\n".length();
         }
 
         for(IStatement statement:this.statements)
         {
-            asString += statement.toString();
+            length += statement.getLength();
         }
 
-        return asString;
+        return length;
     }
 
     /**
@@ -411,9 +908,59 @@ public class SPARQLQuery
      */
     public Set<String> getUnknowns()
     {
+        if(this.sharedUnknowns)
+        {
+            this.unknowns = new HashSet<String>(this.unknowns);
+            this.sharedUnknowns = false;
+        }
+        this.handedOutUnknowns = true;
         return this.unknowns;
     }
 
+    /**
+     * Returns the variable table of this query. Every unknown in the query gets an id in this table the
+     * first time the set of unknowns of a statement is asked for with it, see IStatement.getUnknowns(VariableTable):
+     * <pre>
+     * VariableTable table = query.getVariableTable();
+     * boolean overlap = block.getUnknowns(table).intersects(other.getUnknowns(table));
+     * </pre>
+     *
+     * @return the variable table of this query, the table of a frozen query is shared with the frozen copies
+     *         made by its with methods, a clone has its own table
+     */
+    public VariableTable getVariableTable()
+    {
+        if(this.sharedVariableTable)
+        {
+            this.variableTable = this.variableTable.copy();
+            this.sharedVariableTable = false;
+        }
+        return this.variableTable;
+    }
+
+    /**
+     * Visits all statements in this query, and everything inside them, in the order in which they are written.
+     * Unlike getStatements this never copies the statements a clone shares with its original, so the visitor
+     * must not change the statements it visits.
+     *
+     * @param visitor the visitor
+     */
+    public void walk(IStatementVisitor visitor)
+    {
+        walk(new StatementWalker(), visitor);
+    }
+
+    /**
+     * the same as walk(visitor), with a walker that is reused between walks so walking allocates nothing
+     *
+     * @param walker the walker
+     * @param visitor the visitor
+     */
+    public void walk(StatementWalker walker, IStatementVisitor visitor)
+    {
+        walker.walk(this.statements, visitor);
+    }
+
     /**
      * default accessor method
      * @return a list of all statements in this query
@@ -421,6 +968,13 @@ public class SPARQLQuery
 
     public List<IStatement> getStatements()
     {
+        if(this.sharedStatements)
+        {
+            // the caller may change the statements, so this query gets its own copies of the ones it shares
+            Statements.unshare(ownStatements());
+            this.sharedStatements = false;
+        }
+        this.handedOutStatements = true;
         return this.statements;
     }
 
@@ -437,7 +991,11 @@ public class SPARQLQuery
      * default setter method
      * @param type sets this.type to type
      */
-    public void setType(Type type) {this.type = type;}
+    public void setType(Type type)
+    {
+        checkNotFrozen();
+        this.type = type;
+    }
 
     /**
      * default accessor method
@@ -445,6 +1003,17 @@ public class SPARQLQuery
      */
     public Map<String, String> getPrefixes()
     {
+        if(!this.frozen && this.source != null && this.sourcePrefixes == null)
+        {
+            // reading the prefixes does not change them, see collectSplices
+            this.sourcePrefixes = new HashMap<String, String>(this.prefixes);
+        }
+        if(this.sharedPrefixes)
+        {
+            this.prefixes = new HashMap<String, String>(this.prefixes);
+            this.sharedPrefixes = false;
+        }
+        this.handedOutPrefixes = true;
         return this.prefixes;
     }
 
@@ -457,18 +1026,61 @@ public class SPARQLQuery
         return this.graph;
     }
 
+    /**
+     * The graphs named in this query: its own graph (WITH or FROM) and the graphs of all its statements. Those
+     * are the graphs in the graph index of the query (see GraphIndex), so this does not look at the statements
+     * as long as they did not change since the index was built.
+     *
+     * @return an unmodifiable set with the graph names
+     */
+    public Set<String> getGraphs()
+    {
+        Set<String> inner = this.graphIndex.getGraphs(this.statements);
+        if(this.graph == null || this.graph.isEmpty() || inner.contains(this.graph))
+        {
+            return inner;
+        }
+        Set<String> graphs = this.graphs;
+        if(graphs == null || this.graphsInner != inner || !graphs.contains(this.graph))
+        {
+            Set<String> all = new HashSet<String>(inner);
+            all.add(this.graph);
+            graphs = Collections.unmodifiableSet(all);
+            this.graphs = graphs;
+            this.graphsInner = inner;
+        }
+        return graphs;
+    }
+
     /**
      * default setter method for graph
      * @param graph sets this.graph to graph
      */
-    public void setGraph(String graph){this.graph = graph;}
+    public void setGraph(String graph)
+    {
+        checkNotFrozen();
+        this.graph = graph;
+    }
 
     /**
-     * @return the original query before it was parsed
+     * @return the original query before it was parsed, null if the query was parsed from a Reader, a stream
+     *         or a file
      */
     public String getOriginalQuery()
     {
-        return this.originalQuery;
+        // a frozen query can be shared between threads, so the bytes are only thrown away if it is not
+        String originalQuery = this.originalQuery;
+        ByteBuffer originalBytes = this.originalBytes;
+        if(originalQuery == null && originalBytes != null)
+        {
+            originalQuery = QueryText.of(originalBytes).toString();
+            this.originalQuery = originalQuery;
+            if(!this.frozen)
+            {
+                this.originalBytes = null;
+            }
+        }
+        return originalQuery;
     }
 
     /**
@@ -480,60 +1092,389 @@ public class SPARQLQuery
      */
     public void replaceGraphStatements(String newGraph)
     {
+        checkNotFrozen();
         this.setGraph(newGraph);
-        for(IStatement s : this.statements)
-            s.replaceGraphStatements(newGraph);
+        Statements.replaceGraphStatements(ownStatements(), newGraph);
     }
 
     /**
      * replaces ALL graph statements that are equal to the passed oldGraph
      * argument with the newGraph argument. If you just want to remove the
      * oldGraph statements this function can be called with "" as the parameter
-     * for the new graph name
+     * for the new graph name. The blocks that name the old graph are found in the
+     * graph index of the query (see GraphIndex), the other blocks are not visited.
      *
      * @param oldGraph the named of the old graph
      * @param newGraph the name of the new graph
      */
     public void replaceGraphStatement(String oldGraph, String newGraph)
     {
+        checkNotFrozen();
         if(this.graph != null && this.graph.equals(oldGraph))
         {
             this.setGraph(newGraph);
         }
-        for(IStatement s : this.statements)
-            s.replaceGraphStatements(oldGraph, newGraph);
+        this.graphIndex.replaceGraphStatements(ownStatements(), oldGraph, newGraph);
     }
 
     /**
-     * A carbon copy of this query
-     * @return a clone of this object
+     * Replaces every graph in this query that is a key in the map by the graph it maps to, the graph of the
+     * query itself as well as the graphs of all statements. Unlike calling replaceGraphStatement once per
+     * graph, the blocks that name one of the graphs are looked up once in the graph index of the query (see
+     * GraphIndex), however many graphs are mapped. The mappings are applied at the
+     * same time, a graph that is mapped on a graph that is mapped itself is only replaced once. Like
+     * replaceGraphStatement, the WHERE block of an update is left alone.
+     *
+     * @param graphs the old graph names mapped on the new ones
+     * @return the old names of the graphs that were found in the query and replaced
      */
-    public SPARQLQuery clone()
+    public Set<String> remapGraphs(Map<String, String> graphs)
     {
-        SPARQLQuery clone = new SPARQLQuery();
+        checkNotFrozen();
+        Set<String> touched = new HashSet<String>();
+        this.setGraph(Statements.remapGraph(this.graph, graphs, touched));
+        this.graphIndex.remapGraphs(ownStatements(), graphs, touched);
+        return touched;
+    }
 
-        // copying the keys
-        for(String key: this.prefixes.keySet())
+    /**
+     * Makes this query and all its statements immutable. After this every method that changes the query
+     * throws an UnsupportedOperationException and the collections it returns are unmodifiable.
+     *
+     * @return this query
+     */
+    public SPARQLQuery freeze()
+    {
+        if(!this.frozen)
         {
-            clone.getPrefixes().put(key, this.prefixes.get(key));
+            List<IStatement> statements = new ArrayList<IStatement>(this.statements.size());
+            for(IStatement statement : this.statements)
+                statements.add(statement.freeze());
+
+            this.statements = Collections.unmodifiableList(statements);
+            this.prefixes = Collections.unmodifiableMap(new LinkedHashMap<String, String>(this.prefixes));
+            this.unknowns = Collections.unmodifiableSet(new HashSet<String>(this.unknowns));
+            this.sharedPrefixes = false;
+            this.sharedUnknowns = false;
+            this.sharedList = false;
+            this.sharedStatements = false;
+            if(this.sharedVariableTable)
+            {
+                this.variableTable = this.variableTable.copy();
+                this.sharedVariableTable = false;
+            }
+            this.frozen = true;
         }
+        return this;
+    }
 
-        // copy the type
-        clone.setType(this.type);
+    /**
+     * @return true if this query is frozen
+     */
+    public boolean isFrozen()
+    {
+        return this.frozen;
+    }
 
-        // setting the unknowns
-        for(String unknown: this.unknowns)
+    /**
+     * the immutable version of setGraph, this query is frozen first
+     *
+     * @param graph the graph
+     * @return a frozen query that shares all statements with this one, this query if the graph does not change
+     */
+    public SPARQLQuery withGraph(String graph)
+    {
+        freeze();
+        if(Statements.sameGraph(graph, this.graph))
         {
-            clone.getUnknowns().add(unknown);
+            return this;
         }
+        return new SPARQLQuery(this, graph, this.statements, true);
+    }
+
+    /**
+     * the immutable version of replaceGraphStatements, this query is frozen first
+     *
+     * @param newGraph the new graph name
+     * @return a frozen query that shares all statements that did not change with this one, this query if
+     *         nothing changes
+     */
+    public SPARQLQuery withGraphStatements(String newGraph)
+    {
+        freeze();
+        return withChanges(newGraph, Statements.withGraphStatements(this.statements, newGraph), new GraphIndex());
+    }
 
-        // setting the graph
-        clone.setGraph(this.graph);
+    /**
+     * the immutable version of replaceGraphStatement, this query is frozen first
+     *
+     * @param oldGraph the named of the old graph
+     * @param newGraph the name of the new graph
+     * @return a frozen query that shares all statements that did not change with this one, this query if
+     *         nothing changes
+     */
+    public SPARQLQuery withGraphStatement(String oldGraph, String newGraph)
+    {
+        freeze();
+        String graph = (this.graph != null && this.graph.equals(oldGraph)) ? newGraph : this.graph;
+        return withChanges(graph, Statements.withGraphStatements(this.statements, oldGraph, newGraph),
+                this.graphIndex.withGraphStatements(this.statements, oldGraph, newGraph));
+    }
 
-        // copying the statements
-        for(IStatement statement : this.statements)
-            clone.getStatements().add(statement.clone());
+    /**
+     * the immutable version of remapGraphs, this query is frozen first
+     *
+     * @param graphs the old graph names mapped on the new ones
+     * @param touched the set the old names of the graphs that were found and replaced are added to
+     * @return a frozen query that shares all statements that did not change with this one, this query if
+     *         nothing changes
+     */
+    public SPARQLQuery withRemappedGraphs(Map<String, String> graphs, Set<String> touched)
+    {
+        freeze();
+        String graph = Statements.remapGraph(this.graph, graphs, touched);
+        return withChanges(graph, Statements.withRemappedGraphs(this.statements, graphs, touched),
+                this.graphIndex.withRemappedGraphs(this.statements, graphs));
+    }
+
+    /**
+     * replaces a single top level statement, for instance by a version of it that was changed with one of
+     * its own with methods. This query is frozen first.
+     *
+     * @param index the index of the statement
+     * @param statement the new statement, it is frozen as well
+     * @return a frozen query that shares all other statements with this one
+     */
+    public SPARQLQuery withStatement(int index, IStatement statement)
+    {
+        freeze();
+        if(this.statements.get(index) == statement)
+        {
+            return this;
+        }
+        List<IStatement> statements = new ArrayList<IStatement>(this.statements);
+        statements.set(index, statement.freeze());
+        SPARQLQuery query = new SPARQLQuery(this, this.graph, Collections.unmodifiableList(statements), true);
+        // the new statement may name other graphs
+        query.graphIndex = new GraphIndex();
+        return query;
+    }
 
+    /**
+     * @param graph the graph of the new version of this query
+     * @param statements the unmodifiable statements of the new version, the statements of this query if they
+     *                   did not change
+     * @param graphIndex the graph index of the new version
+     * @return this query if nothing changed, otherwise a frozen copy with the changes
+     */
+    private SPARQLQuery withChanges(String graph, List<IStatement> statements, GraphIndex graphIndex)
+    {
+        if(statements == this.statements && Statements.sameGraph(graph, this.graph))
+        {
+            return this;
+        }
+        SPARQLQuery query = new SPARQLQuery(this, graph, statements, true);
+        query.graphIndex = graphIndex;
+        return query;
+    }
+
+    /**
+     * remembers where the graph name that the iterator just returned is in the source
+     *
+     * @param iterator an iterator that just returned the uri of the graph of this query
+     */
+    private void recordSourceGraph(SplitQuery.SplitQueryIterator iterator)
+    {
+        int start = iterator.getCurrentStart();
+        this.sourceGraphStart = (start < 0) ? -1 : start + 1;
+        this.sourceGraphEnd = (start < 0) ? -1 : iterator.getCurrentEnd() - 1;
+    }
+
+    /**
+     * remembers the text this query was parsed from and where its statements are in it, once the query is parsed
+     *
+     * @param iterator the iterator the query was parsed from
+     */
+    private void recordSource(SplitQuery.SplitQueryIterator iterator)
+    {
+        CharSequence text = iterator.getQueryText();
+        if(!(text instanceof QueryText))
+        {
+            return;
+        }
+
+        int [] sourceStatements = new int[this.statements.size() * 2];
+        for(int i = 0; i < this.statements.size(); ++i)
+        {
+            sourceStatements[2 * i] = Splice.getSourceStart(this.statements.get(i));
+            sourceStatements[2 * i + 1] = Splice.getSourceEnd(this.statements.get(i));
+            if(sourceStatements[2 * i] < 0)
+            {
+                return;
+            }
+        }
+
+        this.source = (QueryText) text;
+        this.sourceGraph = this.graph;
+        this.sourceStatements = sourceStatements;
+    }
+
+    /**
+     * Finds the splices that turn the source of this query into the query as it is now. That is only possible
+     * if nothing but graph names changed since the query was parsed. That holds for frozen queries and the
+     * queries their with methods return, but also for a query that is not frozen and for its clones: every
+     * statement keeps its span until more than its graph changes, also when it is reached through getStatements
+     * (see Splice), and the prefixes are compared with the prefixes as they were parsed.
+     *
+     * @return the splices ordered by their offset, null if the query cannot be written by splicing its source
+     */
+    private List<Splice> collectSplices()
+    {
+        if(this.source == null || this.sourceStatements.length != this.statements.size() * 2)
+        {
+            return null;
+        }
+        if(this.sourcePrefixes != null && !this.sourcePrefixes.equals(this.prefixes))
+        {
+            // a prefix was added, removed or changed
+            return null;
+        }
+
+        List<Splice> splices = new ArrayList<Splice>();
+
+        if(!Statements.sameGraph(this.graph, this.sourceGraph))
+        {
+            boolean hasGraph = this.graph != null && !this.graph.isEmpty();
+            boolean hadGraph = this.sourceGraph != null && !this.sourceGraph.isEmpty();
+            if(hasGraph != hadGraph || this.sourceGraphStart < 0)
+            {
+                if(hasGraph || hadGraph)
+                {
+                    // a WITH has to be added or removed
+                    return null;
+                }
+            }
+            else
+            {
+                splices.add(new Splice(this.sourceGraphStart, this.sourceGraphEnd, this.graph));
+            }
+        }
+
+        for(int i = 0; i < this.statements.size(); ++i)
+        {
+            IStatement statement = this.statements.get(i);
+            if(Splice.getSourceStart(statement) != this.sourceStatements[2 * i] ||
+                    Splice.getSourceEnd(statement) != this.sourceStatements[2 * i + 1])
+            {
+                // the statement was replaced by another one
+                return null;
+            }
+            if(!Splice.collect(statement, this.source, splices))
+            {
+                return null;
+            }
+        }
+
+        // a FROM of the query can come after its statements
+        Collections.sort(splices, new Comparator<Splice>() {
+            public int compare(Splice splice, Splice other)
+            {
+                return Integer.compare(splice.getStart(), other.getStart());
+            }
+        });
+        return splices;
+    }
+
+    /**
+     * @return the list of statements of this query, copied first if it is shared with another query. The
+     *         statements in it may still be shared, see Statements.share.
+     */
+    private List<IStatement> ownStatements()
+    {
+        if(this.sharedList)
+        {
+            this.statements = this.graphIndex.track(this.statements);
+            this.sharedList = false;
+        }
+        return this.statements;
+    }
+
+    /**
+     * @throws UnsupportedOperationException if this query is frozen
+     */
+    private void checkNotFrozen()
+    {
+        if(this.frozen)
+        {
+            throw new UnsupportedOperationException("This query is frozen and cannot be changed, use the with methods instead");
+        }
+    }
+
+    /**
+     * A copy of this query, the copy is never frozen.
+     *
+     * The copy shares the statements, the prefixes and the unknowns with this query, and neither query changes
+     * what they share: a statement is copied, together with the blocks on the path to it, the first time either
+     * query changes it (see Statements.share), so replacing a graph in the copy only copies the blocks that name
+     * the graph. getStatements, getPrefixes and getUnknowns give a query copies of its own first, as the caller
+     * may change what they return. What this query handed out to a caller before it is cloned may still be
+     * changed by that caller, so the copy gets its own copies of that, the statements are cloned.
+     *
+     * Cloning a query that is not frozen marks what it shares, so a query that is cloned on more than one thread
+     * has to be frozen first.
+     *
+     * @return a clone of this object
+     */
+    public SPARQLQuery clone()
+    {
+        SPARQLQuery clone = new SPARQLQuery(this, this.graph, this.statements, false);
+        if(this.frozen)
+        {
+            return clone;
+        }
+
+        if(this.handedOutStatements)
+        {
+            List<IStatement> statements = new ArrayList<IStatement>(this.statements.size());
+            for(IStatement statement : this.statements)
+                statements.add(statement.clone());
+            clone.statements = clone.graphIndex.track(statements);
+            clone.sharedList = false;
+            clone.sharedStatements = false;
+        }
+        else
+        {
+            clone.statements = Statements.share(this.statements);
+            if(clone.statements == this.statements)
+            {
+                this.sharedList = true;
+            }
+            else
+            {
+                clone.sharedList = false;
+            }
+            this.sharedStatements = true;
+        }
+
+        if(this.handedOutPrefixes)
+        {
+            clone.prefixes = new HashMap<String, String>(this.prefixes);
+            clone.sharedPrefixes = false;
+        }
+        else
+        {
+            this.sharedPrefixes = true;
+        }
+
+        if(this.handedOutUnknowns)
+        {
+            clone.unknowns = new HashSet<String>(this.unknowns);
+            clone.sharedUnknowns = false;
+        }
+        else
+        {
+            this.sharedUnknowns = true;
+        }
         return clone;
     }
 }
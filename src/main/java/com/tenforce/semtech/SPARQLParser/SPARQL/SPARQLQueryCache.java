@@ -0,0 +1,358 @@
+package com.tenforce.semtech.SPARQLParser.SPARQL;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread safe cache of parsed queries, keyed by the query string.
+ *
+ * Applications that see the same queries over and over again can ask this cache for a parsed query instead
+ * of creating a new SPARQLQuery every time. The cache keeps one parsed version of every query it holds, that
+ * version is frozen (see SPARQLQuery.freeze). get and getIfPresent give every caller its own copy (see
+ * SPARQLQuery.clone), which it is free to change. getShared and getSharedIfPresent return the frozen version
+ * itself, which costs nothing, callers that need a different graph use the with methods of the query which
+ * only copy the statements that change.
+ *
+ * The cache holds at most maximumSize queries. When it is full the query that is used least is evicted: every
+ * query has a frequency that is incremented whenever it is found in the cache. When a query has to be evicted
+ * a few queries are sampled, like the hand of a clock that moves over the cache, and the one with the lowest
+ * frequency is evicted. A query that was just added is passed over the first time the hand reaches it, so it
+ * gets the time to be used before it can be evicted, and a burst of queries that are used only once evicts
+ * each other instead of the queries that are used a lot. The frequencies are halved every time the cache was used 10 times its size, so
+ * queries that were used a lot in the past but not anymore are evicted eventually.
+ *
+ * Usage:
+ * <pre>
+ * SPARQLQueryCache cache = new SPARQLQueryCache(1000);
+ * SPARQLQuery query = cache.get(queryString);
+ * </pre>
+ *
+ * To make sure a query that is not in the cache is only parsed once, even when many threads ask for it at the
+ * same time, use the cache through a SPARQLParseService.
+ */
+public class SPARQLQueryCache
+{
+    // the number of entries that are looked at to find the one to evict
+    private static final int SAMPLE_SIZE = 8;
+
+    // the frequency of an entry never gets higher than this
+    private static final int MAXIMUM_FREQUENCY = 15;
+
+    // the maximum number of queries in the cache
+    private final int maximumSize;
+
+    // the cached queries
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    // the counters
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // the entries are sampled for eviction by moving this iterator over the cache, it is only used while
+    // holding the evictionLock
+    private final Object evictionLock = new Object();
+    private Iterator<Map.Entry<String, Entry>> evictionHand = null;
+
+    // the number of lookups when the frequencies were last halved, only used while holding the evictionLock
+    private long lookupsAtLastAging = 0;
+
+    /**
+     * A cached query together with how often it was used
+     */
+    private static class Entry
+    {
+        // the parsed query, it is frozen and thus never changed
+        private final SPARQLQuery query;
+
+        // the frequency with which the query was used, it is updated without synchronization so concurrent
+        // updates can get lost, which is fine as it is only an estimate
+        private volatile int frequency = 1;
+
+        // true until the entry is sampled for eviction for the first time, an entry is not evicted then
+        private volatile boolean grace = true;
+
+        Entry(SPARQLQuery query)
+        {
+            this.query = query;
+        }
+
+        /**
+         * increments the frequency
+         */
+        void touch()
+        {
+            int frequency = this.frequency;
+            if(frequency < MAXIMUM_FREQUENCY)
+            {
+                this.frequency = frequency + 1;
+            }
+        }
+    }
+
+    /**
+     * default constructor
+     *
+     * @param maximumSize the maximum number of queries the cache will hold
+     * @throws IllegalArgumentException if maximumSize is smaller than 1
+     */
+    public SPARQLQueryCache(int maximumSize)
+    {
+        if(maximumSize < 1)
+        {
+            throw new IllegalArgumentException("The maximum size of a cache should be at least 1, not " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Returns the parsed version of the given query. If the query is in the cache a copy of the cached
+     * version is returned, otherwise the query is parsed and added to the cache first.
+     *
+     * @param query the query
+     * @return a parsed query that is not shared with anyone else
+     * @throws InvalidSPARQLException if the query is not a valid SPARQL query, invalid queries are not cached
+     */
+    public SPARQLQuery get(String query) throws InvalidSPARQLException
+    {
+        return getShared(query).clone();
+    }
+
+    /**
+     * Returns a copy of the cached version of the given query, if the query is in the cache.
+     *
+     * @param query the query
+     * @return a parsed query that is not shared with anyone else, null if the query is not in the cache
+     */
+    public SPARQLQuery getIfPresent(String query)
+    {
+        SPARQLQuery cached = lookup(query);
+        return (cached == null) ? null : cached.clone();
+    }
+
+    /**
+     * Returns the cached version of the given query itself. If the query is not in the cache it is parsed
+     * and added to the cache first.
+     *
+     * @param query the query
+     * @return the frozen parsed query
+     * @throws InvalidSPARQLException if the query is not a valid SPARQL query, invalid queries are not cached
+     */
+    public SPARQLQuery getShared(String query) throws InvalidSPARQLException
+    {
+        SPARQLQuery cached = lookup(query);
+        if(cached == null)
+        {
+            cached = add(query, new SPARQLQuery(query));
+        }
+        return cached;
+    }
+
+    /**
+     * Returns the cached version of the given query itself, if the query is in the cache.
+     *
+     * @param query the query
+     * @return the frozen parsed query, null if the query is not in the cache
+     */
+    public SPARQLQuery getSharedIfPresent(String query)
+    {
+        return lookup(query);
+    }
+
+    /**
+     * Looks the query up again for a caller that just missed it, see SPARQLParseService. The miss was counted
+     * already, so this counts nothing, but it does count as a use of the query.
+     *
+     * @param query the query
+     * @return the frozen parsed query, null if the query is not in the cache
+     */
+    SPARQLQuery recheck(String query)
+    {
+        Entry entry = this.entries.get(query);
+        if(entry == null)
+        {
+            return null;
+        }
+        entry.touch();
+        return entry.query;
+    }
+
+    /**
+     * Adds a parsed query to the cache, unless the query is already in it. A frozen copy of the parsed query
+     * becomes the cached version of the query, the parsed query itself is not changed. A query that is
+     * already frozen is cached as it is.
+     *
+     * @param query the query string
+     * @param parsedQuery the query parsed from the query string
+     */
+    public void put(String query, SPARQLQuery parsedQuery)
+    {
+        add(query, parsedQuery.isFrozen() ? parsedQuery : parsedQuery.clone());
+    }
+
+    /**
+     * @return the number of times a query was found in the cache
+     */
+    public long getHitCount()
+    {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return the number of times a query was not found in the cache and had to be parsed
+     */
+    public long getMissCount()
+    {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return the number of queries that were evicted to keep the cache within its maximum size
+     */
+    public long getEvictionCount()
+    {
+        return this.evictions.sum();
+    }
+
+    /**
+     * @return the number of queries in the cache
+     */
+    public int size()
+    {
+        return this.entries.size();
+    }
+
+    /**
+     * @return the maximum number of queries the cache will hold
+     */
+    public int getMaximumSize()
+    {
+        return this.maximumSize;
+    }
+
+    /**
+     * removes all queries from the cache, the counters are not reset
+     */
+    public void clear()
+    {
+        this.entries.clear();
+    }
+
+    /**
+     * Finds the cached version of the query, counting the hit or miss.
+     *
+     * @param query the query
+     * @return the cached version of the query, null if it is not in the cache
+     */
+    private SPARQLQuery lookup(String query)
+    {
+        Entry entry = this.entries.get(query);
+        if(entry != null)
+        {
+            this.hits.increment();
+            entry.touch();
+            return entry.query;
+        }
+
+        this.misses.increment();
+        return null;
+    }
+
+    /**
+     * Adds the parsed query to the cache, evicting other queries if the cache grows too big.
+     *
+     * @param query the query string
+     * @param parsedQuery the parsed query, it is frozen
+     * @return the cached version of the query, this is not parsedQuery if the query was added in the mean time
+     */
+    private SPARQLQuery add(String query, SPARQLQuery parsedQuery)
+    {
+        Entry parsed = new Entry(parsedQuery.freeze());
+
+        // another thread can have parsed the same query in the mean time
+        Entry entry = this.entries.putIfAbsent(query, parsed);
+        if(entry != null)
+        {
+            entry.touch();
+            return entry.query;
+        }
+
+        if(this.entries.size() > this.maximumSize)
+        {
+            evict();
+        }
+        return parsed.query;
+    }
+
+    /**
+     * Evicts entries until the cache is within its maximum size. For every eviction SAMPLE_SIZE entries are
+     * looked at, the one with the lowest frequency is evicted. Entries that are looked at for the first time
+     * are not evicted, if all sampled entries are new the next SAMPLE_SIZE entries are looked at.
+     */
+    private void evict()
+    {
+        synchronized(this.evictionLock)
+        {
+            while(this.entries.size() > this.maximumSize)
+            {
+                ageIfNeeded();
+
+                Map.Entry<String, Entry> victim = null;
+                for(int i = 0; i < SAMPLE_SIZE; ++i)
+                {
+                    if(this.evictionHand == null || !this.evictionHand.hasNext())
+                    {
+                        this.evictionHand = this.entries.entrySet().iterator();
+                        if(!this.evictionHand.hasNext())
+                        {
+                            break;
+                        }
+                    }
+                    Map.Entry<String, Entry> candidate = this.evictionHand.next();
+                    if(candidate.getValue().grace)
+                    {
+                        candidate.getValue().grace = false;
+                        continue;
+                    }
+                    if(victim == null || candidate.getValue().frequency < victim.getValue().frequency)
+                    {
+                        victim = candidate;
+                    }
+                }
+
+                if(victim == null)
+                {
+                    if(this.entries.isEmpty())
+                    {
+                        return;
+                    }
+                    continue;
+                }
+                if(this.entries.remove(victim.getKey(), victim.getValue()))
+                {
+                    this.evictions.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * halves all frequencies if the cache was used 10 times its size since they were last halved
+     */
+    private void ageIfNeeded()
+    {
+        long lookups = this.hits.sum() + this.misses.sum();
+        if(lookups - this.lookupsAtLastAging < 10L * this.maximumSize)
+        {
+            return;
+        }
+        this.lookupsAtLastAging = lookups;
+
+        for(Entry entry : this.entries.values())
+        {
+            entry.frequency = entry.frequency >> 1;
+        }
+    }
+}
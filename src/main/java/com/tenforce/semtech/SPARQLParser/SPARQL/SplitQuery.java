@@ -1,5 +1,9 @@
 package com.tenforce.semtech.SPARQLParser.SPARQL;
 
+import com.tenforce.semtech.SPARQLParser.SPARQL.SPARQLLexer.Keyword;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -25,11 +29,72 @@ import java.util.*;
  *
  * And it also provides support for newlines and keeping count of on which line number you currently are in
  * the original query while taking next() String objects from the SplitQueryIterator.
+ *
+ * Internally the tokens are not stored as String objects but as a token table: parallel arrays holding the
+ * start offset, the end offset, the kind and the keyword (see SPARQLLexer) of every token in the original
+ * query. A token only becomes a String when it is asked for through the SplitQueryIterator, parsers that only
+ * need to know which keyword a token is can ask for that instead.
+ *
+ * The query is lexed on demand, as the iterator moves forward. This keeps the part of the token table that
+ * was not yet consumed down to the few tokens the iterator looked ahead, so splitting the current token
+ * (see breakOff) only moves those few tokens instead of rebuilding the whole table.
+ *
+ * A query can also be streamed: split while it is read from a Reader or straight from a buffer of UTF-8
+ * bytes (such as a memory mapped file). In that case the tokens that were consumed by the iterator are thrown
+ * away as the iterator moves on (only the last few are kept, for getPrevious and replaceCurrent), and so is
+ * the text of the query they pointed to. The memory that is needed to split such a query is thus bounded by
+ * the largest token and not by the size of the query. Because the tokens are thrown away a streamed query
+ * can only be iterated once.
  */
 public class SplitQuery implements Iterable<String>
 {
-    // the variable that will hold the array of query parts
-    private String [] splitQuery = null;
+    // the initial size of the token table
+    private static final int INITIAL_CAPACITY = 64;
+
+    // the number of consumed tokens that are kept when the tokens of a streamed query are thrown away
+    private static final int HISTORY = 8;
+
+    // the query that was split
+    private final QueryText query;
+
+    // true if the query is streamed, its consumed tokens are then thrown away
+    private final boolean streaming;
+
+    // true if the whole text of the query stays available, this is not the case for a query read from a Reader
+    private final boolean wholeText;
+
+    // the number of tokens that were thrown away
+    private int discardedTokens = 0;
+
+    // true once the iterator of a streamed query was handed out
+    private boolean iterated = false;
+
+    // the number of tokens the lexer produced
+    private int lexedTokens = 0;
+
+    // the time spent in the lexer in nanoseconds, only measured when measureLexTime is true
+    private boolean measureLexTime = false;
+    private long lexTime = 0;
+
+    // the token table, for every token the start offset, the end offset, the kind and the keyword
+    private int [] tokenStarts = new int[INITIAL_CAPACITY];
+    private int [] tokenEnds = new int[INITIAL_CAPACITY];
+    private int [] tokenKinds = new int[INITIAL_CAPACITY];
+    private Keyword [] tokenKeywords = new Keyword[INITIAL_CAPACITY];
+
+    // for every token the offset of its first '?' relative to its start, -1 if it has none, so the
+    // variables of a statement can be collected without looking at the tokens that have no '?'
+    private int [] tokenVariables = new int[INITIAL_CAPACITY];
+
+    // the text of tokens that do not point into the query (they were put in place with replaceCurrent),
+    // this is null as long as no such token exists
+    private String [] tokenTexts = null;
+
+    // the number of tokens in the token table
+    private int tokenCount = 0;
+
+    // the lexer that produces the tokens, null once the whole query is lexed
+    private SPARQLLexer lexer;
 
     /**
      * default constructor, expects a valid SPARQL query object
@@ -38,17 +103,59 @@ public class SplitQuery implements Iterable<String>
      */
     public SplitQuery(String query)
     {
-        performSplitQuery(query);
+        this.query = QueryText.of(query);
+        this.streaming = false;
+        this.wholeText = true;
+        this.lexer = new SPARQLLexer(this.query);
+    }
+
+    /**
+     * Constructor for a query that is read from a Reader. The reader is read in chunks while the query is
+     * iterated, it is not closed.
+     *
+     * IOExceptions thrown by the reader are thrown as UncheckedIOExceptions by the iterator.
+     *
+     * @param reader the reader that contains the SPARQL query
+     */
+    public SplitQuery(Reader reader)
+    {
+        this.query = QueryText.of(reader);
+        this.streaming = true;
+        this.wholeText = false;
+        this.lexer = new SPARQLLexer(this.query);
+    }
+
+    /**
+     * Constructor for a query that is a buffer of UTF-8 bytes. The query is split straight from the buffer,
+     * only the tokens that are asked for as a String are decoded. The position of the buffer is not changed.
+     *
+     * @param utf8Query the buffer that contains the SPARQL query between its position and its limit
+     */
+    public SplitQuery(ByteBuffer utf8Query)
+    {
+        this.query = QueryText.of(utf8Query);
+        this.streaming = true;
+        this.wholeText = true;
+        this.lexer = new SPARQLLexer(this.query);
     }
 
     /**
      * returns a new SplitQueryIterator object that is initialised to the front
-     * of the splitQuery array. SplitQueryIterator is a public inner class
+     * of the token table. SplitQueryIterator is a public inner class
      *
      * @return new SplitQueryIterator
+     * @throws IllegalStateException if this query is streamed and it was already iterated
      */
     public Iterator<String> iterator()
     {
+        if(this.streaming)
+        {
+            if(this.iterated)
+            {
+                throw new IllegalStateException("A streamed query can only be iterated once");
+            }
+            this.iterated = true;
+        }
         return new SplitQueryIterator();
     }
 
@@ -59,105 +166,217 @@ public class SplitQuery implements Iterable<String>
      * to be added AND the newline to be added as a seperate block. This is useful for constructing
      * something like inner blocks, or keeping count of linenumbers.
      *
-     * @param query
-     * @return an array of strings that are split based on whitespace characters
+     * The actual splitting is done in a single pass by the SPARQLLexer, which works on offsets in the
+     * query. Those offsets are stored in the token table, no strings are created. Tokens are only lexed
+     * when they are needed: this method lexes until the token table holds the token at the given index.
+     *
+     * @param index the index of a token
+     * @return true if the token exists, false if the query does not have that many tokens
      */
-    private void performSplitQuery(String query)
+    private boolean hasToken(int index)
     {
-        Vector<String> splitQuery = new Vector<String>();
-
-        String [] myArr;
+        if(index < this.tokenCount)
+        {
+            return true;
+        }
+        if(this.measureLexTime)
+        {
+            long start = System.nanoTime();
+            boolean found = lexUpTo(index);
+            this.lexTime += System.nanoTime() - start;
+            return found;
+        }
+        return lexUpTo(index);
+    }
 
-        String currentBuffer = "";
+    /**
+     * lexes until the token table holds the token at the given index
+     *
+     * @param index the index of a token
+     * @return true if the token exists, false if the query does not have that many tokens
+     */
+    private boolean lexUpTo(int index)
+    {
+        while(index >= this.tokenCount)
+        {
+            if(this.lexer == null)
+            {
+                return false;
+            }
+            if(!this.lexer.nextToken())
+            {
+                this.lexer = null;
+                return false;
+            }
+            ensureCapacity(this.tokenCount + 1);
+            this.tokenStarts[this.tokenCount] = this.lexer.getTokenStart();
+            this.tokenEnds[this.tokenCount] = this.lexer.getTokenEnd();
+            this.tokenKinds[this.tokenCount] = this.lexer.getTokenKind();
+            this.tokenKeywords[this.tokenCount] = this.lexer.getTokenKeyword();
+            this.tokenVariables[this.tokenCount] = this.lexer.getTokenVariable();
+            ++this.tokenCount;
+            ++this.lexedTokens;
+        }
+        return true;
+    }
 
-        boolean inString = false;
+    /**
+     * Makes room for count tokens at the given index, the tokens from that index on are moved back. As the
+     * query is lexed on demand this normally only moves the tokens that the iterator looked ahead.
+     *
+     * @param index the index where the new tokens will be put
+     * @param count the number of new tokens
+     */
+    private void insertTokens(int index, int count)
+    {
+        ensureCapacity(this.tokenCount + count);
+        int moved = this.tokenCount - index;
+        System.arraycopy(this.tokenStarts, index, this.tokenStarts, index + count, moved);
+        System.arraycopy(this.tokenEnds, index, this.tokenEnds, index + count, moved);
+        System.arraycopy(this.tokenKinds, index, this.tokenKinds, index + count, moved);
+        System.arraycopy(this.tokenKeywords, index, this.tokenKeywords, index + count, moved);
+        System.arraycopy(this.tokenVariables, index, this.tokenVariables, index + count, moved);
+        if(this.tokenTexts != null)
+        {
+            System.arraycopy(this.tokenTexts, index, this.tokenTexts, index + count, moved);
+            Arrays.fill(this.tokenTexts, index, index + count, null);
+        }
+        this.tokenCount += count;
+    }
 
-        boolean inComments = false;
+    /**
+     * puts a token that does not point into the query (it was made up by the parser) at the given index
+     *
+     * @param index the index of the token
+     * @param offset the offset in the query where the token is located
+     * @param text the text of the token
+     */
+    private void setTokenText(int index, int offset, String text)
+    {
+        if(this.tokenTexts == null)
+        {
+            this.tokenTexts = new String[this.tokenStarts.length];
+        }
+        this.tokenStarts[index] = offset;
+        this.tokenEnds[index] = offset;
+        this.tokenKinds[index] = kindOf(text);
+        this.tokenKeywords[index] = (this.tokenKinds[index] == SPARQLLexer.TOKEN_WORD) ? Keyword.lookup(text) : Keyword.NONE;
+        this.tokenVariables[index] = (this.tokenKinds[index] == SPARQLLexer.TOKEN_WORD) ? text.indexOf('?') : -1;
+        this.tokenTexts[index] = text;
+    }
 
-        boolean inURI = false;
+    /**
+     * makes sure the token table can hold at least the given amount of tokens
+     *
+     * @param capacity the amount of tokens the token table should be able to hold
+     */
+    private void ensureCapacity(int capacity)
+    {
+        if(capacity <= this.tokenStarts.length)
+        {
+            return;
+        }
 
-        for(byte b : query.getBytes())
+        int newCapacity = Math.max(capacity, this.tokenStarts.length * 2);
+        this.tokenStarts = Arrays.copyOf(this.tokenStarts, newCapacity);
+        this.tokenEnds = Arrays.copyOf(this.tokenEnds, newCapacity);
+        this.tokenKinds = Arrays.copyOf(this.tokenKinds, newCapacity);
+        this.tokenKeywords = Arrays.copyOf(this.tokenKeywords, newCapacity);
+        this.tokenVariables = Arrays.copyOf(this.tokenVariables, newCapacity);
+        if(this.tokenTexts != null)
         {
-            if(!inString && !inComments &&!inURI) {
-                if (((char) b) == ' ' || ((char) b) == '\t') {
-                    currentBuffer = currentBuffer.trim();
-                    if (currentBuffer.length() > 0) splitQuery.add(currentBuffer);
-                    currentBuffer = "";
-                    continue;
-                }
-                if (((char) b) == '\n' || ((char) b) == '\r' || ((char) b) == '{' || ((char) b) == '}') {
-                    currentBuffer = currentBuffer.trim();
-                    if (currentBuffer.length() > 0) splitQuery.add(currentBuffer);
-                    currentBuffer = "";
-                    splitQuery.add("" + ((char) b));
-                    continue;
-                }
-                if (((char) b) == '\"') {
-                    currentBuffer = currentBuffer.trim();
-                    if (currentBuffer.length() > 0) splitQuery.add(currentBuffer);
-                    currentBuffer = "\"";
-                    inString = true;
-                    continue;
-                }
-                if (((char) b) == '<') {
-                    currentBuffer = currentBuffer.trim();
-                    if (currentBuffer.length() > 0) splitQuery.add(currentBuffer);
-                    currentBuffer = "<";
-                    inURI = true;
-                    continue;
-                }
-                if(((char) b) == '#')
-                {
-                    currentBuffer = currentBuffer.trim();
-                    if (currentBuffer.length() > 0) splitQuery.add(currentBuffer);
-                    inComments = true;
-                    continue;
-                }
-            }
-            else
-            {
-                if(inString) {
-                    if (((char) b) == '\"') {
-                        currentBuffer += "\"";
-                        currentBuffer = currentBuffer.trim();
-                        if (currentBuffer.length() > 0) splitQuery.add(currentBuffer);
-                        currentBuffer = "";
-                        inString = false;
-                        continue;
-                    }
-                }
-                if(inURI) {
-                    if (((char) b) == '>') {
-                        currentBuffer += ">";
-                        currentBuffer = currentBuffer.trim();
-                        if (currentBuffer.length() > 0) splitQuery.add(currentBuffer);
-                        currentBuffer = "";
-                        inURI = false;
-                        continue;
-                    }
-                }
-                if(inComments) {
-                    if (((char) b) == '\n' || ((char) b) == '\r') {
-                        inComments = false;
-                    }
-                    continue;
-                }
-            }
+            this.tokenTexts = Arrays.copyOf(this.tokenTexts, newCapacity);
+        }
+    }
+
+    /**
+     * @return the number of tokens, including newlines, in this split query
+     */
+    public int getTokenCount()
+    {
+        hasToken(Integer.MAX_VALUE);
+        return this.discardedTokens + this.tokenCount;
+    }
 
-            currentBuffer += ((char) b);
+    /**
+     * From now on the time spent in the lexer is measured, see getLexTime.
+     */
+    void measureLexTime()
+    {
+        this.measureLexTime = true;
+    }
+
+    /**
+     * @return the time spent in the lexer in nanoseconds since measureLexTime was called
+     */
+    long getLexTime()
+    {
+        return this.lexTime;
+    }
+
+    /**
+     * @return the number of tokens the lexer produced so far, tokens that were split or replaced while
+     *         parsing are counted as they were lexed
+     */
+    int getLexedTokenCount()
+    {
+        return this.lexedTokens;
+    }
+
+    /**
+     * returns the token at the given index as a String. Single character tokens are always the same
+     * String object, all other tokens are created from the query on request.
+     *
+     * @param index the index of the token
+     * @return the token as a String
+     */
+    private String getToken(int index)
+    {
+        if(this.tokenTexts != null && this.tokenTexts[index] != null)
+        {
+            return this.tokenTexts[index];
         }
-        currentBuffer = currentBuffer.trim();
-        if(currentBuffer.length()> 0)
-            splitQuery.add(currentBuffer);
 
-        String [] arr = new String[splitQuery.size()];
+        switch(this.tokenKinds[index])
+        {
+            case SPARQLLexer.TOKEN_NEWLINE:
+                return "\n";
+            case SPARQLLexer.TOKEN_CARRIAGE_RETURN:
+                return "\r";
+            case SPARQLLexer.TOKEN_OPEN_BRACE:
+                return "{";
+            case SPARQLLexer.TOKEN_CLOSE_BRACE:
+                return "}";
+            default:
+                return this.query.substring(this.tokenStarts[index], this.tokenEnds[index]);
+        }
+    }
 
-        for(int i = 0; i < splitQuery.size(); ++i)
+    /**
+     * @param index the index of the token
+     * @return true if the token is a newline or a carriage return (or it only contains whitespace)
+     */
+    private boolean isBlank(int index)
+    {
+        if(this.tokenTexts != null && this.tokenTexts[index] != null)
         {
-            arr[i] = splitQuery.elementAt(i);
+            return this.tokenTexts[index].trim().isEmpty();
         }
+        int kind = this.tokenKinds[index];
+        return kind == SPARQLLexer.TOKEN_NEWLINE || kind == SPARQLLexer.TOKEN_CARRIAGE_RETURN;
+    }
 
-        this.splitQuery = arr;
+    /**
+     * @param index the index of the token
+     * @return true if the token is a newline
+     */
+    private boolean isNewLine(int index)
+    {
+        if(this.tokenTexts != null && this.tokenTexts[index] != null)
+        {
+            return this.tokenTexts[index].equals("\n");
+        }
+        return this.tokenKinds[index] == SPARQLLexer.TOKEN_NEWLINE;
     }
 
     /**
@@ -174,9 +393,12 @@ public class SplitQuery implements Iterable<String>
      *
      * getCurrentLine returns the current line number in the original the string. This is done by,
      * instead of returning newlines, incrementing the line number and returning the next String object
-     * in the splitQuery array.
+     * in the token table.
      *
      * Peeknext returns the next String object if it exists but does not increment the currentPart index
+     *
+     * hasNext, next and peekNext take constant time (amortized): the index of the next token that is not a
+     * newline is looked up once and remembered until that token is consumed.
      */
     public class SplitQueryIterator implements Iterator<String>
     {
@@ -186,6 +408,17 @@ public class SplitQuery implements Iterable<String>
         // the line we are currently at
         private int currentLine = 1;
 
+        // the index and text of the last token that was turned into a String, peeking and then taking
+        // the same token only creates 1 String
+        private int cachedPart = -1;
+        private String cachedToken = null;
+
+        // the index of the next token that is not a newline or carriage return, -1 if it still has to be
+        // looked up. Together with the amount of newlines between currentPart and that token it stays valid
+        // until that token is consumed or the token table changes.
+        private int significantPart = -1;
+        private int newLinesBeforeSignificant = 0;
+
         /**
          * forced override from the Iterator&lt;T&gt; interface
          *
@@ -193,25 +426,18 @@ public class SplitQuery implements Iterable<String>
          */
         public boolean hasNext()
         {
-            for(int i = this.currentPart; i < splitQuery.length; ++i)
-            {
-                if(!splitQuery[i].trim().isEmpty())
-                {
-                    return true;
-                }
-            }
-            return false;
+            return hasToken(nextSignificantPart());
         }
 
         /**
          * Same as hasNext() but also return true if the next Strings are newlines or empty. This method is
          * intended to be used together with the nextIncludingNewLines
          *
-         * @return currentPart < splitQuery.length
+         * @return true if there is a token at currentPart
          */
         public boolean hasNextIncludingNewLines()
         {
-            return currentPart < splitQuery.length;
+            return hasToken(currentPart);
         }
 
         /**
@@ -219,50 +445,72 @@ public class SplitQuery implements Iterable<String>
          *
          * @param a the array containing strings which we will put in the position of the current
          *          string object
-         * @result splitQuery = splitQuery[start .... currentPart - 1] + a + splitQuery[currentPart + 1 .... end]
+         * @result tokens = tokens[start .... currentPart - 1] + a + tokens[currentPart + 1 .... end]
          */
         public void replaceCurrent(String [] a)
         {
-            // create a new array list that we will parse to be the new array
-            List<String> splitQueryList = new ArrayList<String>();
+            // the token before currentPart (the current one) is replaced, if there is one
+            int first = Math.max(currentPart - 1, 0);
+            int offset = (currentPart > 0) ? tokenStarts[first] : 0;
 
-            // the current part has to be increased because we want
-            // ++currentPart;
-
-            // inserting splitQuery[start ... currentPart] -> splitQueryList
-            for(int i = 0; i < currentPart - 1; ++i)
+            int inserted = a.length - (currentPart - first);
+            if(inserted > 0)
             {
-                splitQueryList.add(splitQuery[i]);
+                insertTokens(currentPart, inserted);
             }
-
-            // inserting a[start ... end] -> splitQueryList
-            for(int i = 0; i < a.length; ++i)
+            else if(inserted < 0)
             {
-                splitQueryList.add(a[i]);
+                // an empty array just removes the current token
+                removeTokens(first, 1);
             }
 
-            // inserting splitQuery[currentPart + 1 ... end] -> splitQueryList
-            for(int i = currentPart; i < splitQuery.length; ++i)
+            // these tokens keep the offset of the token they replace so they can still be located in the query
+            for(int i = 0; i < a.length; ++i)
             {
-                splitQueryList.add(splitQuery[i]);
+                setTokenText(first + i, offset, a[i]);
             }
 
-            // splitQuery <- splitQueryList.toArray()
-            splitQuery = new String [splitQueryList.size()];
-            int i = 0;
-            for(String b : splitQueryList)
-                splitQuery[i++] = b;
+            cachedPart = -1;
+            significantPart = -1;
         }
 
+        /**
+         * If the token that was returned last starts with the breakString (ignoring case) but is longer, it is
+         * broken in 2: the breakString part, which becomes the token that was returned last, and the rest, which
+         * becomes the token that will be returned next.
+         *
+         * The token is split in place, both parts keep pointing into the query.
+         *
+         * @param breakString the lower case start of the last token that should be broken off
+         */
         public void breakOff(String breakString)
         {
-            if(currentPart > 0 && currentPart < splitQuery.length)
+            if(currentPart > 0 && hasToken(currentPart))
             {
-                String toReplace = splitQuery[currentPart - 1];
-                if(toReplace.toLowerCase().startsWith(breakString) && toReplace.length() > breakString.length())
+                int last = currentPart - 1;
+                if(tokenTexts != null && tokenTexts[last] != null)
                 {
-                    String [] toInsert = { toReplace.substring(0, breakString.length()), toReplace.substring(breakString.length(), toReplace.length()) };
-                    replaceCurrent(toInsert);
+                    // this token was made up by the parser, it does not point into the query
+                    String toReplace = tokenTexts[last];
+                    if(startsWithLowerCase(toReplace, 0, toReplace.length(), breakString) && toReplace.length() > breakString.length())
+                    {
+                        String [] toInsert = { toReplace.substring(0, breakString.length()), toReplace.substring(breakString.length(), toReplace.length()) };
+                        replaceCurrent(toInsert);
+                    }
+                    return;
+                }
+
+                int start = tokenStarts[last];
+                int end = tokenEnds[last];
+                if(startsWithLowerCase(query, start, end, breakString) && end - start > breakString.length())
+                {
+                    int split = start + breakString.length();
+                    insertTokens(currentPart, 1);
+                    setTokenOffsets(currentPart, split, end);
+                    setTokenOffsets(last, start, split);
+
+                    cachedPart = -1;
+                    significantPart = -1;
                 }
             }
         }
@@ -270,26 +518,23 @@ public class SplitQuery implements Iterable<String>
         /**
          * Forced overridden method for the Iterator&lt;T&gt; interface.
          *
-         * if the next block is a newline then the currentLine and currentPart are incremented and this
-         * method recursively calls itself, otherwise the currentPArt is incremented and the splitQuery[currentPart]
-         * is returned
+         * newlines and carriage returns in front of the next token are skipped, for every newline the currentLine
+         * is incremented. Then the currentPart is moved past the next token and that token is returned.
          *
          * @throws NoSuchElementException
-         * @return splitQuery[++currentPart]
+         * @return tokens[++currentPart]
          */
         public String next()
         {
-            if(this.hasNext())
+            int next = nextSignificantPart();
+            if(!hasToken(next))
             {
-                if(splitQuery[currentPart].equals("\n"))
-                {
-                    ++this.currentLine;
-                    ++currentPart;
-                    return this.next();
-                }
-                return splitQuery[currentPart++];
+                throw new NoSuchElementException();
             }
-            throw new NoSuchElementException();
+            this.currentLine += this.newLinesBeforeSignificant;
+            this.currentPart = next + 1;
+            this.significantPart = -1;
+            return token(next);
         }
 
         /**
@@ -301,27 +546,144 @@ public class SplitQuery implements Iterable<String>
          */
         public String peekNext() throws NoSuchElementException
         {
-            int currentCurrentPart = currentPart;
-            int currentCurrentLine = currentLine;
-            String next = next();
-            currentPart = currentCurrentPart;
-            currentLine = currentCurrentLine;
-            return next;
+            int next = nextSignificantPart();
+            if(!hasToken(next))
+            {
+                throw new NoSuchElementException();
+            }
+            return token(next);
+        }
+
+        /**
+         * returns the keyword of the token that will be returned by the next next() call, without creating
+         * a String for it
+         *
+         * @return the keyword of the next token, NONE if it is not a keyword
+         * @throws NoSuchElementException
+         */
+        public Keyword peekNextKeyword() throws NoSuchElementException
+        {
+            int next = nextSignificantPart();
+            if(!hasToken(next))
+            {
+                throw new NoSuchElementException();
+            }
+            return tokenKeywords[next];
+        }
+
+        /**
+         * same as next() but instead of the token itself the keyword of the token is returned, no String
+         * is created for the token
+         *
+         * @return the keyword of the token, NONE if it is not a keyword
+         * @throws NoSuchElementException
+         */
+        public Keyword nextKeyword() throws NoSuchElementException
+        {
+            Keyword keyword = peekNextKeyword();
+            this.currentLine += this.newLinesBeforeSignificant;
+            this.currentPart = this.significantPart + 1;
+            this.significantPart = -1;
+            return keyword;
+        }
+
+        /**
+         * @return the keyword of the token that was returned last, NONE if it is not a keyword or if no
+         *         token was returned yet
+         */
+        public Keyword getCurrentKeyword()
+        {
+            return (currentPart > 0) ? tokenKeywords[currentPart - 1] : Keyword.NONE;
+        }
+
+        /**
+         * Adds the names of the variables in the token that was returned last to a set. Only tokens in which
+         * the lexer saw a '?' are looked at, and they are read in place, so this costs next to nothing for
+         * the other tokens.
+         *
+         * @param variables the set to add the names to, may be null
+         * @return the set the names were added to, this is a new set if variables was null and the token
+         *         holds a variable
+         */
+        public Set<String> addVariables(Set<String> variables)
+        {
+            int last = currentPart - 1;
+            if(last < 0 || tokenVariables[last] < 0)
+            {
+                return variables;
+            }
+            if(tokenTexts != null && tokenTexts[last] != null)
+            {
+                String text = tokenTexts[last];
+                return SPARQLLexer.addVariables(text, tokenVariables[last], text.length(), variables);
+            }
+            return SPARQLLexer.addVariables(query, tokenStarts[last] + tokenVariables[last], tokenEnds[last], variables);
+        }
+
+        /**
+         * checks, ignoring case, whether the token that will be returned by the next next() call starts with
+         * the given keyword, without creating a String for it
+         *
+         * @param keyword the keyword
+         * @return true if the next token starts with the keyword
+         * @throws NoSuchElementException
+         */
+        public boolean peekNextStartsWith(Keyword keyword) throws NoSuchElementException
+        {
+            int next = nextSignificantPart();
+            if(!hasToken(next))
+            {
+                throw new NoSuchElementException();
+            }
+            if(tokenTexts != null && tokenTexts[next] != null)
+            {
+                return keyword.isStartOf(tokenTexts[next], 0, tokenTexts[next].length());
+            }
+            return keyword.isStartOf(query, tokenStarts[next], tokenEnds[next]);
+        }
+
+        /**
+         * checks whether the token that will be returned by the next next() call starts with the given
+         * character, without creating a String for it
+         *
+         * @param c the character
+         * @return true if the next token starts with c
+         * @throws NoSuchElementException
+         */
+        public boolean peekNextStartsWith(char c) throws NoSuchElementException
+        {
+            int next = nextSignificantPart();
+            if(!hasToken(next))
+            {
+                throw new NoSuchElementException();
+            }
+            if(tokenTexts != null && tokenTexts[next] != null)
+            {
+                return tokenTexts[next].length() > 0 && tokenTexts[next].charAt(0) == c;
+            }
+            return query.charAt(tokenStarts[next]) == c;
         }
 
         /**
          * returns the current part including newlines
          *
-         * @return splitQuery[++currentPart]
+         * @return tokens[++currentPart]
          */
         public String nextIncludingNewLines()
         {
-            if(currentPart < splitQuery.length)
+            if(hasToken(currentPart))
             {
-                if(splitQuery[currentPart].equals("\n")) {
+                if(isNewLine(currentPart)) {
                     ++this.currentLine;
+                    // the newline is no longer in front of the next significant token
+                    --this.newLinesBeforeSignificant;
                 }
-                return splitQuery[currentPart++];
+                if(currentPart >= this.significantPart)
+                {
+                    // the next significant token itself is consumed
+                    this.significantPart = -1;
+                }
+                return token(currentPart++);
             }
             throw new NoSuchElementException();
         }
@@ -334,12 +696,11 @@ public class SplitQuery implements Iterable<String>
          */
         public String peekNextIncludingNewLines()
         {
-            int currentCurrentPart = currentPart;
-            int currentCurrentLine = currentLine;
-            String next = nextIncludingNewLines();
-            currentPart = currentCurrentPart;
-            currentLine = currentCurrentLine;
-            return next;
+            if(hasToken(currentPart))
+            {
+                return token(currentPart);
+            }
+            throw new NoSuchElementException();
         }
 
         /**
@@ -353,6 +714,45 @@ public class SplitQuery implements Iterable<String>
             throw new UnsupportedOperationException();
         }
 
+        /**
+         * @return the offset in the query where the token that was returned last starts, -1 if no token was
+         *         returned yet or if that token was made up by the parser (see replaceCurrent)
+         */
+        public int getCurrentStart()
+        {
+            int last = currentPart - 1;
+            if(last < 0 || (tokenTexts != null && tokenTexts[last] != null))
+            {
+                return -1;
+            }
+            return tokenStarts[last];
+        }
+
+        /**
+         * @return the offset in the query just after the token that was returned last, -1 if no token was
+         *         returned yet or if that token was made up by the parser (see replaceCurrent)
+         */
+        public int getCurrentEnd()
+        {
+            int last = currentPart - 1;
+            if(last < 0 || (tokenTexts != null && tokenTexts[last] != null))
+            {
+                return -1;
+            }
+            return tokenEnds[last];
+        }
+
+        /**
+         * The text getCurrentStart and getCurrentEnd point into. Its offsets are characters for a query that
+         * is a String and bytes for a query that is a buffer of UTF-8 bytes.
+         *
+         * @return the text of the query, null if the query is read from a Reader because its text is not kept
+         */
+        public CharSequence getQueryText()
+        {
+            return wholeText ? query : null;
+        }
+
         /**
          * returns the currentline number in the original string
          *
@@ -365,7 +765,7 @@ public class SplitQuery implements Iterable<String>
 
         /**
          * returns up to the last 5 tokens that were extracted
-         * @return splitQuery[currentPart - 5 ... currentPart]
+         * @return tokens[currentPart - 5 ... currentPart]
          */
         public String getPrevious()
         {
@@ -385,13 +785,199 @@ public class SplitQuery implements Iterable<String>
             if(goBackPos < 0)
                 goBackPos = 0;
 
-            String toreturn = "";
+            StringBuilder toreturn = new StringBuilder();
 
             for(int i = goBackPos; i < currentPart; ++i)
             {
-                toreturn += " " + splitQuery[i];
+                toreturn.append(' ').append(getToken(i));
             }
-            return toreturn.trim();
+            return toreturn.toString().trim();
         }
+
+        /**
+         * Looks up the next token that is not a newline or carriage return. Every token is only looked at
+         * once, the result is remembered until that token is consumed.
+         *
+         * @return the index of the next significant token, the number of tokens if there is none
+         */
+        private int nextSignificantPart()
+        {
+            if(this.significantPart < 0)
+            {
+                if(streaming)
+                {
+                    discardConsumedTokens();
+                }
+
+                int i = this.currentPart;
+                int newLines = 0;
+                while(hasToken(i) && isBlank(i))
+                {
+                    if(isNewLine(i))
+                        ++newLines;
+                    ++i;
+                }
+                this.significantPart = i;
+                this.newLinesBeforeSignificant = newLines;
+            }
+            return this.significantPart;
+        }
+
+        /**
+         * Throws away the tokens of a streamed query that were consumed, except for the last HISTORY ones, once
+         * they fill half of the token table. The text of the query in front of the tokens that are kept is
+         * released. This keeps the token table bounded by the tokens that are looked ahead.
+         *
+         * This is only done when no index into the token table is held outside of this iterator's fields.
+         */
+        private void discardConsumedTokens()
+        {
+            int discard = this.currentPart - HISTORY;
+            if(discard < tokenStarts.length / 2)
+            {
+                return;
+            }
+
+            removeTokens(0, discard);
+            discardedTokens += discard;
+            this.currentPart -= discard;
+            this.cachedPart = -1;
+            query.release(tokenStarts[0]);
+        }
+
+        /**
+         * returns the token at the given index as a String, remembering the last one
+         *
+         * @param index the index of the token
+         * @return the token as a String
+         */
+        private String token(int index)
+        {
+            if(index != this.cachedPart)
+            {
+                this.cachedToken = getToken(index);
+                this.cachedPart = index;
+            }
+            return this.cachedToken;
+        }
+    }
+
+    /**
+     * removes count tokens from the given index on, the tokens after them are moved forward
+     *
+     * @param index the index of the first token
+     * @param count the number of tokens to remove
+     */
+    private void removeTokens(int index, int count)
+    {
+        int moved = this.tokenCount - index - count;
+        System.arraycopy(this.tokenStarts, index + count, this.tokenStarts, index, moved);
+        System.arraycopy(this.tokenEnds, index + count, this.tokenEnds, index, moved);
+        System.arraycopy(this.tokenKinds, index + count, this.tokenKinds, index, moved);
+        System.arraycopy(this.tokenKeywords, index + count, this.tokenKeywords, index, moved);
+        System.arraycopy(this.tokenVariables, index + count, this.tokenVariables, index, moved);
+        if(this.tokenTexts != null)
+        {
+            System.arraycopy(this.tokenTexts, index + count, this.tokenTexts, index, moved);
+            Arrays.fill(this.tokenTexts, this.tokenCount - count, this.tokenCount, null);
+        }
+        this.tokenCount -= count;
+    }
+
+    /**
+     * points the token at the given index to a part of the query, its kind and keyword are set to what the
+     * lexer would have given that part of the query
+     *
+     * @param index the index of the token
+     * @param start the start offset of the token in the query
+     * @param end the end offset of the token in the query
+     */
+    private void setTokenOffsets(int index, int start, int end)
+    {
+        int kind = kindOf(start, end);
+        this.tokenStarts[index] = start;
+        this.tokenEnds[index] = end;
+        this.tokenKinds[index] = kind;
+        this.tokenKeywords[index] = (kind == SPARQLLexer.TOKEN_WORD) ? Keyword.lookup(this.query, start, end) : Keyword.NONE;
+        this.tokenVariables[index] = (kind == SPARQLLexer.TOKEN_WORD) ? variableOffset(start, end) : -1;
+    }
+
+    /**
+     * @param start the start offset of a token in the query
+     * @param end the end offset of a token in the query
+     * @return the offset of the first '?' in that part of the query relative to start, -1 if there is none
+     */
+    private int variableOffset(int start, int end)
+    {
+        for(int i = start; i < end; ++i)
+        {
+            if(this.query.charAt(i) == '?')
+            {
+                return i - start;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param start the start offset of a token in the query
+     * @param end the end offset of a token in the query
+     * @return the kind the lexer would give to that part of the query
+     */
+    private int kindOf(int start, int end)
+    {
+        char first = this.query.charAt(start);
+        if(end - start == 1)
+        {
+            switch(first)
+            {
+                case '\n': return SPARQLLexer.TOKEN_NEWLINE;
+                case '\r': return SPARQLLexer.TOKEN_CARRIAGE_RETURN;
+                case '{': return SPARQLLexer.TOKEN_OPEN_BRACE;
+                case '}': return SPARQLLexer.TOKEN_CLOSE_BRACE;
+                default: break;
+            }
+        }
+        if(first == '\"') return SPARQLLexer.TOKEN_STRING;
+        if(first == '<') return SPARQLLexer.TOKEN_URI;
+        return SPARQLLexer.TOKEN_WORD;
+    }
+
+    /**
+     * @param text the text that contains the token
+     * @param start the start offset of the token in text
+     * @param end the end offset of the token in text
+     * @param lowerCaseStart the start, in lower case
+     * @return true if the lower case version of the token starts with lowerCaseStart
+     */
+    private static boolean startsWithLowerCase(CharSequence text, int start, int end, String lowerCaseStart)
+    {
+        if(end - start < lowerCaseStart.length())
+        {
+            return false;
+        }
+        for(int i = 0; i < lowerCaseStart.length(); ++i)
+        {
+            if(Character.toLowerCase(text.charAt(start + i)) != lowerCaseStart.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param token a token that was not created by the lexer
+     * @return the kind the lexer would have given to the token
+     */
+    private static int kindOf(String token)
+    {
+        if(token.equals("\n")) return SPARQLLexer.TOKEN_NEWLINE;
+        if(token.equals("\r")) return SPARQLLexer.TOKEN_CARRIAGE_RETURN;
+        if(token.equals("{")) return SPARQLLexer.TOKEN_OPEN_BRACE;
+        if(token.equals("}")) return SPARQLLexer.TOKEN_CLOSE_BRACE;
+        if(token.startsWith("\"")) return SPARQLLexer.TOKEN_STRING;
+        if(token.startsWith("<")) return SPARQLLexer.TOKEN_URI;
+        return SPARQLLexer.TOKEN_WORD;
     }
 }
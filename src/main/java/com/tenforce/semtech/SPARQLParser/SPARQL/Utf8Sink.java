@@ -0,0 +1,203 @@
+package com.tenforce.semtech.SPARQLParser.SPARQL;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * An Appendable that encodes everything that is appended to it as UTF-8 straight into a ByteBuffer, so a
+ * query can be written as bytes (see SPARQLQuery.writeUtf8) without turning it into a String first.
+ *
+ * The buffer is either given by the caller, the bytes are then put at its position and a
+ * BufferOverflowException is thrown if they do not fit, or owned by the sink, it then grows when it is full.
+ *
+ * Characters are encoded the way String.getBytes(UTF_8) encodes them: a surrogate pair becomes a single 4 byte
+ * character, even if its halves are appended separately, and a surrogate without its other half becomes a '?'.
+ */
+class Utf8Sink implements Appendable
+{
+    // the buffer the bytes are put in
+    private ByteBuffer buffer;
+
+    // true if the buffer belongs to this sink and may be replaced by a larger one
+    private final boolean growable;
+
+    // a high surrogate that was appended last and still waits for its low surrogate, 0 if there is none
+    private char highSurrogate = 0;
+
+    /**
+     * creates a sink that writes into the given buffer, from its position on
+     *
+     * @param buffer the buffer
+     */
+    Utf8Sink(ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+        this.growable = false;
+    }
+
+    /**
+     * creates a sink with its own buffer, that grows when it is full
+     *
+     * @param capacity the initial capacity of the buffer in bytes
+     */
+    Utf8Sink(int capacity)
+    {
+        this.buffer = ByteBuffer.allocate(Math.max(capacity, 16));
+        this.growable = true;
+    }
+
+    public Utf8Sink append(CharSequence text)
+    {
+        text = String.valueOf(text);
+        return append(text, 0, text.length());
+    }
+
+    public Utf8Sink append(CharSequence text, int start, int end)
+    {
+        if(text == null)
+        {
+            text = "null";
+        }
+
+        int i = start;
+        // plain ascii is copied without looking at the rest of the encoding
+        if(this.highSurrogate == 0)
+        {
+            ensureRemaining(end - start);
+            while(i < end)
+            {
+                char c = text.charAt(i);
+                if(c >= 0x80)
+                {
+                    break;
+                }
+                this.buffer.put((byte) c);
+                ++i;
+            }
+        }
+        for(; i < end; ++i)
+        {
+            append(text.charAt(i));
+        }
+        return this;
+    }
+
+    public Utf8Sink append(char c)
+    {
+        if(this.highSurrogate != 0)
+        {
+            char high = this.highSurrogate;
+            this.highSurrogate = 0;
+            if(Character.isLowSurrogate(c))
+            {
+                int codePoint = Character.toCodePoint(high, c);
+                ensureRemaining(4);
+                this.buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                this.buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                this.buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                this.buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                return this;
+            }
+            putByte('?');
+        }
+
+        if(c < 0x80)
+        {
+            putByte(c);
+        }
+        else if(c < 0x800)
+        {
+            ensureRemaining(2);
+            this.buffer.put((byte) (0xC0 | (c >> 6)));
+            this.buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+        else if(Character.isHighSurrogate(c))
+        {
+            this.highSurrogate = c;
+        }
+        else if(Character.isLowSurrogate(c))
+        {
+            putByte('?');
+        }
+        else
+        {
+            ensureRemaining(3);
+            this.buffer.put((byte) (0xE0 | (c >> 12)));
+            this.buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            this.buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+        return this;
+    }
+
+    /**
+     * copies bytes that are already UTF-8 encoded, for instance a part of the original text of a query
+     *
+     * @param utf8 the buffer the bytes are in, its position and limit are not changed
+     * @param start the index of the first byte
+     * @param end the index just after the last byte
+     * @return this sink
+     */
+    Utf8Sink appendUtf8(ByteBuffer utf8, int start, int end)
+    {
+        if(this.highSurrogate != 0)
+        {
+            this.highSurrogate = 0;
+            putByte('?');
+        }
+        ensureRemaining(end - start);
+        ByteBuffer bytes = utf8.duplicate();
+        bytes.limit(end);
+        bytes.position(start);
+        this.buffer.put(bytes);
+        return this;
+    }
+
+    /**
+     * writes out a high surrogate that never got its low surrogate, this has to be called once everything
+     * is appended
+     *
+     * @return the buffer the bytes were put in, its position is just after the last byte
+     */
+    ByteBuffer finish()
+    {
+        if(this.highSurrogate != 0)
+        {
+            this.highSurrogate = 0;
+            putByte('?');
+        }
+        return this.buffer;
+    }
+
+    /**
+     * @param c an ascii character
+     */
+    private void putByte(char c)
+    {
+        ensureRemaining(1);
+        this.buffer.put((byte) c);
+    }
+
+    /**
+     * makes sure the given amount of bytes fits in the buffer
+     *
+     * @param bytes the amount of bytes
+     * @throws BufferOverflowException if they do not fit in a buffer of the caller
+     */
+    private void ensureRemaining(int bytes)
+    {
+        if(this.buffer.remaining() >= bytes)
+        {
+            return;
+        }
+        if(!this.growable)
+        {
+            throw new BufferOverflowException();
+        }
+
+        int capacity = Math.max(this.buffer.capacity() * 2, this.buffer.position() + bytes);
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        this.buffer.flip();
+        grown.put(this.buffer);
+        this.buffer = grown;
+    }
+}
@@ -0,0 +1,48 @@
+package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
+
+/**
+ * A visitor that does nothing and walks into every block, subclasses override the methods for the kinds of
+ * statements they care about.
+ */
+public abstract class AbstractStatementVisitor implements IStatementVisitor
+{
+    public boolean visit(SimpleStatement statement)
+    {
+        return true;
+    }
+
+    public boolean visit(ParenthesesBlock block)
+    {
+        return true;
+    }
+
+    public boolean visit(AskBlock block)
+    {
+        return true;
+    }
+
+    public boolean visit(SelectBlock block)
+    {
+        return true;
+    }
+
+    public boolean visit(DescribeBlock block)
+    {
+        return true;
+    }
+
+    public boolean visit(ConstructBlock block)
+    {
+        return true;
+    }
+
+    public boolean visit(UpdateBlockStatement block)
+    {
+        return true;
+    }
+
+    public boolean visit(WhereBlockStatement block)
+    {
+        return true;
+    }
+}
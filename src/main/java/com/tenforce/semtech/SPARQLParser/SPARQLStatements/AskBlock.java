@@ -3,6 +3,9 @@ package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
 import com.tenforce.semtech.SPARQLParser.SPARQL.InvalidSPARQLException;
 import com.tenforce.semtech.SPARQLParser.SPARQL.SplitQuery;
 
+import java.io.IOException;
+import java.util.List;
+
 /**
  * Created by langens-jonathan on 25.07.16.
  *
@@ -34,23 +37,69 @@ public class AskBlock extends ParenthesesBlock {
     }
 
     /**
-     * The standard string representation for this object. It is the representation that this block
-     * would have inside a valid SPARQL query
+     * constructor that is only intended to be used for copying this object
+     *
+     * @param statements the statements between the parentheses
+     * @param graph the graph
+     */
+    private AskBlock(List<IStatement> statements, String graph)
+    {
+        super(statements, graph);
+    }
+
+    /**
+     * writes the string representation of this block to the output
      *
-     * @return the string representation
+     * @param out the output
+     * @throws IOException if the output cannot be written to
      */
-    public String toString()
+    public void writeTo(Appendable out) throws IOException
     {
-        String toreturn = "ASK\n{\n";
+        if(this.state.rendered != null)
+        {
+            out.append(this.state.rendered);
+            return;
+        }
+
+        out.append("ASK\n{\n");
+
+        Statements.writeTo(this.statements, out);
+
+        out.append("\n}");
+    }
 
-        for(IStatement statement:this.statements)
+    /**
+     * @return the length of the string representation of this block
+     */
+    public int getLength()
+    {
+        if(this.state.rendered != null)
         {
-            toreturn += statement.toString();
+            return this.state.rendered.length();
         }
 
-        toreturn += "\n}";
+        return "ASK\n{\n".length() + Statements.length(this.statements) + "\n}".length();
+    }
 
-        return toreturn;
+    /**
+     * makes sure clones and copies of an ask block are ask blocks as well
+     *
+     * @param statements the statements of the new block
+     * @param graph the graph of the new block
+     * @return a new ask block
+     */
+    protected AskBlock newBlock(List<IStatement> statements, String graph)
+    {
+        return new AskBlock(statements, graph);
+    }
+
+    /**
+     * @param visitor the visitor
+     * @return what visitor.visit(this) returned
+     */
+    public boolean accept(IStatementVisitor visitor)
+    {
+        return visitor.visit(this);
     }
 
     /**
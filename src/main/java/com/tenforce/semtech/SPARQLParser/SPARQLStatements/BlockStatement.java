@@ -1,7 +1,10 @@
 package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
 
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by langens-jonathan on 20.07.16.
@@ -31,6 +34,10 @@ public abstract class BlockStatement implements IStatement
         INSERT, DELETE, WHERE, SELECT
     }
 
+    // where the block was found in the text of the query, the block it is in and its string representation,
+    // see StatementState
+    final StatementState state = new StatementState();
+
     // the type
     protected BLOCKTYPE type;
 
@@ -40,12 +47,16 @@ public abstract class BlockStatement implements IStatement
     // the statments between it's brackets
     protected List<IStatement> statements;
 
+    // true once the block is frozen
+    protected boolean frozen = false;
+
+
     /**
      * Default constructor initializes the statements list.
      */
     public BlockStatement()
     {
-        statements = new ArrayList<IStatement>();
+        statements = new TrackedList<IStatement>(this.state);
     }
 
     /**
@@ -65,19 +76,56 @@ public abstract class BlockStatement implements IStatement
         return this.graph;
     }
 
+    /**
+     * @return an unmodifiable set with the graphs named in this block and in all blocks inside it, it is kept
+     *         until a graph inside the block changes, see StatementState
+     */
+    public Set<String> getGraphs()
+    {
+        return this.state.graphs(this, this.graph, this.statements);
+    }
+
     /**
      * @param graph this.graph = graph
      */
-    public void setGraph(String graph){this.graph = graph;}
+    public void setGraph(String graph)
+    {
+        Statements.checkNotFrozen(this.frozen);
+        this.graph = graph;
+        this.state.graphChanged();
+    }
 
     /**
-     * @return the statements in this block
+     * @return the statements in this block, if the block is not frozen the caller may change them
      */
     public List<IStatement> getStatements()
     {
         return this.statements;
     }
 
+    /**
+     * the unknowns are calculated the first time they are asked for and kept until the statements of this
+     * block can have changed
+     *
+     * @return an unmodifiable set containing all unknowns in the statements of this block, copy it to change it
+     */
+    public Set<String> getUnknowns()
+    {
+        return this.state.unknowns(this, this.statements, null);
+    }
+
+    /**
+     * the unknowns of this block as a set of ids of the given table, it is calculated once per table from the
+     * sets of the statements in the block and kept as long as getUnknowns() is
+     *
+     * @param table the variable table of the query
+     * @return the set of unknowns
+     */
+    public VariableSet getUnknowns(VariableTable table)
+    {
+        return this.state.unknowns(this, table, this.statements, null);
+    }
+
 
     /**
      * this will propagate the replacement of ALL subsequent graph statements with the new
@@ -89,9 +137,10 @@ public abstract class BlockStatement implements IStatement
      */
     public void replaceGraphStatements(String newGraph)
     {
+        Statements.checkNotFrozen(this.frozen);
         this.graph = newGraph;
-        for(IStatement s :  this.statements)
-            s.replaceGraphStatements(newGraph);
+        this.state.graphChanged();
+        Statements.replaceGraphStatements(this.statements, newGraph);
     }
 
     /**
@@ -104,13 +153,163 @@ public abstract class BlockStatement implements IStatement
      */
     public void replaceGraphStatements(String oldGraph, String newGraph)
     {
-        if(this.graph.equals(oldGraph))
+        Statements.checkNotFrozen(this.frozen);
+        if(Statements.sameGraph(this.graph, oldGraph))
+        {
             this.graph = newGraph;
+            this.state.graphChanged();
+        }
+
+        Statements.replaceGraphStatements(this.statements, oldGraph, newGraph);
+    }
+
+    /**
+     * replaces the graph of this block, and of all statements inside it, that is a key in the map by the
+     * graph it maps to, in a single pass
+     *
+     * @param graphs the old graph names mapped on the new ones
+     * @param touched the set the old names of the graphs that were replaced are added to
+     */
+    public void remapGraphs(Map<String, String> graphs, Set<String> touched)
+    {
+        Statements.checkNotFrozen(this.frozen);
+        String graph = Statements.remapGraph(this.graph, graphs, touched);
+        if(graph != this.graph)
+        {
+            this.graph = graph;
+            this.state.graphChanged();
+        }
+
+        Statements.remapGraphs(this.statements, graphs, touched);
+    }
 
-        for(IStatement s : this.statements)
-            s.replaceGraphStatements(oldGraph, newGraph);
+    /**
+     * freezes this block and all statements inside it
+     *
+     * @return this block
+     */
+    public BlockStatement freeze()
+    {
+        if(!this.frozen)
+        {
+            this.statements = Statements.freeze(this.statements);
+            this.frozen = true;
+        }
+        return this;
+    }
+
+    /**
+     * @return true if this block is frozen
+     */
+    public boolean isFrozen()
+    {
+        return this.frozen;
     }
 
+    /**
+     * the immutable version of replaceGraphStatements(newGraph), this block is frozen first
+     *
+     * @param newGraph the name of the new graph
+     * @return a frozen block that shares all unchanged statements, this block if nothing changes
+     */
+    public BlockStatement withGraphStatements(String newGraph)
+    {
+        freeze();
+        List<IStatement> statements = Statements.withGraphStatements(this.statements, newGraph);
+        if(statements == this.statements && Statements.sameGraph(this.graph, newGraph))
+        {
+            return this;
+        }
+        return copy(newGraph, statements);
+    }
+
+    /**
+     * the immutable version of replaceGraphStatements(oldGraph, newGraph), this block is frozen first
+     *
+     * @param oldGraph the name of tha graph that needs be replaced
+     * @param newGraph the new graph name
+     * @return a frozen block that shares all unchanged statements, this block if nothing changes
+     */
+    public BlockStatement withGraphStatements(String oldGraph, String newGraph)
+    {
+        freeze();
+        String graph = Statements.sameGraph(this.graph, oldGraph) ? newGraph : this.graph;
+        List<IStatement> statements = Statements.withGraphStatements(this.statements, oldGraph, newGraph);
+        if(statements == this.statements && Statements.sameGraph(this.graph, graph))
+        {
+            return this;
+        }
+        return copy(graph, statements);
+    }
+
+    /**
+     * the immutable version of remapGraphs, this block is frozen first
+     *
+     * @param graphs the old graph names mapped on the new ones
+     * @param touched the set the old names of the graphs that were replaced are added to
+     * @return a frozen block that shares all unchanged statements, this block if nothing changes
+     */
+    public BlockStatement withRemappedGraphs(Map<String, String> graphs, Set<String> touched)
+    {
+        freeze();
+        String graph = Statements.remapGraph(this.graph, graphs, touched);
+        List<IStatement> statements = Statements.withRemappedGraphs(this.statements, graphs, touched);
+        if(statements == this.statements && Statements.sameGraph(this.graph, graph))
+        {
+            return this;
+        }
+        return copy(graph, statements);
+    }
+
+    /**
+     * @return a string representation of this block, it is kept until the block changes, see StatementState
+     */
+    public String toString()
+    {
+        return this.state.toString(this);
+    }
+
+    /**
+     * makes a frozen copy of this frozen block with another graph and other statements, all other members
+     * are shared with this block
+     *
+     * @param graph the graph of the copy
+     * @param statements the frozen statements of the copy
+     * @return the copy
+     */
+    private BlockStatement copy(String graph, List<IStatement> statements)
+    {
+        BlockStatement copy = shallowCopy();
+        copy.graph = graph;
+        copy.statements = statements;
+        copy.state.source = this.state.source;
+        copy.frozen = true;
+        // only graph names changed, and those do not change the unknowns
+        copy.state.unknowns = this.state.unknowns;
+        copy.state.unknownSet = this.state.unknownSet;
+        return copy;
+    }
+
+    /**
+     * @return a copy of this block that is neither frozen nor shared, the statements inside it are shared with
+     *         this block, see Statements.writable
+     */
+    BlockStatement writableCopy()
+    {
+        BlockStatement copy = shallowCopy();
+        copy.statements = new TrackedList<IStatement>(copy.state, Statements.share(this.statements));
+        copy.state.copy(this.state);
+        return copy;
+    }
+
+    /**
+     * forcing subsequent classes to provide a copy of themselves that shares all their members, it is only
+     * used on frozen blocks and on shared blocks that are about to be changed
+     *
+     * @return a new block of the same class with the same members
+     */
+    protected abstract BlockStatement shallowCopy();
+
     /**
      * forcing subsequent classes to override the clone method
      * @return a clone of the inheriting object
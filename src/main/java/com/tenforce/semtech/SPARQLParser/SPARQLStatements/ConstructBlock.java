@@ -1,11 +1,15 @@
 package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
 
 import com.tenforce.semtech.SPARQLParser.SPARQL.InvalidSPARQLException;
+import com.tenforce.semtech.SPARQLParser.SPARQL.SPARQLLexer.Keyword;
 import com.tenforce.semtech.SPARQLParser.SPARQL.SplitQuery;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -26,21 +30,30 @@ import java.util.Set;
  */
 public class ConstructBlock implements IStatement
 {
+    // where the block was found in the text of the query, the block it is in and its string representation,
+    // see StatementState
+    final StatementState state = new StatementState();
+
     // the construct block as it is simple it can be represented with a string
     private String constuctBlock = "";
 
     // the statements in the where block
-    private List<IStatement> statements = new ArrayList<IStatement>();
+    List<IStatement> statements = new TrackedList<IStatement>(this.state);
 
     // the selection modifier
     private String selectModifier = ""; // normally this is DISTINCT or REDUCE
 
     // the solution modifier
-    private List<String> solutionModifier = new ArrayList<String>();
+    private List<String> solutionModifier = new TrackedList<String>(this.state);
 
     // the graph upon which it operates
     private String graph = null;
 
+    // true once the block is frozen
+    private boolean frozen = false;
+
+
+
     /**
      * Default constructor takes an iterator just after the CONSTRUCT token has been found and constructs
      * this object from there.
@@ -66,14 +79,26 @@ public class ConstructBlock implements IStatement
      * Forced to override method by IStatement. For this object it will contain all unknowns
      * present in the where clause.
      *
-     * @return all unknowns present in sub statements
+     * The unknowns are calculated the first time they are asked for and kept until the statements can have
+     * changed.
+     *
+     * @return an unmodifiable set with all unknowns present in sub statements, copy it to change it
      */
     public Set<String> getUnknowns()
     {
-        Set<String> u = new HashSet<String>();
-        for(IStatement s : this.statements)
-            u.addAll(s.getUnknowns());
-        return u;
+        return this.state.unknowns(this, this.statements, null);
+    }
+
+    /**
+     * the unknowns of this block as a set of ids of the given table, it is calculated once per table from the
+     * sets of the statements in the block and kept as long as getUnknowns() is
+     *
+     * @param table the variable table of the query
+     * @return the set of unknowns
+     */
+    public VariableSet getUnknowns(VariableTable table)
+    {
+        return this.state.unknowns(this, table, this.statements, null);
     }
 
     /**
@@ -86,6 +111,8 @@ public class ConstructBlock implements IStatement
      */
     public void calculateBlock(SplitQuery.SplitQueryIterator iterator) throws InvalidSPARQLException
     {
+        int start = iterator.getCurrentStart(); // the CONSTRUCT
+
         if(!iterator.hasNext())
         {
             throw new InvalidSPARQLException("Invalid SPARQL: on line " + iterator.getCurrentLine() + " near: " + iterator.getPrevious());
@@ -96,23 +123,25 @@ public class ConstructBlock implements IStatement
             throw new InvalidSPARQLException("Invalid SPARQL at line " + iterator.getCurrentLine() + " expected '{' after " + iterator.getPrevious());
         }
 
+        StringBuilder block = new StringBuilder(this.constuctBlock);
         while(!iterator.peekNextIncludingNewLines().equals("}"))
         {
-            this.constuctBlock += iterator.nextIncludingNewLines() + " ";
+            block.append(iterator.nextIncludingNewLines()).append(' ');
         }
 
-        if(!this.constuctBlock.isEmpty())
-            this.constuctBlock = this.constuctBlock.substring(0, this.constuctBlock.length() - 1);
+        if(block.length() > 0)
+            block.setLength(block.length() - 1);
+        this.constuctBlock = block.toString();
 
         iterator.next(); // should be the '}'
 
-        if(!(iterator.next().toLowerCase().equals("where")))
+        if(iterator.nextKeyword() != Keyword.WHERE)
         {
             throw new InvalidSPARQLException("Invalid SPARQL at line " + iterator.getCurrentLine() + " expected 'WHERE' after " + iterator.getPrevious());
         }
 
 
-        if(!iterator.next().toLowerCase().equals("{"))
+        if(!iterator.next().equals("{"))
         {
             throw new InvalidSPARQLException("Invalid SPARQL at line " + iterator.getCurrentLine() + " expected '{' after " + iterator.getPrevious());
         }
@@ -121,12 +150,12 @@ public class ConstructBlock implements IStatement
         this.parseBlock(iterator);
 
         // now we might still have solution modifiers
-        while(iterator.hasNext() && (iterator.peekNext().toLowerCase().equals("limit") ||
-                iterator.peekNext().toLowerCase().equals("offset") ||
-                iterator.peekNext().toLowerCase().startsWith("order") ||
-                iterator.peekNext().toLowerCase().startsWith("group")))
+        while(iterator.hasNext() && (iterator.peekNextKeyword() == Keyword.LIMIT ||
+                iterator.peekNextKeyword() == Keyword.OFFSET ||
+                iterator.peekNextStartsWith(Keyword.ORDER) ||
+                iterator.peekNextStartsWith(Keyword.GROUP)))
         {
-            if(iterator.peekNext().toLowerCase().startsWith("group"))
+            if(iterator.peekNextStartsWith(Keyword.GROUP))
             {
                 // group by clause
                 // for now I expect this to be of the form:
@@ -137,7 +166,7 @@ public class ConstructBlock implements IStatement
                     throw new InvalidSPARQLException("Invalid SPARQL on line: " + iterator.getCurrentLine() + " near: " + iterator.getPrevious());
                 }
                 String by = iterator.next();
-                if(!by.toLowerCase().equals("by"))
+                if(iterator.getCurrentKeyword() != Keyword.BY)
                 {
                     throw new InvalidSPARQLException("Invalid SPARQL on line: " + iterator.getCurrentLine() + " expected 'BY' near: " + iterator.getPrevious());
                 }
@@ -153,15 +182,17 @@ public class ConstructBlock implements IStatement
                 this.solutionModifier.add(group + " " + by + " " + variable);
 
             }
-            if(iterator.peekNext().toLowerCase().equals("limit") ||
-                    iterator.peekNext().toLowerCase().equals("offset"))
+            if(iterator.peekNextKeyword() == Keyword.LIMIT ||
+                    iterator.peekNextKeyword() == Keyword.OFFSET)
             {
                 this.solutionModifier.add(iterator.next() + " "  + iterator.next());
             }
             else
             {
-                String orderClause = iterator.next() + " " + iterator.next(); // this should be ORDER BY
-                if(!orderClause.toLowerCase().equals("order by"))
+                String order = iterator.next(); // this should be ORDER
+                boolean isOrder = iterator.getCurrentKeyword() == Keyword.ORDER;
+                String orderClause = order + " " + iterator.next(); // this should be ORDER BY
+                if(!isOrder || iterator.getCurrentKeyword() != Keyword.BY)
                 {
                     throw new InvalidSPARQLException("Invalid SPARQL at line : " + iterator.getCurrentLine() + " expected 'order by' instead of '" + orderClause + "' after " + iterator.getPrevious());
                 }
@@ -169,6 +200,7 @@ public class ConstructBlock implements IStatement
             }
         }
 
+        this.state.source = SourceSpan.of(iterator, start, -1, -1, null);
     }
 
     /**
@@ -180,36 +212,38 @@ public class ConstructBlock implements IStatement
      */
     private void parseBlock(SplitQuery.SplitQueryIterator iterator) throws InvalidSPARQLException
     {
-        String block = "";
+        StringBuilder block = new StringBuilder();
+        Set<String> blockUnknowns = null; // the unknowns in block, collected while it is read
+        boolean blockIsEmpty = true; // true as long as the block only holds whitespace
 
         while (iterator.hasNextIncludingNewLines()) {
             // do we get a new inner block
-            if (iterator.peekNext().startsWith("}")) {
+            if (iterator.peekNextStartsWith('}')) {
                 int i = 0; // fu intellij
                 iterator.next();
                 iterator.breakOff("}");
-                statements.add(new SimpleStatement(block));
+                statements.add(new SimpleStatement(block.toString(), blockUnknowns));
                 return;
             }
 
             // hooray we have a new inner block!
-            if(iterator.peekNext().startsWith("{") || iterator.peekNext().toLowerCase().startsWith("graph")) {
-                if(!block.trim().isEmpty())
+            if(iterator.peekNextStartsWith('{') || iterator.peekNextStartsWith(Keyword.GRAPH)) {
+                if(!blockIsEmpty)
                 {
-                    statements.add(new SimpleStatement(block));
+                    statements.add(new SimpleStatement(block.toString(), blockUnknowns));
                 }
-                block = "";
+                block.setLength(0);
+                blockUnknowns = null;
+                blockIsEmpty = true;
                 statements.add(new ParenthesesBlock(iterator, true));
                 continue;
             }
 
             String nextPart = iterator.nextIncludingNewLines();
 
-            if (nextPart.trim().equals("\n")) {
-                block += nextPart;
-            } else {
-                block += " " + nextPart;
-            }
+            block.append(' ').append(nextPart);
+            blockUnknowns = iterator.addVariables(blockUnknowns);
+            blockIsEmpty = blockIsEmpty && nextPart.trim().isEmpty();
         }
     }
 
@@ -221,23 +255,55 @@ public class ConstructBlock implements IStatement
      */
     public String toString()
     {
-        String toreturn = "";
+        return this.state.toString(this);
+    }
 
+    /**
+     * writes the string representation of this block to the output
+     *
+     * @param out the output
+     * @throws IOException if the output cannot be written to
+     */
+    public void writeTo(Appendable out) throws IOException
+    {
+        if(this.state.rendered != null)
+        {
+            out.append(this.state.rendered);
+            return;
+        }
 
-        toreturn += "CONSTRUCT\n{\n" + this.constuctBlock + "\n}\n";
-        toreturn += "WHERE\n{\n";
+        out.append("CONSTRUCT\n{\n").append(this.constuctBlock).append("\n}\n");
+        out.append("WHERE\n{\n");
 
-        for(IStatement statement : statements)
-            toreturn += statement.toString();
+        Statements.writeTo(this.statements, out);
 
-        toreturn += "\n}";
+        out.append("\n}");
 
         for(String smod : this.solutionModifier)
         {
-            toreturn += smod + "\n";
+            out.append(smod).append("\n");
         }
+    }
 
-        return toreturn;
+    /**
+     * @return the length of the string representation of this block
+     */
+    public int getLength()
+    {
+        if(this.state.rendered != null)
+        {
+            return this.state.rendered.length();
+        }
+
+        int length = "CONSTRUCT\n{\n".length() + Statements.length(this.constuctBlock) + "\n}\n".length();
+        length += "WHERE\n{\n".length() + Statements.length(this.statements) + "\n}".length();
+
+        for(String smod : this.solutionModifier)
+        {
+            length += Statements.length(smod) + 1;
+        }
+
+        return length;
     }
 
     /**
@@ -245,6 +311,8 @@ public class ConstructBlock implements IStatement
      */
     public void setConstuctBlock(String constructBlock)
     {
+        Statements.checkNotFrozen(this.frozen);
+        this.state.changed();
         this.constuctBlock = constructBlock;
     }
 
@@ -253,6 +321,8 @@ public class ConstructBlock implements IStatement
      */
     public void setSelectModifier(String selectModifier)
     {
+        Statements.checkNotFrozen(this.frozen);
+        this.state.changed();
         this.selectModifier = selectModifier;
     }
 
@@ -261,6 +331,10 @@ public class ConstructBlock implements IStatement
      */
     public void setSolutionModifier(List<String>solutionModifier)
     {
+        Statements.checkNotFrozen(this.frozen);
+        // the caller may still change the list
+        this.state.changed();
+        this.state.untrack();
         this.solutionModifier = solutionModifier;
     }
 
@@ -277,10 +351,16 @@ public class ConstructBlock implements IStatement
      */
     public void setStatements(List<IStatement> statements)
     {
+        Statements.checkNotFrozen(this.frozen);
+        // the caller may still change the list
+        this.state.changed();
+        this.state.untrack();
         this.statements = statements;
     }
 
     /**
+     * if this block is not frozen the caller may change the statements
+     *
      * @return this.statements
      */
     public List<IStatement> getStatements()
@@ -293,7 +373,18 @@ public class ConstructBlock implements IStatement
      */
     public void setGraph(String graph)
     {
+        Statements.checkNotFrozen(this.frozen);
         this.graph = graph;
+        this.state.graphChanged();
+    }
+
+    /**
+     * @param visitor the visitor
+     * @return what visitor.visit(this) returned
+     */
+    public boolean accept(IStatementVisitor visitor)
+    {
+        return visitor.visit(this);
     }
 
     /**
@@ -322,6 +413,9 @@ public class ConstructBlock implements IStatement
         for(IStatement statement:this.statements)
                 clone.getStatements().add(statement.clone());
 
+        // the clone reads the same as this block, so it is spliced like this block is, see Splice
+        clone.state.source = this.state.source;
+
         // return the clone
         return clone;
     }
@@ -337,10 +431,11 @@ public class ConstructBlock implements IStatement
      */
     public void replaceGraphStatements(String newGraph)
     {
+        Statements.checkNotFrozen(this.frozen);
         this.graph = newGraph;
+        this.state.graphChanged();
 
-        for(IStatement s : this.statements)
-            s.replaceGraphStatements(newGraph);
+        Statements.replaceGraphStatements(this.statements, newGraph);
     }
 
     /**
@@ -353,11 +448,34 @@ public class ConstructBlock implements IStatement
      */
     public void replaceGraphStatements(String oldGraph, String newGraph)
     {
-        if(this.graph.equals(oldGraph))
+        Statements.checkNotFrozen(this.frozen);
+        if(Statements.sameGraph(this.graph, oldGraph))
+        {
             this.graph = newGraph;
+            this.state.graphChanged();
+        }
+
+        Statements.replaceGraphStatements(this.statements, oldGraph, newGraph);
+    }
+
+    /**
+     * replaces the graph of this block, and of all statements inside it, that is a key in the map by the
+     * graph it maps to, in a single pass
+     *
+     * @param graphs the old graph names mapped on the new ones
+     * @param touched the set the old names of the graphs that were replaced are added to
+     */
+    public void remapGraphs(Map<String, String> graphs, Set<String> touched)
+    {
+        Statements.checkNotFrozen(this.frozen);
+        String graph = Statements.remapGraph(this.graph, graphs, touched);
+        if(graph != this.graph)
+        {
+            this.graph = graph;
+            this.state.graphChanged();
+        }
 
-        for(IStatement s : this.statements)
-            s.replaceGraphStatements(oldGraph, newGraph);
+        Statements.remapGraphs(this.statements, graphs, touched);
     }
 
     /**
@@ -367,4 +485,173 @@ public class ConstructBlock implements IStatement
     {
         return this.graph;
     }
+
+    /**
+     * @return an unmodifiable set with the graphs named in this block and in all blocks inside it, it is kept
+     *         until a graph inside the block changes, see StatementState
+     */
+    public Set<String> getGraphs()
+    {
+        return this.state.graphs(this, this.graph, this.statements);
+    }
+
+    /**
+     * freezes this block and all statements inside it
+     *
+     * @return this block
+     */
+    public ConstructBlock freeze()
+    {
+        if(!this.frozen)
+        {
+            this.statements = Statements.freeze(this.statements);
+            this.solutionModifier = Statements.freezeStrings(this.solutionModifier);
+            this.frozen = true;
+        }
+        return this;
+    }
+
+    /**
+     * @return true if this block is frozen
+     */
+    public boolean isFrozen()
+    {
+        return this.frozen;
+    }
+
+    /**
+     * the immutable version of replaceGraphStatements(newGraph), this block is frozen first
+     *
+     * @param newGraph the name of the new graph
+     * @return a frozen block that shares all unchanged statements, this block if nothing changes
+     */
+    public ConstructBlock withGraphStatements(String newGraph)
+    {
+        freeze();
+        List<IStatement> statements = Statements.withGraphStatements(this.statements, newGraph);
+        if(statements == this.statements && Statements.sameGraph(this.graph, newGraph))
+        {
+            return this;
+        }
+        ConstructBlock copy = copy();
+        copy.graph = newGraph;
+        copy.statements = statements;
+        return copy;
+    }
+
+    /**
+     * the immutable version of replaceGraphStatements(oldGraph, newGraph), this block is frozen first
+     *
+     * @param oldGraph the name of tha graph that needs be replaced
+     * @param newGraph the new graph name
+     * @return a frozen block that shares all unchanged statements, this block if nothing changes
+     */
+    public ConstructBlock withGraphStatements(String oldGraph, String newGraph)
+    {
+        freeze();
+        String graph = Statements.sameGraph(this.graph, oldGraph) ? newGraph : this.graph;
+        List<IStatement> statements = Statements.withGraphStatements(this.statements, oldGraph, newGraph);
+        if(statements == this.statements && Statements.sameGraph(this.graph, graph))
+        {
+            return this;
+        }
+        ConstructBlock copy = copy();
+        copy.graph = graph;
+        copy.statements = statements;
+        return copy;
+    }
+
+    /**
+     * the immutable version of remapGraphs, this block is frozen first
+     *
+     * @param graphs the old graph names mapped on the new ones
+     * @param touched the set the old names of the graphs that were replaced are added to
+     * @return a frozen block that shares all unchanged statements, this block if nothing changes
+     */
+    public ConstructBlock withRemappedGraphs(Map<String, String> graphs, Set<String> touched)
+    {
+        freeze();
+        String graph = Statements.remapGraph(this.graph, graphs, touched);
+        List<IStatement> statements = Statements.withRemappedGraphs(this.statements, graphs, touched);
+        if(statements == this.statements && Statements.sameGraph(this.graph, graph))
+        {
+            return this;
+        }
+        ConstructBlock copy = copy();
+        copy.graph = graph;
+        copy.statements = statements;
+        return copy;
+    }
+
+    /**
+     * the immutable version of setSelectModifier, this block is frozen first
+     *
+     * @param selectModifier the new select modifier
+     * @return a frozen block that shares all statements with this one, this block if nothing changes
+     */
+    public ConstructBlock withSelectModifier(String selectModifier)
+    {
+        freeze();
+        if(this.selectModifier.equals(selectModifier))
+        {
+            return this;
+        }
+        ConstructBlock copy = copy();
+        copy.selectModifier = selectModifier;
+        copy.state.source = null;
+        return copy;
+    }
+
+    /**
+     * the immutable version of setSolutionModifier, this block is frozen first
+     *
+     * @param solutionModifier the new solution modifiers
+     * @return a frozen block that shares all statements with this one, this block if nothing changes
+     */
+    public ConstructBlock withSolutionModifier(List<String> solutionModifier)
+    {
+        freeze();
+        if(this.solutionModifier.equals(solutionModifier))
+        {
+            return this;
+        }
+        ConstructBlock copy = copy();
+        copy.solutionModifier = Statements.freezeStrings(solutionModifier);
+        copy.state.source = null;
+        return copy;
+    }
+
+    /**
+     * @return a copy of this block that is neither frozen nor shared, the statements inside it are shared with
+     *         this block, see Statements.writable
+     */
+    ConstructBlock writableCopy()
+    {
+        ConstructBlock copy = new ConstructBlock();
+        copy.constuctBlock = this.constuctBlock;
+        copy.selectModifier = this.selectModifier;
+        copy.solutionModifier = new TrackedList<String>(copy.state, this.solutionModifier);
+        copy.statements = new TrackedList<IStatement>(copy.state, Statements.share(this.statements));
+        copy.graph = this.graph;
+        copy.state.copy(this.state);
+        return copy;
+    }
+
+    /**
+     * @return a frozen copy of this frozen block that shares all its members
+     */
+    private ConstructBlock copy()
+    {
+        ConstructBlock copy = new ConstructBlock();
+        copy.constuctBlock = this.constuctBlock;
+        copy.selectModifier = this.selectModifier;
+        copy.solutionModifier = this.solutionModifier;
+        copy.statements = this.statements;
+        copy.graph = this.graph;
+        copy.state.source = this.state.source;
+        copy.frozen = true;
+        copy.state.unknowns = this.state.unknowns;
+        copy.state.unknownSet = this.state.unknownSet;
+        return copy;
+    }
 }
@@ -1,11 +1,15 @@
 package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
 
 import com.tenforce.semtech.SPARQLParser.SPARQL.InvalidSPARQLException;
+import com.tenforce.semtech.SPARQLParser.SPARQL.SPARQLLexer.Keyword;
 import com.tenforce.semtech.SPARQLParser.SPARQL.SplitQuery;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -23,6 +27,10 @@ import java.util.Set;
  */
 public class DescribeBlock implements IStatement
 {
+    // where the block was found in the text of the query, the block it is in and its string representation,
+    // see StatementState
+    final StatementState state = new StatementState();
+
     // the describe clause can be complex just as the select clause
     private String describeClause = "";
 
@@ -30,7 +38,7 @@ public class DescribeBlock implements IStatement
     private Set<String> unknowns = new HashSet<String>();
 
     // the statements that can be found inside the WHERE block
-    private List<IStatement> statements = new ArrayList<IStatement>();
+    List<IStatement> statements = new TrackedList<IStatement>(this.state);
 
     // the select modifier
     private String selectModifier = ""; // normally this is DISTINCT or REDUCE
@@ -39,11 +47,16 @@ public class DescribeBlock implements IStatement
     private boolean inBlock = false; // denotes whether or not this select is a subselect (and thus has to be
 
     // placed between a '{' and a '}'
-    private List<String> solutionModifier = new ArrayList<String>();
+    private List<String> solutionModifier = new TrackedList<String>(this.state);
 
     // the graph upon which this object operates
     private String graph = null;
 
+    // true once the block is frozen
+    private boolean frozen = false;
+
+
+
     /**
      * Default constructor takes an iterator just after the DESCRIBE token.
      *
@@ -68,13 +81,23 @@ public class DescribeBlock implements IStatement
     }
 
     /**
-     * returns all unknowns within the construct block
+     * returns all unknowns within the describe clause
      *
-     * @return this.unknowns
+     * @return an unmodifiable view of this.unknowns
      */
     public Set<String> getUnknowns()
     {
-        return this.unknowns;
+        return Collections.unmodifiableSet(this.unknowns);
+    }
+
+    /**
+     * @param table the variable table of the query
+     * @return the unknowns of the describe clause as a set of ids of the given table, it is calculated once
+     *         per table
+     */
+    public VariableSet getUnknowns(VariableTable table)
+    {
+        return this.state.unknowns(this, table, Collections.<IStatement>emptyList(), this.unknowns);
     }
 
     /**
@@ -87,39 +110,44 @@ public class DescribeBlock implements IStatement
      */
     public void calculateBlock(SplitQuery.SplitQueryIterator iterator) throws InvalidSPARQLException
     {
+        int start = iterator.getCurrentStart(); // the DESCRIBE
+        int graphStart = -1;
+        int graphEnd = -1;
+
         if(!iterator.hasNext())
         {
             throw new InvalidSPARQLException("Invalid SPARQL: on line " + iterator.getCurrentLine() + " near: " + iterator.getPrevious());
         }
 
-        if(iterator.peekNext().toLowerCase().equals("distinct"))
+        if(iterator.peekNextKeyword() == Keyword.DISTINCT)
         {
             this.selectModifier += iterator.next();
         }
 
-        if(iterator.peekNext().toLowerCase().equals("reduce"))
+        if(iterator.peekNextKeyword() == Keyword.REDUCE)
         {
             this.selectModifier += iterator.next();
         }
 
-        while(iterator.hasNext() && (!iterator.peekNext().toLowerCase().equals("where") && (!iterator.peekNext().toLowerCase().equals("from"))))
+        StringBuilder clause = new StringBuilder(this.describeClause);
+        while(iterator.hasNext() && (iterator.peekNextKeyword() != Keyword.WHERE && iterator.peekNextKeyword() != Keyword.FROM))
         {
             String next = iterator.next();
-            this.describeClause += next + " ";
+            clause.append(next).append(' ');
             if(next.startsWith("?"))
             {
                 unknowns.add(next.substring(1, next.length()));
             }
         }
 
-        this.describeClause = this.describeClause.substring(0, this.describeClause.length() - 1);
+        this.describeClause = clause.substring(0, clause.length() - 1);
 
-        if(!(iterator.peekNext().toLowerCase().equals("where") || iterator.peekNext().toLowerCase().equals("from")))
+        if(!(iterator.peekNextKeyword() == Keyword.WHERE || iterator.peekNextKeyword() == Keyword.FROM))
         {
             throw new InvalidSPARQLException("Invalid SPARQL at line " + iterator.getCurrentLine() + " expected 'WHERE' or 'FROM' after " + iterator.getPrevious());
         }
 
-        if(iterator.peekNext().toLowerCase().equals("from"))
+        if(iterator.peekNextKeyword() == Keyword.FROM)
         {
             iterator.next(); // the from
             String graph = iterator.next(); // this should be <...>
@@ -128,16 +156,18 @@ public class DescribeBlock implements IStatement
                 throw new InvalidSPARQLException("Invalid SPARQL at line " + iterator.getCurrentLine() + " not a valid graph URI: " + graph);
             }
             this.graph = graph.substring(1, graph.length() - 1);
+            graphStart = SourceSpan.graphStart(iterator);
+            graphEnd = SourceSpan.graphEnd(iterator);
         }
 
         // the from has passed so now we MUST have a where
 
-        if(!iterator.next().toLowerCase().equals("where"))
+        if(iterator.nextKeyword() != Keyword.WHERE)
         {
             throw new InvalidSPARQLException("Invalid SPARQL at line " + iterator.getCurrentLine() + " expected 'WHERE' after " + iterator.getPrevious());
         }
 
-        if(!iterator.next().toLowerCase().equals("{"))
+        if(!iterator.next().equals("{"))
         {
             throw new InvalidSPARQLException("Invalid SPARQL at line " + iterator.getCurrentLine() + " expected '{' after " + iterator.getPrevious());
         }
@@ -146,12 +176,12 @@ public class DescribeBlock implements IStatement
         this.parseBlock(iterator);
 
         // now we might still have solution modifiers
-        while(iterator.hasNext() && (iterator.peekNext().toLowerCase().equals("limit") ||
-                iterator.peekNext().toLowerCase().equals("offset") ||
-                iterator.peekNext().toLowerCase().startsWith("order") ||
-                iterator.peekNext().toLowerCase().startsWith("group")))
+        while(iterator.hasNext() && (iterator.peekNextKeyword() == Keyword.LIMIT ||
+                iterator.peekNextKeyword() == Keyword.OFFSET ||
+                iterator.peekNextStartsWith(Keyword.ORDER) ||
+                iterator.peekNextStartsWith(Keyword.GROUP)))
         {
-            if(iterator.peekNext().toLowerCase().startsWith("group"))
+            if(iterator.peekNextStartsWith(Keyword.GROUP))
             {
                 // group by clause
                 // for now I expect this to be of the form:
@@ -162,7 +192,7 @@ public class DescribeBlock implements IStatement
                     throw new InvalidSPARQLException("Invalid SPARQL on line: " + iterator.getCurrentLine() + " near: " + iterator.getPrevious());
                 }
                 String by = iterator.next();
-                if(!by.toLowerCase().equals("by"))
+                if(iterator.getCurrentKeyword() != Keyword.BY)
                 {
                     throw new InvalidSPARQLException("Invalid SPARQL on line: " + iterator.getCurrentLine() + " expected 'BY' near: " + iterator.getPrevious());
                 }
@@ -178,15 +208,17 @@ public class DescribeBlock implements IStatement
                 this.solutionModifier.add(group + " " + by + " " + variable);
 
             }
-            if(iterator.peekNext().toLowerCase().equals("limit") ||
-                    iterator.peekNext().toLowerCase().equals("offset"))
+            if(iterator.peekNextKeyword() == Keyword.LIMIT ||
+                    iterator.peekNextKeyword() == Keyword.OFFSET)
             {
                 this.solutionModifier.add(iterator.next() + " "  + iterator.next());
             }
             else
             {
-                String orderClause = iterator.next() + " " + iterator.next(); // this should be ORDER BY
-                if(!orderClause.toLowerCase().equals("order by"))
+                String order = iterator.next(); // this should be ORDER
+                boolean isOrder = iterator.getCurrentKeyword() == Keyword.ORDER;
+                String orderClause = order + " " + iterator.next(); // this should be ORDER BY
+                if(!isOrder || iterator.getCurrentKeyword() != Keyword.BY)
                 {
                     throw new InvalidSPARQLException("Invalid SPARQL at line : " + iterator.getCurrentLine() + " expected 'order by' instead of '" + orderClause + "' after " + iterator.getPrevious());
                 }
@@ -194,6 +226,7 @@ public class DescribeBlock implements IStatement
             }
         }
 
+        this.state.source = SourceSpan.of(iterator, start, graphStart, graphEnd, this.graph);
     }
 
     /**
@@ -205,36 +238,38 @@ public class DescribeBlock implements IStatement
      */
     private void parseBlock(SplitQuery.SplitQueryIterator iterator) throws InvalidSPARQLException
     {
-        String block = "";
+        StringBuilder block = new StringBuilder();
+        Set<String> blockUnknowns = null; // the unknowns in block, collected while it is read
+        boolean blockIsEmpty = true; // true as long as the block only holds whitespace
 
         while (iterator.hasNextIncludingNewLines()) {
             // do we get a new inner block
-            if (iterator.peekNext().startsWith("}")) {
+            if (iterator.peekNextStartsWith('}')) {
                 int i = 0; // fu intellij
                 iterator.next();
                 iterator.breakOff("}");
-                statements.add(new SimpleStatement(block));
+                statements.add(new SimpleStatement(block.toString(), blockUnknowns));
                 return;
             }
 
             // hooray we have a new inner block!
-            if(iterator.peekNext().startsWith("{") || iterator.peekNext().toLowerCase().startsWith("graph")) {
-                if(!block.trim().isEmpty())
+            if(iterator.peekNextStartsWith('{') || iterator.peekNextStartsWith(Keyword.GRAPH)) {
+                if(!blockIsEmpty)
                 {
-                    statements.add(new SimpleStatement(block));
+                    statements.add(new SimpleStatement(block.toString(), blockUnknowns));
                 }
-                block = "";
+                block.setLength(0);
+                blockUnknowns = null;
+                blockIsEmpty = true;
                 statements.add(new ParenthesesBlock(iterator, true));
                 continue;
             }
 
             String nextPart = iterator.nextIncludingNewLines();
 
-            if (nextPart.trim().equals("\n")) {
-                block += nextPart;
-            } else {
-                block += " " + nextPart;
-            }
+            block.append(' ').append(nextPart);
+            blockUnknowns = iterator.addVariables(blockUnknowns);
+            blockIsEmpty = blockIsEmpty && nextPart.trim().isEmpty();
         }
     }
 
@@ -245,26 +280,70 @@ public class DescribeBlock implements IStatement
      */
     public String toString()
     {
-        String toreturn = "";
+        return this.state.toString(this);
+    }
 
-        if(this.inBlock) toreturn += "{";
+    /**
+     * writes the string representation of this block to the output
+     *
+     * @param out the output
+     * @throws IOException if the output cannot be written to
+     */
+    public void writeTo(Appendable out) throws IOException
+    {
+        if(this.state.rendered != null)
+        {
+            out.append(this.state.rendered);
+            return;
+        }
 
-        toreturn += "DESCRIBE " + this.describeClause + "\n";
-        toreturn += "WHERE\n{\n";
+        if(this.inBlock) out.append("{");
 
-        for(IStatement statement : statements)
-            toreturn += statement.toString();
+        out.append("DESCRIBE ").append(this.describeClause).append("\n");
+        out.append("WHERE\n{\n");
 
-        toreturn += "\n}";
+        Statements.writeTo(this.statements, out);
 
-        if(this.inBlock) toreturn += "}";
+        out.append("\n}");
+
+        if(this.inBlock) out.append("}");
 
         for(String smod : this.solutionModifier)
         {
-            toreturn += smod + "\n";
+            out.append(smod).append("\n");
         }
+    }
 
-        return toreturn;
+    /**
+     * @return the length of the string representation of this block
+     */
+    public int getLength()
+    {
+        if(this.state.rendered != null)
+        {
+            return this.state.rendered.length();
+        }
+
+        int length = "DESCRIBE ".length() + Statements.length(this.describeClause) + 1;
+        length += "WHERE\n{\n".length() + Statements.length(this.statements) + "\n}".length();
+
+        if(this.inBlock) length += 2;
+
+        for(String smod : this.solutionModifier)
+        {
+            length += Statements.length(smod) + 1;
+        }
+
+        return length;
+    }
+
+    /**
+     * @param visitor the visitor
+     * @return what visitor.visit(this) returned
+     */
+    public boolean accept(IStatementVisitor visitor)
+    {
+        return visitor.visit(this);
     }
 
     /**
@@ -287,6 +366,8 @@ public class DescribeBlock implements IStatement
      * @param describeClause this.describeClause = describeClause
      */
     public void setDescribeClause(String describeClause) {
+        Statements.checkNotFrozen(this.frozen);
+        this.state.changed();
         this.describeClause = describeClause;
     }
 
@@ -294,6 +375,10 @@ public class DescribeBlock implements IStatement
      * @param unknowns this.unknowns = unknowns
      */
     public void setUnknowns(Set<String> unknowns) {
+        Statements.checkNotFrozen(this.frozen);
+        this.state.changed();
+        // the caller may still change the set
+        this.state.untrack();
         this.unknowns = unknowns;
     }
 
@@ -308,6 +393,10 @@ public class DescribeBlock implements IStatement
      * @param statements this.statements = statements
      */
     public void setStatements(List<IStatement> statements) {
+        Statements.checkNotFrozen(this.frozen);
+        // the caller may still change the list
+        this.state.changed();
+        this.state.untrack();
         this.statements = statements;
     }
 
@@ -322,6 +411,8 @@ public class DescribeBlock implements IStatement
      * @param selectModifier this.selectModifier = selectModifier
      */
     public void setSelectModifier(String selectModifier) {
+        Statements.checkNotFrozen(this.frozen);
+        this.state.changed();
         this.selectModifier = selectModifier;
     }
 
@@ -336,6 +427,8 @@ public class DescribeBlock implements IStatement
      * @param inBlock this.inBlock = inBlock
      */
     public void setInBlock(boolean inBlock) {
+        Statements.checkNotFrozen(this.frozen);
+        this.state.changed();
         this.inBlock = inBlock;
     }
 
@@ -350,6 +443,10 @@ public class DescribeBlock implements IStatement
      * @param solutionModifier this.solutionModifer = solutionModifier
      */
     public void setSolutionModifier(List<String> solutionModifier) {
+        Statements.checkNotFrozen(this.frozen);
+        // the caller may still change the list
+        this.state.changed();
+        this.state.untrack();
         this.solutionModifier = solutionModifier;
     }
 
@@ -360,11 +457,22 @@ public class DescribeBlock implements IStatement
         return graph;
     }
 
+    /**
+     * @return an unmodifiable set with the graphs named in this block and in all blocks inside it, it is kept
+     *         until a graph inside the block changes, see StatementState
+     */
+    public Set<String> getGraphs()
+    {
+        return this.state.graphs(this, this.graph, this.statements);
+    }
+
     /**
      * @param graph this.graph = graph
      */
     public void setGraph(String graph) {
+        Statements.checkNotFrozen(this.frozen);
         this.graph = graph;
+        this.state.graphChanged();
     }
 
     /**
@@ -380,12 +488,15 @@ public class DescribeBlock implements IStatement
         clone.setInBlock(this.inBlock);
         clone.setGraph(this.graph);
         for(String u : this.unknowns)
-                clone.getUnknowns().add(u);
+                clone.unknowns.add(u);
         for(String s : this.solutionModifier)
                 clone.getSolutionModifier().add(s);
         for(IStatement s : this.statements)
                 clone.getStatements().add(s.clone());
 
+        // the clone reads the same as this block, so it is spliced like this block is, see Splice
+        clone.state.source = this.state.source;
+
         // returning the clone
         return clone;
     }
@@ -402,10 +513,11 @@ public class DescribeBlock implements IStatement
      */
     public void replaceGraphStatements(String newGraph)
     {
+        Statements.checkNotFrozen(this.frozen);
         this.graph = newGraph;
+        this.state.graphChanged();
 
-        for(IStatement s : this.statements)
-            s.replaceGraphStatements(newGraph);
+        Statements.replaceGraphStatements(this.statements, newGraph);
     }
 
     /**
@@ -418,10 +530,198 @@ public class DescribeBlock implements IStatement
      */
     public void replaceGraphStatements(String oldGraph, String newGraph)
     {
-        if(this.graph.equals(oldGraph))
+        Statements.checkNotFrozen(this.frozen);
+        if(Statements.sameGraph(this.graph, oldGraph))
+        {
             this.graph = newGraph;
+            this.state.graphChanged();
+        }
 
-        for(IStatement s : this.statements)
-            s.replaceGraphStatements(oldGraph, newGraph);
+        Statements.replaceGraphStatements(this.statements, oldGraph, newGraph);
+    }
+
+    /**
+     * replaces the graph of this block, and of all statements inside it, that is a key in the map by the
+     * graph it maps to, in a single pass
+     *
+     * @param graphs the old graph names mapped on the new ones
+     * @param touched the set the old names of the graphs that were replaced are added to
+     */
+    public void remapGraphs(Map<String, String> graphs, Set<String> touched)
+    {
+        Statements.checkNotFrozen(this.frozen);
+        String graph = Statements.remapGraph(this.graph, graphs, touched);
+        if(graph != this.graph)
+        {
+            this.graph = graph;
+            this.state.graphChanged();
+        }
+
+        Statements.remapGraphs(this.statements, graphs, touched);
+    }
+
+    /**
+     * freezes this block and all statements inside it
+     *
+     * @return this block
+     */
+    public DescribeBlock freeze()
+    {
+        if(!this.frozen)
+        {
+            this.statements = Statements.freeze(this.statements);
+            this.solutionModifier = Statements.freezeStrings(this.solutionModifier);
+            this.unknowns = Statements.freezeStrings(this.unknowns);
+            this.frozen = true;
+        }
+        return this;
+    }
+
+    /**
+     * @return true if this block is frozen
+     */
+    public boolean isFrozen()
+    {
+        return this.frozen;
+    }
+
+    /**
+     * the immutable version of replaceGraphStatements(newGraph), this block is frozen first
+     *
+     * @param newGraph the name of the new graph
+     * @return a frozen block that shares all unchanged statements, this block if nothing changes
+     */
+    public DescribeBlock withGraphStatements(String newGraph)
+    {
+        freeze();
+        List<IStatement> statements = Statements.withGraphStatements(this.statements, newGraph);
+        if(statements == this.statements && Statements.sameGraph(this.graph, newGraph))
+        {
+            return this;
+        }
+        DescribeBlock copy = copy();
+        copy.graph = newGraph;
+        copy.statements = statements;
+        return copy;
+    }
+
+    /**
+     * the immutable version of replaceGraphStatements(oldGraph, newGraph), this block is frozen first
+     *
+     * @param oldGraph the name of tha graph that needs be replaced
+     * @param newGraph the new graph name
+     * @return a frozen block that shares all unchanged statements, this block if nothing changes
+     */
+    public DescribeBlock withGraphStatements(String oldGraph, String newGraph)
+    {
+        freeze();
+        String graph = Statements.sameGraph(this.graph, oldGraph) ? newGraph : this.graph;
+        List<IStatement> statements = Statements.withGraphStatements(this.statements, oldGraph, newGraph);
+        if(statements == this.statements && Statements.sameGraph(this.graph, graph))
+        {
+            return this;
+        }
+        DescribeBlock copy = copy();
+        copy.graph = graph;
+        copy.statements = statements;
+        return copy;
+    }
+
+    /**
+     * the immutable version of remapGraphs, this block is frozen first
+     *
+     * @param graphs the old graph names mapped on the new ones
+     * @param touched the set the old names of the graphs that were replaced are added to
+     * @return a frozen block that shares all unchanged statements, this block if nothing changes
+     */
+    public DescribeBlock withRemappedGraphs(Map<String, String> graphs, Set<String> touched)
+    {
+        freeze();
+        String graph = Statements.remapGraph(this.graph, graphs, touched);
+        List<IStatement> statements = Statements.withRemappedGraphs(this.statements, graphs, touched);
+        if(statements == this.statements && Statements.sameGraph(this.graph, graph))
+        {
+            return this;
+        }
+        DescribeBlock copy = copy();
+        copy.graph = graph;
+        copy.statements = statements;
+        return copy;
+    }
+
+    /**
+     * the immutable version of setSelectModifier, this block is frozen first
+     *
+     * @param selectModifier the new select modifier
+     * @return a frozen block that shares all statements with this one, this block if nothing changes
+     */
+    public DescribeBlock withSelectModifier(String selectModifier)
+    {
+        freeze();
+        if(this.selectModifier.equals(selectModifier))
+        {
+            return this;
+        }
+        DescribeBlock copy = copy();
+        copy.selectModifier = selectModifier;
+        copy.state.source = null;
+        return copy;
+    }
+
+    /**
+     * the immutable version of setSolutionModifier, this block is frozen first
+     *
+     * @param solutionModifier the new solution modifiers
+     * @return a frozen block that shares all statements with this one, this block if nothing changes
+     */
+    public DescribeBlock withSolutionModifier(List<String> solutionModifier)
+    {
+        freeze();
+        if(this.solutionModifier.equals(solutionModifier))
+        {
+            return this;
+        }
+        DescribeBlock copy = copy();
+        copy.solutionModifier = Statements.freezeStrings(solutionModifier);
+        copy.state.source = null;
+        return copy;
+    }
+
+    /**
+     * @return a copy of this block that is neither frozen nor shared, the statements inside it are shared with
+     *         this block, see Statements.writable
+     */
+    DescribeBlock writableCopy()
+    {
+        DescribeBlock copy = new DescribeBlock();
+        copy.describeClause = this.describeClause;
+        // a set that was given to setUnknowns may still be changed by the caller, see StatementState
+        copy.unknowns = this.state.untracked ? new HashSet<String>(this.unknowns) : this.unknowns;
+        copy.selectModifier = this.selectModifier;
+        copy.inBlock = this.inBlock;
+        copy.solutionModifier = new TrackedList<String>(copy.state, this.solutionModifier);
+        copy.statements = new TrackedList<IStatement>(copy.state, Statements.share(this.statements));
+        copy.graph = this.graph;
+        copy.state.copy(this.state);
+        return copy;
+    }
+
+    /**
+     * @return a frozen copy of this frozen block that shares all its members
+     */
+    private DescribeBlock copy()
+    {
+        DescribeBlock copy = new DescribeBlock();
+        copy.describeClause = this.describeClause;
+        copy.unknowns = this.unknowns;
+        copy.state.unknownSet = this.state.unknownSet;
+        copy.selectModifier = this.selectModifier;
+        copy.inBlock = this.inBlock;
+        copy.solutionModifier = this.solutionModifier;
+        copy.statements = this.statements;
+        copy.graph = this.graph;
+        copy.state.source = this.state.source;
+        copy.frozen = true;
+        return copy;
     }
 }
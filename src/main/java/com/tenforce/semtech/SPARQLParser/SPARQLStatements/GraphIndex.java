@@ -0,0 +1,401 @@
+package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The graph index of a query: every graph that is named in the statements of the query, mapped on the blocks
+ * that name it. A block is found by its path, the index of its top level statement in the list of the query
+ * followed by the index of every block on the way to it, so renaming a graph only goes to the blocks that name
+ * it instead of walking the whole query. Empty graph names are not in the index, and neither is the WHERE
+ * block of an update, like getGraphs.
+ *
+ * The top level statements of a query tell the index about every change to them and to the blocks inside them,
+ * see StatementState: a change that can move a block or change a graph makes the index forget what it
+ * found, and it is built again the next time it is needed. An index that is not told about all changes, because
+ * the query holds a statement from outside this package, is never kept.
+ *
+ * The paths only depend on where the blocks are, so the maps are never changed once they are made and a query
+ * shares its map with its clones and with the frozen copies made by its with methods.
+ */
+public final class GraphIndex
+{
+    // the state the top level statements of the query are in, it keeps the map of the index
+    private final StatementState root = new StatementState();
+
+    /**
+     * an index that is built the first time it is needed
+     */
+    public GraphIndex()
+    {
+    }
+
+    /**
+     * @param occurrences the map of the index, it is shared
+     */
+    private GraphIndex(Map<String, List<int []>> occurrences)
+    {
+        this.root.occurrences = occurrences;
+    }
+
+    /**
+     * @param statements statements
+     * @return a list with the statements that tells this index when it or the statements in it change, the
+     *         top level statements of the query are kept in it
+     */
+    public List<IStatement> track(List<IStatement> statements)
+    {
+        return new TrackedList<IStatement>(this.root, statements);
+    }
+
+    /**
+     * builds the index if it is not known yet, for instance once the query is parsed
+     *
+     * @param statements the top level statements of the query
+     */
+    public void build(List<IStatement> statements)
+    {
+        occurrences(statements);
+    }
+
+    /**
+     * @return an index for a copy of the query with the same statements in the same places, it shares the map
+     *         of this index
+     */
+    public GraphIndex copy()
+    {
+        return new GraphIndex(this.root.occurrences);
+    }
+
+    /**
+     * @param statements the top level statements of the query
+     * @return an unmodifiable set with the graphs named in the statements, empty graph names are left out
+     */
+    public Set<String> getGraphs(List<IStatement> statements)
+    {
+        Map<String, List<int []>> occurrences = occurrences(statements);
+        if(occurrences == null)
+        {
+            return Statements.graphs(null, statements);
+        }
+        Set<String> graphs = this.root.graphs;
+        if(graphs == null)
+        {
+            graphs = Collections.unmodifiableSet(occurrences.keySet());
+            if(this.root.occurrences == occurrences)
+            {
+                this.root.graphs = graphs;
+            }
+        }
+        return graphs;
+    }
+
+    /**
+     * replaces the graph of every block that names the old graph by the new graph, a block that is shared or
+     * frozen is copied first (see Statements.share). Only the blocks that name the old graph, and those on the
+     * way to them, are visited.
+     *
+     * @param statements the top level statements of the query, a list the query owns
+     * @param oldGraph the name of tha graph that needs be replaced
+     * @param newGraph the new graph name
+     */
+    public void replaceGraphStatements(List<IStatement> statements, String oldGraph, String newGraph)
+    {
+        Map<String, List<int []>> occurrences = (oldGraph == null || oldGraph.isEmpty()) ? null : occurrences(statements);
+        if(occurrences == null)
+        {
+            // blocks without a graph are not in the index
+            Statements.replaceGraphStatements(statements, oldGraph, newGraph);
+            return;
+        }
+        List<int []> paths = occurrences.get(oldGraph);
+        if(paths == null || oldGraph.equals(newGraph))
+        {
+            return;
+        }
+
+        for(int [] path : paths)
+            setGraph(statements, path, newGraph);
+
+        Map<String, List<int []>> renamed = new HashMap<String, List<int []>>(occurrences);
+        renamed.remove(oldGraph);
+        add(renamed, newGraph, paths);
+        keep(renamed);
+    }
+
+    /**
+     * replaces the graph of every block that is a key in the map by the graph it maps to, a block that is
+     * shared or frozen is copied first. Only the blocks that name one of the graphs, and those on the way to
+     * them, are visited.
+     *
+     * @param statements the top level statements of the query, a list the query owns
+     * @param graphs the old graph names mapped on the new ones
+     * @param touched the set the old names of the graphs that were replaced are added to
+     */
+    public void remapGraphs(List<IStatement> statements, Map<String, String> graphs, Set<String> touched)
+    {
+        Map<String, List<int []>> occurrences = graphs.containsKey("") ? null : occurrences(statements);
+        if(occurrences == null)
+        {
+            // blocks without a graph are not in the index
+            Statements.remapGraphs(statements, graphs, touched);
+            return;
+        }
+
+        List<String> found = new ArrayList<String>();
+        if(graphs.size() < occurrences.size())
+        {
+            for(String graph : graphs.keySet())
+            {
+                if(graph != null && occurrences.containsKey(graph))
+                {
+                    found.add(graph);
+                }
+            }
+        }
+        else
+        {
+            for(String graph : occurrences.keySet())
+            {
+                if(graphs.containsKey(graph))
+                {
+                    found.add(graph);
+                }
+            }
+        }
+        if(found.isEmpty())
+        {
+            return;
+        }
+
+        // the mappings are applied at the same time, so all old graphs leave the map before the new ones enter it
+        Map<String, List<int []>> remapped = new HashMap<String, List<int []>>(occurrences);
+        for(String graph : found)
+        {
+            touched.add(graph);
+            remapped.remove(graph);
+        }
+        for(String graph : found)
+        {
+            String newGraph = graphs.get(graph);
+            List<int []> paths = occurrences.get(graph);
+            if(!graph.equals(newGraph))
+            {
+                for(int [] path : paths)
+                    setGraph(statements, path, newGraph);
+            }
+            add(remapped, newGraph, paths);
+        }
+        keep(remapped);
+    }
+
+    /**
+     * @param statements the frozen top level statements of a query
+     * @param oldGraph the name of tha graph that is replaced
+     * @param newGraph the new graph name
+     * @return the index of the copy of the query in which the old graph was replaced by the new one, see
+     *         SPARQLQuery.withGraphStatement
+     */
+    public GraphIndex withGraphStatements(List<IStatement> statements, String oldGraph, String newGraph)
+    {
+        Map<String, List<int []>> occurrences = occurrences(statements);
+        if(occurrences == null || oldGraph == null || oldGraph.isEmpty())
+        {
+            return new GraphIndex();
+        }
+        List<int []> paths = occurrences.get(oldGraph);
+        if(paths == null || oldGraph.equals(newGraph))
+        {
+            return copy();
+        }
+        Map<String, List<int []>> renamed = new HashMap<String, List<int []>>(occurrences);
+        renamed.remove(oldGraph);
+        add(renamed, newGraph, paths);
+        return new GraphIndex(renamed);
+    }
+
+    /**
+     * @param statements the frozen top level statements of a query
+     * @param graphs the old graph names mapped on the new ones
+     * @return the index of the copy of the query in which the graphs were remapped, see
+     *         SPARQLQuery.withRemappedGraphs
+     */
+    public GraphIndex withRemappedGraphs(List<IStatement> statements, Map<String, String> graphs)
+    {
+        Map<String, List<int []>> occurrences = occurrences(statements);
+        if(occurrences == null || graphs.containsKey(""))
+        {
+            return new GraphIndex();
+        }
+        Map<String, List<int []>> remapped = new HashMap<String, List<int []>>(occurrences);
+        for(String graph : occurrences.keySet())
+        {
+            if(graphs.containsKey(graph))
+            {
+                remapped.remove(graph);
+            }
+        }
+        for(Map.Entry<String, List<int []>> entry : occurrences.entrySet())
+        {
+            if(graphs.containsKey(entry.getKey()))
+            {
+                add(remapped, graphs.get(entry.getKey()), entry.getValue());
+            }
+        }
+        return new GraphIndex(remapped);
+    }
+
+    /**
+     * @param statements the top level statements of the query
+     * @return the map of the index, it is built if it is not known. Null if the statements hold a statement
+     *         from outside this package, which does not tell where its graphs are.
+     */
+    private Map<String, List<int []>> occurrences(List<IStatement> statements)
+    {
+        Map<String, List<int []>> occurrences = this.root.occurrences;
+        if(occurrences == null)
+        {
+            occurrences = new HashMap<String, List<int []>>();
+            if(collect(statements, new int[8], 0, occurrences) == null)
+            {
+                return null;
+            }
+            keep(occurrences);
+        }
+        return occurrences;
+    }
+
+    /**
+     * keeps the map of the index, unless the index is not told about all changes
+     *
+     * @param occurrences the map
+     */
+    private void keep(Map<String, List<int []>> occurrences)
+    {
+        this.root.graphs = null;
+        this.root.occurrences = this.root.untracked ? null : occurrences;
+    }
+
+    /**
+     * adds the path of every block in the statements, and in the blocks inside them, that names a graph
+     *
+     * @param statements the statements of a block, or the top level statements of the query
+     * @param path the path to the block the statements are in, the indexes from depth on are free to use
+     * @param depth the length of the path
+     * @param occurrences the map the paths are added to
+     * @return the path, or a longer copy of it if it had to grow, null if a statement from outside this
+     *         package was found
+     */
+    private static int [] collect(List<IStatement> statements, int [] path, int depth, Map<String, List<int []>> occurrences)
+    {
+        for(int i = 0; i < statements.size(); ++i)
+        {
+            IStatement statement = statements.get(i);
+            if(statement instanceof SimpleStatement)
+            {
+                continue;
+            }
+            if(Statements.stateOf(statement) == null)
+            {
+                return null;
+            }
+            if(depth == path.length)
+            {
+                path = Arrays.copyOf(path, 2 * depth);
+            }
+            path[depth] = i;
+            String graph = graphOf(statement);
+            if(graph != null && !graph.isEmpty())
+            {
+                add(occurrences, graph, Collections.singletonList(Arrays.copyOf(path, depth + 1)));
+            }
+            path = collect(Statements.statementsOf(statement), path, depth + 1, occurrences);
+            if(path == null)
+            {
+                return null;
+            }
+        }
+        return path;
+    }
+
+    /**
+     * adds paths to the paths of a graph, the lists in the map are never changed
+     *
+     * @param occurrences the map of an index
+     * @param graph the graph, nothing is added if it is empty
+     * @param paths the paths
+     */
+    private static void add(Map<String, List<int []>> occurrences, String graph, List<int []> paths)
+    {
+        if(graph == null || graph.isEmpty())
+        {
+            return;
+        }
+        List<int []> known = occurrences.get(graph);
+        if(known == null)
+        {
+            occurrences.put(graph, paths);
+            return;
+        }
+        List<int []> all = new ArrayList<int []>(known.size() + paths.size());
+        all.addAll(known);
+        all.addAll(paths);
+        occurrences.put(graph, all);
+    }
+
+    /**
+     * replaces the graph of the block at the end of the path, but not those of the blocks inside it. The blocks
+     * on the path that are shared or frozen are copied first.
+     *
+     * @param statements the top level statements of the query
+     * @param path the path to the block
+     * @param graph the new graph
+     */
+    private static void setGraph(List<IStatement> statements, int [] path, String graph)
+    {
+        IStatement statement = Statements.writable(statements, path[0]);
+        for(int i = 1; i < path.length; ++i)
+            statement = Statements.writable(Statements.statementsOf(statement), path[i]);
+
+        if(statement instanceof ParenthesesBlock)
+        {
+            ParenthesesBlock block = (ParenthesesBlock) statement;
+            block.graph = graph;
+            block.state.graphChanged();
+        }
+        else if(statement instanceof BlockStatement)
+        {
+            ((BlockStatement) statement).setGraph(graph);
+        }
+        else if(statement instanceof SelectBlock)
+        {
+            ((SelectBlock) statement).setGraph(graph);
+        }
+        else if(statement instanceof DescribeBlock)
+        {
+            ((DescribeBlock) statement).setGraph(graph);
+        }
+        else
+        {
+            ((ConstructBlock) statement).setGraph(graph);
+        }
+    }
+
+    /**
+     * @param statement one of the blocks of this package
+     * @return the graph the block itself names, the graph of an update block is not looked up inside it
+     */
+    private static String graphOf(IStatement statement)
+    {
+        if(statement instanceof BlockStatement)
+        {
+            return ((BlockStatement) statement).graph;
+        }
+        return statement.getGraph();
+    }
+}
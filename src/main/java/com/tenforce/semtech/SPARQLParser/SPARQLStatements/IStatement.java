@@ -1,5 +1,8 @@
 package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -11,6 +14,12 @@ import java.util.Set;
  * - how to present itself as a string
  * - which unknowns are inside it
  * - what kind of statement it is
+ *
+ * The methods that were added later (writing, the variable table, visitors, freezing, the with methods and
+ * getGraphs) have default implementations that only use the methods above, so statements that are
+ * implemented outside this package keep working. Those defaults are slower than the implementations of the
+ * statements in this package, and a statement that holds other statements should override getGraphs, accept
+ * and remapGraphs.
  */
 public interface IStatement {
     /**
@@ -37,16 +46,64 @@ public interface IStatement {
     public String toString();
 
     /**
+     * Writes the string representation of this block to the given output, piece by piece, without building
+     * the whole string first. A query can be written straight to a Writer this way.
+     *
+     * @param out the output, a StringBuilder, a Writer, ...
+     * @throws IOException if the output cannot be written to
+     */
+    public default void writeTo(Appendable out) throws IOException
+    {
+        out.append(toString());
+    }
+
+    /**
+     * @return the length of the string representation of this block, toString() uses it to size its buffer
+     */
+    public default int getLength()
+    {
+        return toString().length();
+    }
+
+    /**
+     * The statements in this package calculate this set once and keep it until they change, so they return
+     * it as an unmodifiable set: a caller that wants to add to it has to copy it first.
+     *
      * @return a set with the names of all unknowns in this block
      */
     public Set<String> getUnknowns();
 
+    /**
+     * the unknowns of this block as a set of ids of the given table, which makes comparing and combining the
+     * unknowns of blocks cheap. The set is calculated once per table and kept until the block changes.
+     *
+     * @param table the variable table of the query this block belongs to, see SPARQLQuery.getVariableTable
+     * @return a set with the same unknowns as getUnknowns()
+     */
+    public default VariableSet getUnknowns(VariableTable table)
+    {
+        return table.of(getUnknowns());
+    }
+
     /**
      * the types are describe in the StatementType definition
      * @return the type of block this is
      */
     public StatementType getType();
 
+    /**
+     * passes this statement to the method of the visitor for its kind, see StatementWalker to visit everything
+     * inside it as well
+     *
+     * @param visitor the visitor
+     * @return what the visitor returned, true if the statements inside this one should be visited. The
+     *         visitor has no method for statements of other kinds, so by default nothing is visited.
+     */
+    public default boolean accept(IStatementVisitor visitor)
+    {
+        return false;
+    }
+
     /**
      * @return a clone of this object
      */
@@ -72,6 +129,89 @@ public interface IStatement {
      */
     public void replaceGraphStatements(String oldGraph, String newGraph);
 
+    /**
+     * Replaces every graph in this statement, and in all statements inside it, that is a key in the map by
+     * the graph it maps to. All mappings are applied in a single pass, and at the same time: a graph that is
+     * mapped on a graph that is mapped itself is only replaced once.
+     *
+     * @param graphs the old graph names mapped on the new ones
+     * @param touched the set the old names of the graphs that were replaced are added to
+     * @throws UnsupportedOperationException by default, as the mappings cannot be applied at the same time
+     *         with replaceGraphStatements
+     */
+    public default void remapGraphs(Map<String, String> graphs, Set<String> touched)
+    {
+        throw new UnsupportedOperationException(getClass().getName() + " does not support remapping graphs");
+    }
+
+    /**
+     * Makes this statement and all statements inside it immutable. After this every method that changes
+     * the statement throws an UnsupportedOperationException and the lists it returns are unmodifiable.
+     * A frozen statement can be shared between queries, the with methods return changed versions of it.
+     * By default a statement cannot be frozen, and this does nothing.
+     *
+     * @return this statement
+     */
+    public default IStatement freeze()
+    {
+        return this;
+    }
+
+    /**
+     * @return true if this statement is frozen, false by default
+     */
+    public default boolean isFrozen()
+    {
+        return false;
+    }
+
+    /**
+     * The immutable version of replaceGraphStatements(newGraph). This statement is frozen first and is
+     * never changed, the new version shares every statement inside it that does not change.
+     *
+     * @param newGraph the name of the new graph
+     * @return a frozen statement in which all graph statements are replaced, this statement if that
+     *         does not change anything. By default this is a changed clone.
+     */
+    public default IStatement withGraphStatements(String newGraph)
+    {
+        IStatement copy = clone();
+        copy.replaceGraphStatements(newGraph);
+        return copy.freeze();
+    }
+
+    /**
+     * The immutable version of replaceGraphStatements(oldGraph, newGraph). This statement is frozen first
+     * and is never changed, the new version shares every statement inside it that does not change.
+     *
+     * @param oldGraph the name of tha graph that needs be replaced
+     * @param newGraph the new graph name
+     * @return a frozen statement in which the graph statements on oldGraph are replaced, this statement if
+     *         that does not change anything. By default this is a changed clone.
+     */
+    public default IStatement withGraphStatements(String oldGraph, String newGraph)
+    {
+        IStatement copy = clone();
+        copy.replaceGraphStatements(oldGraph, newGraph);
+        return copy.freeze();
+    }
+
+    /**
+     * The immutable version of remapGraphs. This statement is frozen first and is never changed, the new
+     * version shares every statement inside it that does not change.
+     *
+     * @param graphs the old graph names mapped on the new ones
+     * @param touched the set the old names of the graphs that were replaced are added to
+     * @return a frozen statement in which the graphs are replaced, this statement if that does not change
+     *         anything. By default this is a clone changed with remapGraphs.
+     */
+    public default IStatement withRemappedGraphs(Map<String, String> graphs, Set<String> touched)
+    {
+        IStatement copy = clone();
+        copy.remapGraphs(graphs, touched);
+        return copy.freeze();
+    }
+
 
     /**
      * this will return the graph in which this statement belongs or null if
@@ -80,4 +220,18 @@ public interface IStatement {
      * @return the graph on which this statement operates
      */
     public String getGraph();
+
+    /**
+     * The graphs named in this statement and in all statements inside it. A block keeps them until a graph
+     * inside it changes, so the with methods can skip every statement that does not name the graph they replace,
+     * and only copy the statements on the way to the ones that do.
+     *
+     * @return an unmodifiable set with the graph names, empty graph names are left out. By default only the
+     *         graph of this statement itself.
+     */
+    public default Set<String> getGraphs()
+    {
+        String graph = getGraph();
+        return (graph == null || graph.isEmpty()) ? Collections.<String>emptySet() : Collections.singleton(graph);
+    }
 }
@@ -0,0 +1,61 @@
+package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
+
+/**
+ * A visitor gets a call for every kind of statement, so code that treats the statements of a query
+ * differently per kind does not have to switch on getType() and cast. A statement passes itself to the
+ * matching method in its accept method.
+ *
+ * Every method returns whether the statements inside the visited statement should be visited as well, the
+ * StatementWalker uses this to decide if it walks into a block. AbstractStatementVisitor returns true for
+ * everything, so a visitor that only cares about a few kinds of statements only has to override those.
+ */
+public interface IStatementVisitor
+{
+    /**
+     * @param statement a simple statement
+     * @return ignored, a simple statement has no statements inside it
+     */
+    public boolean visit(SimpleStatement statement);
+
+    /**
+     * @param block a parentheses block, optionally with a graph or OPTIONAL
+     * @return true to visit the statements inside the block
+     */
+    public boolean visit(ParenthesesBlock block);
+
+    /**
+     * @param block an ask block
+     * @return true to visit the statements inside the block
+     */
+    public boolean visit(AskBlock block);
+
+    /**
+     * @param block a select block
+     * @return true to visit the statements inside the block
+     */
+    public boolean visit(SelectBlock block);
+
+    /**
+     * @param block a describe block
+     * @return true to visit the statements inside the block
+     */
+    public boolean visit(DescribeBlock block);
+
+    /**
+     * @param block a construct block
+     * @return true to visit the statements inside the block
+     */
+    public boolean visit(ConstructBlock block);
+
+    /**
+     * @param block an insert or delete block
+     * @return true to visit the statements inside the block, and its where block
+     */
+    public boolean visit(UpdateBlockStatement block);
+
+    /**
+     * @param block a where block
+     * @return true to visit the statements inside the block
+     */
+    public boolean visit(WhereBlockStatement block);
+}
@@ -1,11 +1,15 @@
 package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
 
 import com.tenforce.semtech.SPARQLParser.SPARQL.InvalidSPARQLException;
+import com.tenforce.semtech.SPARQLParser.SPARQL.SPARQLLexer.Keyword;
 import com.tenforce.semtech.SPARQLParser.SPARQL.SplitQuery;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -14,8 +18,12 @@ import java.util.Set;
   */
 public class ParenthesesBlock implements IStatement
 {
+    // where the block was found in the text of the query, the block it is in and its string representation,
+    // see StatementState
+    final StatementState state = new StatementState();
+
     // the innerstatements of a parentheses block
-    protected List<IStatement> statements = new ArrayList<IStatement>();
+    protected List<IStatement> statements = new TrackedList<IStatement>(this.state);
 
     // the graph (if declaration included)
     protected String graph;
@@ -25,6 +33,10 @@ public class ParenthesesBlock implements IStatement
     // if the block is tagged optional
     protected boolean optional = false;
 
+    // true once the block is frozen
+    protected boolean frozen = false;
+
+
     /**
      * Default constructor with a single statementblock and possibly a named
      * graph on which it operates
@@ -74,19 +86,38 @@ public class ParenthesesBlock implements IStatement
     {
         this.graph = graph;
         this.statements = statements;
+        // the caller may still change the list
+        this.state.untracked = true;
+    }
+
+    /**
+     * @return the statements inside this block, if the block is not frozen the caller may change them
+     */
+    public List<IStatement> getStatements()
+    {
+        return this.statements;
     }
 
     /**
-     * calculates the unknowns (on the fly) and returns them as a set
+     * calculates the unknowns, they are kept until the statements of this block change, see StatementState
      *
-     * @return a set containing all unknowns
+     * @return an unmodifiable set containing all unknowns, copy it to change it
      */
     public Set<String> getUnknowns()
     {
-        Set<String> u = new HashSet<String>();
-        for(IStatement s : this.statements)
-            u.addAll(s.getUnknowns());
-        return u;
+        return this.state.unknowns(this, this.statements, null);
+    }
+
+    /**
+     * the unknowns of this block as a set of ids of the given table, it is calculated once per table from the
+     * sets of the statements in the block and kept as long as getUnknowns() is
+     *
+     * @param table the variable table of the query
+     * @return the set of unknowns
+     */
+    public VariableSet getUnknowns(VariableTable table)
+    {
+        return this.state.unknowns(this, table, this.statements, null);
     }
 
     /**
@@ -103,14 +134,21 @@ public class ParenthesesBlock implements IStatement
             throw new InvalidSPARQLException("Invalid SPARQL: on line " + iterator.getCurrentLine() + " near: " + iterator.getPrevious());
         }
 
-        if(iterator.peekNext().toLowerCase().startsWith("graph")) {
+        int start; // the offset of the first token of this block
+        int graphStart = -1;
+        int graphEnd = -1;
+
+        if(iterator.peekNextStartsWith(Keyword.GRAPH)) {
             String graphToken = iterator.next();
             iterator.breakOff(graphToken.substring(0, 5));
+            start = iterator.getCurrentStart();
             String graph = iterator.next();
             if(!(graph.startsWith("<") && graph.endsWith(">"))) {
                 throw new InvalidSPARQLException("Invalid SPARQL on line: " + iterator.getCurrentLine() + " no valid graphname: " + graph);
             }
             this.graph = graph.substring(1, graph.length() - 1);
+            graphStart = SourceSpan.graphStart(iterator);
+            graphEnd = SourceSpan.graphEnd(iterator);
 
             String innerP = iterator.next();
 
@@ -121,13 +159,14 @@ public class ParenthesesBlock implements IStatement
 
             iterator.breakOff("{");
         }
-        else if(iterator.peekNext().toLowerCase().startsWith("optional"))
+        else if(iterator.peekNextStartsWith(Keyword.OPTIONAL))
         {
             String optional = iterator.next();
-            if(!optional.toLowerCase().equals("optional"))
+            if(iterator.getCurrentKeyword() != Keyword.OPTIONAL)
             {
                 iterator.breakOff(optional.substring(0, 8)); // 8 is the length of optional
             }
+            start = iterator.getCurrentStart();
 
             this.optional = true;
 
@@ -145,10 +184,12 @@ public class ParenthesesBlock implements IStatement
                 throw new InvalidSPARQLException("Invalid SPARQL on line: " + iterator.getCurrentLine() + " expected '{' at" + iterator.getPrevious());
             }
             iterator.breakOff("{");
+            start = iterator.getCurrentStart();
         }
 
         // read inner block now
         this.parseBlock(iterator);
+        this.state.source = SourceSpan.of(iterator, start, graphStart, graphEnd, this.graph);
     }
 
     /**
@@ -160,50 +201,54 @@ public class ParenthesesBlock implements IStatement
      */
     protected void parseBlock(SplitQuery.SplitQueryIterator iterator) throws InvalidSPARQLException
     {
-        String block = "";
+        StringBuilder block = new StringBuilder();
+        Set<String> blockUnknowns = null; // the unknowns in block, collected while it is read
+        boolean blockIsEmpty = true; // true as long as the block only holds whitespace
 
         while (iterator.hasNextIncludingNewLines()) {
             // do we get a new inner block
-            if (iterator.peekNext().startsWith("}")) {
+            if (iterator.peekNextStartsWith('}')) {
                 int i = 0; // fu intellij
                 iterator.next();
                 iterator.breakOff("}");
-                statements.add(new SimpleStatement(block));
+                statements.add(new SimpleStatement(block.toString(), blockUnknowns));
                 return;
             }
 
             // hooray we have a new inner block!
-            if(iterator.peekNext().startsWith("{") || iterator.peekNext().toLowerCase().startsWith("graph") ||
-                    iterator.peekNext().toLowerCase().startsWith("optional")) {
-                if(!block.trim().isEmpty())
+            if(iterator.peekNextStartsWith('{') || iterator.peekNextStartsWith(Keyword.GRAPH) ||
+                    iterator.peekNextStartsWith(Keyword.OPTIONAL)) {
+                if(!blockIsEmpty)
                 {
-                    statements.add(new SimpleStatement(block));
+                    statements.add(new SimpleStatement(block.toString(), blockUnknowns));
                 }
-                block = "";
+                block.setLength(0);
+                blockUnknowns = null;
+                blockIsEmpty = true;
                 statements.add(new ParenthesesBlock(iterator));
                 continue;
             }
 
             // the statment is at its end
-            if(iterator.peekNext().startsWith("."))
+            if(iterator.peekNextStartsWith('.'))
             {
                 iterator.next();
                 iterator.breakOff(".");
-                if(!block.trim().isEmpty())
+                if(!blockIsEmpty)
                 {
-                    statements.add(new SimpleStatement(block + " ."));
+                    statements.add(new SimpleStatement(block.append(" .").toString(), blockUnknowns));
                 }
-                block = "";
+                block.setLength(0);
+                blockUnknowns = null;
+                blockIsEmpty = true;
                 continue;
             }
 
             String nextPart = iterator.nextIncludingNewLines();
 
-            if (nextPart.trim().equals("\n")) {
-                block += nextPart;
-            } else {
-                block += " " + nextPart;
-            }
+            block.append(' ').append(nextPart);
+            blockUnknowns = iterator.addVariables(blockUnknowns);
+            blockIsEmpty = blockIsEmpty && nextPart.trim().isEmpty();
         }
     }
 
@@ -212,6 +257,8 @@ public class ParenthesesBlock implements IStatement
      */
     public void setAllowSelect(boolean allowSelect)
     {
+        Statements.checkNotFrozen(this.frozen);
+        this.state.changed();
         this.allowSelect = allowSelect;
     }
 
@@ -220,34 +267,78 @@ public class ParenthesesBlock implements IStatement
      */
     public  void setOptional(boolean optional)
     {
+        Statements.checkNotFrozen(this.frozen);
+        this.state.changed();
         this.optional = optional;
     }
 
     /**
-     * @return a string representation of this block
+     * @return a string representation of this block, it is kept until the block changes, see StatementState
      */
     public String toString()
     {
-        String toreturn = "";
+        return this.state.toString(this);
+    }
+
+    /**
+     * writes the string representation of this block to the output
+     *
+     * @param out the output
+     * @throws IOException if the output cannot be written to
+     */
+    public void writeTo(Appendable out) throws IOException
+    {
+        if(this.state.rendered != null)
+        {
+            out.append(this.state.rendered);
+            return;
+        }
 
         if(graph != null && !graph.trim().isEmpty())
         {
-            toreturn += "GRAPH <" + this.graph + ">\n{\n";
+            out.append("GRAPH <").append(this.graph).append(">\n{\n");
         }
 
         if(optional)
-            toreturn += "\nOPTIONAL {\n";
+            out.append("\nOPTIONAL {\n");
 
-        for(IStatement statement : statements)
-            toreturn += statement.toString();
+        Statements.writeTo(this.statements, out);
 
         if(optional)
-            toreturn += "\n}";
+            out.append("\n}");
 
         if((graph != null && !graph.trim().isEmpty()))
-            toreturn += "\n}";
+            out.append("\n}");
+    }
+
+    /**
+     * @return the length of the string representation of this block
+     */
+    public int getLength()
+    {
+        if(this.state.rendered != null)
+        {
+            return this.state.rendered.length();
+        }
+
+        int length = Statements.length(this.statements);
+
+        if(graph != null && !graph.trim().isEmpty())
+            length += "GRAPH <".length() + this.graph.length() + ">\n{\n".length() + "\n}".length();
+
+        if(optional)
+            length += "\nOPTIONAL {\n".length() + "\n}".length();
+
+        return length;
+    }
 
-        return toreturn;
+    /**
+     * @param visitor the visitor
+     * @return what visitor.visit(this) returned
+     */
+    public boolean accept(IStatementVisitor visitor)
+    {
+        return visitor.visit(this);
     }
 
     /**
@@ -271,12 +362,16 @@ public class ParenthesesBlock implements IStatement
         }
 
         // then initialize a new block
-        ParenthesesBlock clone = new ParenthesesBlock(clonedStatements, this.graph);
+        ParenthesesBlock clone = newBlock(clonedStatements, this.graph);
+        clone.own(clone.statements);
 
         // setting the 2 booleans
         clone.setAllowSelect(this.allowSelect);
         clone.setOptional(this.optional);
 
+        // the clone reads the same as this block, so it is spliced like this block is, see Splice
+        clone.state.source = this.state.source;
+
         // and returning the clone
         return clone;
     }
@@ -292,10 +387,11 @@ public class ParenthesesBlock implements IStatement
      */
     public void replaceGraphStatements(String newGraph)
     {
+        Statements.checkNotFrozen(this.frozen);
         this.graph = newGraph;
+        this.state.graphChanged();
 
-        for(IStatement s : this.statements)
-            s.replaceGraphStatements(newGraph);
+        Statements.replaceGraphStatements(this.statements, newGraph);
     }
 
     /**
@@ -308,11 +404,171 @@ public class ParenthesesBlock implements IStatement
      */
     public void replaceGraphStatements(String oldGraph, String newGraph)
     {
-        if(this.graph.equals(oldGraph))
+        Statements.checkNotFrozen(this.frozen);
+        if(Statements.sameGraph(this.graph, oldGraph))
+        {
             this.graph = newGraph;
+            this.state.graphChanged();
+        }
 
-        for(IStatement s : this.statements)
-            s.replaceGraphStatements(oldGraph, newGraph);
+        Statements.replaceGraphStatements(this.statements, oldGraph, newGraph);
+    }
+
+    /**
+     * replaces the graph of this block, and of all statements inside it, that is a key in the map by the
+     * graph it maps to, in a single pass
+     *
+     * @param graphs the old graph names mapped on the new ones
+     * @param touched the set the old names of the graphs that were replaced are added to
+     */
+    public void remapGraphs(Map<String, String> graphs, Set<String> touched)
+    {
+        Statements.checkNotFrozen(this.frozen);
+        String graph = Statements.remapGraph(this.graph, graphs, touched);
+        if(graph != this.graph)
+        {
+            this.graph = graph;
+            this.state.graphChanged();
+        }
+
+        Statements.remapGraphs(this.statements, graphs, touched);
+    }
+
+    /**
+     * freezes this block and all statements inside it
+     *
+     * @return this block
+     */
+    public ParenthesesBlock freeze()
+    {
+        if(!this.frozen)
+        {
+            this.statements = Statements.freeze(this.statements);
+            this.frozen = true;
+        }
+        return this;
+    }
+
+    /**
+     * @return true if this block is frozen
+     */
+    public boolean isFrozen()
+    {
+        return this.frozen;
+    }
+
+    /**
+     * the immutable version of replaceGraphStatements(newGraph), this block is frozen first
+     *
+     * @param newGraph the name of the new graph
+     * @return a frozen block that shares all unchanged statements, this block if nothing changes
+     */
+    public ParenthesesBlock withGraphStatements(String newGraph)
+    {
+        freeze();
+        List<IStatement> statements = Statements.withGraphStatements(this.statements, newGraph);
+        if(statements == this.statements && Statements.sameGraph(this.graph, newGraph))
+        {
+            return this;
+        }
+        return copy(newGraph, statements);
+    }
+
+    /**
+     * the immutable version of replaceGraphStatements(oldGraph, newGraph), this block is frozen first
+     *
+     * @param oldGraph the name of tha graph that needs be replaced
+     * @param newGraph the new graph name
+     * @return a frozen block that shares all unchanged statements, this block if nothing changes
+     */
+    public ParenthesesBlock withGraphStatements(String oldGraph, String newGraph)
+    {
+        freeze();
+        String graph = Statements.sameGraph(this.graph, oldGraph) ? newGraph : this.graph;
+        List<IStatement> statements = Statements.withGraphStatements(this.statements, oldGraph, newGraph);
+        if(statements == this.statements && Statements.sameGraph(this.graph, graph))
+        {
+            return this;
+        }
+        return copy(graph, statements);
+    }
+
+    /**
+     * the immutable version of remapGraphs, this block is frozen first
+     *
+     * @param graphs the old graph names mapped on the new ones
+     * @param touched the set the old names of the graphs that were replaced are added to
+     * @return a frozen block that shares all unchanged statements, this block if nothing changes
+     */
+    public ParenthesesBlock withRemappedGraphs(Map<String, String> graphs, Set<String> touched)
+    {
+        freeze();
+        String graph = Statements.remapGraph(this.graph, graphs, touched);
+        List<IStatement> statements = Statements.withRemappedGraphs(this.statements, graphs, touched);
+        if(statements == this.statements && Statements.sameGraph(this.graph, graph))
+        {
+            return this;
+        }
+        return copy(graph, statements);
+    }
+
+    /**
+     * makes a frozen copy of this frozen block with another graph and other statements
+     *
+     * @param graph the graph of the copy
+     * @param statements the frozen statements of the copy
+     * @return the copy
+     */
+    private ParenthesesBlock copy(String graph, List<IStatement> statements)
+    {
+        ParenthesesBlock copy = newBlock(statements, graph);
+        copy.allowSelect = this.allowSelect;
+        copy.optional = this.optional;
+        copy.state.source = this.state.source;
+        copy.frozen = true;
+        // only graph names changed, and those do not change the unknowns
+        copy.state.unknowns = this.state.unknowns;
+        copy.state.unknownSet = this.state.unknownSet;
+        return copy;
+    }
+
+    /**
+     * @return a copy of this block that is neither frozen nor shared, the statements inside it are shared with
+     *         this block, see Statements.writable
+     */
+    ParenthesesBlock writableCopy()
+    {
+        ParenthesesBlock copy = newBlock(this.statements, this.graph);
+        copy.own(Statements.share(this.statements));
+        copy.allowSelect = this.allowSelect;
+        copy.optional = this.optional;
+        copy.state.copy(this.state);
+        return copy;
+    }
+
+    /**
+     * gives this block a list of its own with the given statements, so it is told when they change, see
+     * StatementState. It is only used on new blocks.
+     *
+     * @param statements the statements
+     */
+    void own(List<IStatement> statements)
+    {
+        this.state.untracked = false;
+        this.statements = new TrackedList<IStatement>(this.state, statements);
+    }
+
+    /**
+     * creates a new block of the same class as this one, it is overridden by the subclasses so copies and
+     * clones keep their class
+     *
+     * @param statements the statements of the new block
+     * @param graph the graph of the new block
+     * @return the new block
+     */
+    protected ParenthesesBlock newBlock(List<IStatement> statements, String graph)
+    {
+        return new ParenthesesBlock(statements, graph);
     }
 
     /**
@@ -324,4 +580,13 @@ public class ParenthesesBlock implements IStatement
     {
         return this.graph;
     }
+
+    /**
+     * @return an unmodifiable set with the graphs named in this block and in all blocks inside it, it is kept
+     *         until a graph inside the block changes, see StatementState
+     */
+    public Set<String> getGraphs()
+    {
+        return this.state.graphs(this, this.graph, this.statements);
+    }
 }
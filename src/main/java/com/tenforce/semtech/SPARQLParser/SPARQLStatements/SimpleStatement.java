@@ -1,6 +1,11 @@
 package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
 
+import com.tenforce.semtech.SPARQLParser.SPARQL.SPARQLLexer;
+
+import java.io.IOException;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -13,6 +18,19 @@ public class SimpleStatement implements IStatement {
     // a hashset with the unknowns
     private Set<String> unknowns = new HashSet<String>();
 
+    // true once the statement is frozen
+    private boolean frozen = false;
+
+    // the unknowns as a set of ids, see getUnknowns(VariableTable), null until they are asked for
+    private VariableSet unknownSet = null;
+
+    // the triple patterns in the statement, see getTriplePatterns, null until they are asked for and
+    // NO_TRIPLE_PATTERNS if the statement holds more than triple patterns
+    private TriplePatterns triplePatterns = null;
+
+    // marks a statement that holds more than triple patterns
+    private static final TriplePatterns NO_TRIPLE_PATTERNS = TriplePatterns.parse("");
+
     /**
      * default constructor
      *
@@ -23,35 +41,132 @@ public class SimpleStatement implements IStatement {
     {
         this.statement = statement;
         calculateUnknowns();
+        this.unknowns = Collections.unmodifiableSet(this.unknowns);
     }
 
     /**
-     * extracts the unknowns in the statement
+     * constructor for statements of which the unknowns are already known, the parser collects them from
+     * its tokens while it reads the statement so it does not have to be lexed again
+     *
+     * @param statement the statement
+     * @param unknowns the unknowns in the statement, null if it has none
      */
-    private void calculateUnknowns()
+    SimpleStatement(String statement, Set<String> unknowns)
     {
-        // to detect the unknowns we split the statement into blocks
-        for(String token : this.statement.split(" "))
+        this.statement = statement;
+        if(unknowns != null)
         {
-            // removing ), (
-            token.replace("(","").replace(")","");
+            this.unknowns = Collections.unmodifiableSet(unknowns);
+        }
+        else
+        {
+            this.unknowns = Collections.emptySet();
+        }
+    }
 
-            if(token.startsWith("?"))
+    /**
+     * constructor for a statement that consists of the given triple patterns, every triple is written in
+     * full and ended with a '.'
+     *
+     * @param triplePatterns the triple patterns
+     */
+    public SimpleStatement(TriplePatterns triplePatterns)
+    {
+        this(triplePatterns.toString());
+        this.triplePatterns = triplePatterns;
+    }
+
+    /**
+     * copy constructor, the unknowns and the triple patterns never change so they are shared with the original
+     *
+     * @param original the statement to copy
+     */
+    private SimpleStatement(SimpleStatement original)
+    {
+        this.statement = original.statement;
+        this.unknowns = original.unknowns;
+        this.triplePatterns = original.triplePatterns;
+    }
+
+    /**
+     * extracts the unknowns in the statement, the statement is lexed the same way the query is so
+     * "(?x", "?x)" and "?x." all give the unknown x
+     */
+    private void calculateUnknowns()
+    {
+        SPARQLLexer lexer = new SPARQLLexer(this.statement);
+        while(lexer.nextToken())
+        {
+            int variable = lexer.getTokenVariable();
+            if(variable >= 0)
             {
-                // if the token starts with ? it is a unknown
-                this.unknowns.add(token.substring(1, token.length()));
+                SPARQLLexer.addVariables(this.statement, lexer.getTokenStart() + variable, lexer.getTokenEnd(), this.unknowns);
             }
         }
     }
 
     /**
-     * @return the hashset with unknowns
+     * @return an unmodifiable set with the unknowns, they are calculated when the statement is created
      */
     public Set<String> getUnknowns()
     {
         return this.unknowns;
     }
 
+    /**
+     * @param table the variable table of the query
+     * @return the unknowns as a set of ids of the given table, it is calculated once per table
+     */
+    public VariableSet getUnknowns(VariableTable table)
+    {
+        VariableSet unknownSet = this.unknownSet;
+        if(unknownSet == null || unknownSet.getTable() != table)
+        {
+            unknownSet = table.of(this.unknowns);
+            this.unknownSet = unknownSet;
+        }
+        return unknownSet;
+    }
+
+    /**
+     * The triple patterns in this statement, they are read from the statement the first time they are asked
+     * for. A rewriter can change their terms with TriplePatterns.withTerm and put them back with
+     * withTriplePatterns, instead of editing the text of the statement.
+     *
+     * @return the triple patterns, null if the statement holds more than triple patterns (a FILTER, a
+     *         property path, ...)
+     */
+    public TriplePatterns getTriplePatterns()
+    {
+        TriplePatterns triplePatterns = this.triplePatterns;
+        if(triplePatterns == null)
+        {
+            triplePatterns = TriplePatterns.parse(this.statement);
+            if(triplePatterns == null)
+            {
+                triplePatterns = NO_TRIPLE_PATTERNS;
+            }
+            this.triplePatterns = triplePatterns;
+        }
+        return (triplePatterns == NO_TRIPLE_PATTERNS) ? null : triplePatterns;
+    }
+
+    /**
+     * the immutable way to change the triples of this statement
+     *
+     * @param triplePatterns the new triple patterns
+     * @return a frozen statement that consists of the given triple patterns, this statement if they are the
+     *         ones it already has
+     */
+    public SimpleStatement withTriplePatterns(TriplePatterns triplePatterns)
+    {
+        if(triplePatterns == this.triplePatterns)
+        {
+            return freeze();
+        }
+        return new SimpleStatement(triplePatterns).freeze();
+    }
+
     /**
      * @return this.statement
      */
@@ -60,12 +175,38 @@ public class SimpleStatement implements IStatement {
         return statement.toString();
     }
 
+    /**
+     * @param out the output
+     * @throws IOException if the output cannot be written to
+     */
+    public void writeTo(Appendable out) throws IOException
+    {
+        out.append(this.statement);
+    }
+
+    /**
+     * @return the length of this.statement
+     */
+    public int getLength()
+    {
+        return this.statement.length();
+    }
+
     /**
      * @return a clone of this object
      */
     public IStatement clone()
     {
-        return new SimpleStatement(this.statement);
+        return new SimpleStatement(this);
+    }
+
+    /**
+     * @param visitor the visitor
+     * @return what visitor.visit(this) returned
+     */
+    public boolean accept(IStatementVisitor visitor)
+    {
+        return visitor.visit(this);
     }
 
     /**
@@ -101,6 +242,70 @@ public class SimpleStatement implements IStatement {
     {
     }
 
+    /**
+     * a simple statement has no graph statements
+     *
+     * @param graphs the old graph names mapped on the new ones
+     * @param touched the set the old names of the graphs that were replaced are added to
+     */
+    public void remapGraphs(Map<String, String> graphs, Set<String> touched)
+    {
+    }
+
+    /**
+     * freezes this statement, a simple statement never changes so this only marks it as frozen
+     *
+     * @return this statement
+     */
+    public SimpleStatement freeze()
+    {
+        this.frozen = true;
+        return this;
+    }
+
+    /**
+     * @return true if this statement is frozen
+     */
+    public boolean isFrozen()
+    {
+        return this.frozen;
+    }
+
+    /**
+     * a simple statement has no graph statements
+     *
+     * @param newGraph the name of the new graph
+     * @return this statement, frozen
+     */
+    public SimpleStatement withGraphStatements(String newGraph)
+    {
+        return freeze();
+    }
+
+    /**
+     * a simple statement has no graph statements
+     *
+     * @param oldGraph the name of tha graph that needs be replaced
+     * @param newGraph the new graph name
+     * @return this statement, frozen
+     */
+    public SimpleStatement withGraphStatements(String oldGraph, String newGraph)
+    {
+        return freeze();
+    }
+
+    /**
+     * a simple statement has no graph statements
+     *
+     * @param graphs the old graph names mapped on the new ones
+     * @param touched the set the old names of the graphs that were replaced are added to
+     * @return this statement, frozen
+     */
+    public SimpleStatement withRemappedGraphs(Map<String, String> graphs, Set<String> touched)
+    {
+        return freeze();
+    }
+
     /**
      * a simple statement cannot 'have' a graph, therefor it returns null
      * when asked
@@ -111,4 +316,14 @@ public class SimpleStatement implements IStatement {
     {
         return null;
     }
+
+    /**
+     * a simple statement names no graphs
+     *
+     * @return an empty set
+     */
+    public Set<String> getGraphs()
+    {
+        return Collections.emptySet();
+    }
 }
@@ -0,0 +1,94 @@
+package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
+
+import com.tenforce.semtech.SPARQLParser.SPARQL.SplitQuery;
+
+/**
+ * Where a statement was found in the text of the query it was parsed from, and where the name of its graph
+ * is in that text. A statement that was parsed keeps its span, and so do the frozen copies of it that only
+ * have another graph, so the query can be written by copying its original text and only replacing the graph
+ * names (see Splice).
+ *
+ * A span never changes, it is shared by a statement and its copies.
+ */
+final class SourceSpan
+{
+    // the text of the query, the offsets below point into it
+    final CharSequence text;
+
+    // the offset of the first token of the statement and the offset just after its last token
+    final int start;
+    final int end;
+
+    // the offsets of the graph name between the '<' and '>' of its uri, -1 if the text names no graph
+    final int graphStart;
+    final int graphEnd;
+
+    // the graph as it was parsed, null if the text names no graph
+    final String graph;
+
+    /**
+     * default constructor
+     *
+     * @param text the text of the query
+     * @param start the offset of the first token of the statement
+     * @param end the offset just after the last token of the statement
+     * @param graphStart the offset of the graph name, -1 if there is none
+     * @param graphEnd the offset just after the graph name, -1 if there is none
+     * @param graph the graph as it was parsed, null if there is none
+     */
+    private SourceSpan(CharSequence text, int start, int end, int graphStart, int graphEnd, String graph)
+    {
+        this.text = text;
+        this.start = start;
+        this.end = end;
+        this.graphStart = graphStart;
+        this.graphEnd = graphEnd;
+        this.graph = graph;
+    }
+
+    /**
+     * the span of a statement that was just parsed, it ends at the token the iterator returned last
+     *
+     * @param iterator the iterator the statement was parsed from
+     * @param start the offset of the first token of the statement
+     * @param graphStart the offset of the graph name, -1 if the statement names no graph
+     * @param graphEnd the offset just after the graph name, -1 if the statement names no graph
+     * @param graph the graph of the statement, it is only kept if graphStart is not -1
+     * @return the span, null if the text of the query is not kept or if the statement starts or ends with a
+     *         token that was made up by the parser
+     */
+    static SourceSpan of(SplitQuery.SplitQueryIterator iterator, int start, int graphStart, int graphEnd, String graph)
+    {
+        CharSequence text = iterator.getQueryText();
+        int end = iterator.getCurrentEnd();
+        if(text == null || start < 0 || end < start)
+        {
+            return null;
+        }
+        if(graphStart < 0 || graphEnd < graphStart)
+        {
+            return new SourceSpan(text, start, end, -1, -1, null);
+        }
+        return new SourceSpan(text, start, end, graphStart, graphEnd, graph);
+    }
+
+    /**
+     * @param iterator an iterator that just returned the uri of a graph
+     * @return the offset of the graph name in that uri, -1 if the uri was made up by the parser
+     */
+    static int graphStart(SplitQuery.SplitQueryIterator iterator)
+    {
+        int start = iterator.getCurrentStart();
+        return (start < 0) ? -1 : start + 1;
+    }
+
+    /**
+     * @param iterator an iterator that just returned the uri of a graph
+     * @return the offset just after the graph name in that uri, -1 if the uri was made up by the parser
+     */
+    static int graphEnd(SplitQuery.SplitQueryIterator iterator)
+    {
+        int end = iterator.getCurrentEnd();
+        return (end < 0) ? -1 : end - 1;
+    }
+}
@@ -0,0 +1,200 @@
+package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
+
+import java.util.List;
+
+/**
+ * A splice replaces a part of the original text of a query by another text. A query that was parsed and of which
+ * only graph names were changed afterwards can be written by copying its original text and applying the splices
+ * for the changed graph names, instead of building the whole query again (see SPARQLQuery.getRewrittenQuery).
+ *
+ * collect finds the splices for a statement. A statement keeps its span as long as nothing but graph names
+ * change: a block that is not frozen drops its span as soon as more than that changes (see StatementState),
+ * and the clones of a block, the frozen copies made by the with methods and the copies of a shared block (see
+ * Statements.share) keep the span of the block they copy, except when they change more than a graph name.
+ */
+public final class Splice
+{
+    // the part of the original text that is replaced
+    private final int start;
+    private final int end;
+
+    // the text that replaces it
+    private final String text;
+
+    /**
+     * default constructor
+     *
+     * @param start the offset of the first character that is replaced
+     * @param end the offset just after the last character that is replaced
+     * @param text the text that replaces them
+     */
+    public Splice(int start, int end, String text)
+    {
+        this.start = start;
+        this.end = end;
+        this.text = text;
+    }
+
+    /**
+     * @return the offset of the first character that is replaced
+     */
+    public int getStart()
+    {
+        return this.start;
+    }
+
+    /**
+     * @return the offset just after the last character that is replaced
+     */
+    public int getEnd()
+    {
+        return this.end;
+    }
+
+    /**
+     * @return the text that replaces the part of the original text
+     */
+    public String getText()
+    {
+        return this.text;
+    }
+
+    /**
+     * Adds the splices that turn the original text of a statement into the text of the statement as it is now
+     * to the list, in the order of their offsets. This only works if the statement and every statement inside it
+     * were parsed from the given text, or cloned or copied from statements that were, and changed nothing but
+     * their graph.
+     *
+     * @param statement the statement
+     * @param text the text of the query the statement was parsed from, see SplitQueryIterator.getQueryText
+     * @param splices the list the splices are added to
+     * @return false if the statement cannot be written by splicing its original text, some splices may have
+     *         been added already
+     */
+    public static boolean collect(IStatement statement, CharSequence text, List<Splice> splices)
+    {
+        if(statement instanceof SimpleStatement)
+        {
+            // a simple statement never changes, its text is part of the text of its block
+            return true;
+        }
+        SourceSpan span = spanOf(statement);
+        if(span == null || span.text != text)
+        {
+            return false;
+        }
+
+        if(statement instanceof AskBlock)
+        {
+            // an ask block does not write its graph
+            return collect(((AskBlock) statement).getStatements(), text, splices);
+        }
+        if(statement instanceof ParenthesesBlock)
+        {
+            ParenthesesBlock block = (ParenthesesBlock) statement;
+            return collectGraph(block.getGraph(), span, splices) && collect(block.getStatements(), text, splices);
+        }
+        if(statement instanceof UpdateBlockStatement)
+        {
+            // an update block does not write its graph
+            UpdateBlockStatement block = (UpdateBlockStatement) statement;
+            return collect(block.getStatements(), text, splices) &&
+                    (block.getWhereBlock() == null || collect(block.getWhereBlock(), text, splices));
+        }
+        if(statement instanceof BlockStatement)
+        {
+            return collect(((BlockStatement) statement).getStatements(), text, splices);
+        }
+        if(statement instanceof SelectBlock)
+        {
+            SelectBlock block = (SelectBlock) statement;
+            return collectGraph(block.getGraph(), span, splices) && collect(block.getStatements(), text, splices);
+        }
+        if(statement instanceof DescribeBlock)
+        {
+            DescribeBlock block = (DescribeBlock) statement;
+            return collectGraph(block.getGraph(), span, splices) && collect(block.getStatements(), text, splices);
+        }
+        if(statement instanceof ConstructBlock)
+        {
+            // a construct block does not write its graph
+            return collect(((ConstructBlock) statement).getStatements(), text, splices);
+        }
+        return false;
+    }
+
+    /**
+     * @param statement a statement
+     * @return the offset in the text of the query where the statement was found, -1 if it was not parsed
+     *         from a text that is kept
+     */
+    public static int getSourceStart(IStatement statement)
+    {
+        SourceSpan span = spanOf(statement);
+        return (span == null) ? -1 : span.start;
+    }
+
+    /**
+     * @param statement a statement
+     * @return the offset in the text of the query just after the statement, -1 if it was not parsed from a
+     *         text that is kept
+     */
+    public static int getSourceEnd(IStatement statement)
+    {
+        SourceSpan span = spanOf(statement);
+        return (span == null) ? -1 : span.end;
+    }
+
+    /**
+     * calls collect for all statements in the list
+     *
+     * @param statements the statements
+     * @param text the text of the query
+     * @param splices the list the splices are added to
+     * @return false if one of the statements cannot be written by splicing
+     */
+    private static boolean collect(List<IStatement> statements, CharSequence text, List<Splice> splices)
+    {
+        for(IStatement statement : statements)
+        {
+            if(!collect(statement, text, splices))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * adds the splice for the graph of a statement if it changed
+     *
+     * @param graph the graph the statement has now
+     * @param span the span of the statement
+     * @param splices the list the splice is added to
+     * @return false if the graph changed in a way that cannot be spliced: the statement had no graph in the
+     *         text, or it has none anymore
+     */
+    private static boolean collectGraph(String graph, SourceSpan span, List<Splice> splices)
+    {
+        if(Statements.sameGraph(graph, span.graph))
+        {
+            return true;
+        }
+        if(span.graphStart < 0 || graph == null || graph.trim().isEmpty())
+        {
+            return false;
+        }
+        splices.add(new Splice(span.graphStart, span.graphEnd, graph));
+        return true;
+    }
+
+    /**
+     * @param statement a statement
+     * @return its span, null if it has none
+     */
+    private static SourceSpan spanOf(IStatement statement)
+    {
+        StatementState state = Statements.stateOf(statement);
+        return (state == null) ? null : state.source;
+    }
+}
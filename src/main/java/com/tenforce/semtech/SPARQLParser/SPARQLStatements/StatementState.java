@@ -0,0 +1,296 @@
+package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What a block knows about itself apart from its contents: where it was found in the text of the query, the
+ * block it is in, and what was calculated from its contents: its string representation and its unknowns.
+ * Every block has one, the blocks only differ in what they hold.
+ *
+ * A block that is not frozen can still keep what it calculated, as long as it is told about every
+ * change to it and to the blocks inside it. Its setters tell it (changed and graphChanged), the lists it hands
+ * out tell it (see TrackedList), and a block inside it tells it through its parent. A block that cannot be
+ * told about all changes, because it was given a list it does not own or holds a statement from outside this
+ * package, is untracked: it keeps nothing, and neither do the blocks around it.
+ *
+ * A block that is shared is held by more than one query or block, see SPARQLQuery.clone. It is never changed in
+ * its place: the block that holds it puts a copy of it in its place first (see Statements.writable), so only the
+ * blocks on the path to what changes are copied.
+ *
+ * A query has a state as well, the root that its top level statements tell about their changes, see GraphIndex.
+ * It only keeps the graph index of the query.
+ */
+final class StatementState
+{
+    // where the block was found in the text of the query, null if it was not parsed from a text that is kept
+    // or if it changed more than a graph name since, see Splice
+    SourceSpan source = null;
+
+    // the state of the block this block is in, null if it is in none or if it is frozen
+    StatementState parent = null;
+
+    // true once the block can no longer tell when it or a block inside it changes
+    boolean untracked = false;
+
+    // true if the block may be held by more than one query or block, it is copied before it is changed
+    boolean shared = false;
+
+    // the string representation of the block, kept once it is asked for, see toString
+    String rendered = null;
+
+    // the unknowns of the block and of the statements inside it, and the same unknowns as a set of ids of the
+    // variable table they were last asked for with. They are kept until the statements of the block change,
+    // a graph name that changes does not change them.
+    Set<String> unknowns = null;
+    VariableSet unknownSet = null;
+
+    // the graphs named in the block and in the blocks inside it, kept once they are asked for until a graph
+    // inside the block changes, see graphs
+    Set<String> graphs = null;
+
+    // the graph of the first block inside the block that names one, "" if none does, kept like the graphs.
+    // Only an update block asks for it, see UpdateBlockStatement.getGraph.
+    String innerGraph = null;
+
+    // the graph index of a query, only kept by the root, see GraphIndex
+    Map<String, List<int []>> occurrences = null;
+
+    /**
+     * the string representation of a block, it is built once and kept until the block changes if the block
+     * is frozen or tracked
+     *
+     * @param statement the block this is the state of
+     * @return the string representation of the block
+     */
+    String toString(IStatement statement)
+    {
+        String rendered = this.rendered;
+        if(rendered == null)
+        {
+            rendered = Statements.toString(statement);
+            if(keeps(statement))
+            {
+                this.rendered = rendered;
+            }
+        }
+        return rendered;
+    }
+
+    /**
+     * the unknowns of a block, they are calculated once and kept until the statements of the block change if
+     * the block is frozen or tracked
+     *
+     * @param statement the block this is the state of
+     * @param statements the statements inside the block
+     * @param own the unknowns of the block itself, null if it has none
+     * @return an unmodifiable set with the unknowns of the block and of its statements
+     */
+    Set<String> unknowns(IStatement statement, List<IStatement> statements, Set<String> own)
+    {
+        Set<String> unknowns = this.unknowns;
+        if(unknowns == null)
+        {
+            Set<String> u = new HashSet<String>();
+            for(IStatement s : statements)
+                u.addAll(s.getUnknowns());
+            if(own != null)
+                u.addAll(own);
+            unknowns = Collections.unmodifiableSet(u);
+            if(keeps(statement))
+            {
+                this.unknowns = unknowns;
+            }
+        }
+        return unknowns;
+    }
+
+    /**
+     * the unknowns of a block as a set of ids of the given table, kept like unknowns() is
+     *
+     * @param statement the block this is the state of
+     * @param table the variable table of the query
+     * @param statements the statements inside the block
+     * @param own the unknowns of the block itself, null if it has none
+     * @return the set of unknowns
+     */
+    VariableSet unknowns(IStatement statement, VariableTable table, List<IStatement> statements, Set<String> own)
+    {
+        VariableSet unknownSet = this.unknownSet;
+        if(unknownSet == null || unknownSet.getTable() != table)
+        {
+            unknownSet = Statements.unknowns(table, statements, own);
+            if(keeps(statement))
+            {
+                this.unknownSet = unknownSet;
+            }
+        }
+        return unknownSet;
+    }
+
+    /**
+     * the graphs named in a block and in the blocks inside it, they are calculated once and kept until a
+     * graph inside the block changes if the block is frozen or tracked
+     *
+     * @param statement the block this is the state of
+     * @param graph the graph of the block itself, may be null
+     * @param statements the statements inside the block
+     * @return an unmodifiable set with the graph names
+     */
+    Set<String> graphs(IStatement statement, String graph, List<IStatement> statements)
+    {
+        Set<String> graphs = this.graphs;
+        if(graphs == null)
+        {
+            graphs = Statements.graphs(graph, statements);
+            if(keeps(statement))
+            {
+                this.graphs = graphs;
+            }
+        }
+        return graphs;
+    }
+
+    /**
+     * @param statement the block this is the state of
+     * @return true if the block may keep what it calculates
+     */
+    boolean keeps(IStatement statement)
+    {
+        return statement.isFrozen() || !this.untracked;
+    }
+
+    /**
+     * called when more than a graph name of the block changes: the block can no longer be spliced, and it
+     * and the blocks around it have to be built again
+     */
+    void changed()
+    {
+        this.source = null;
+        for(StatementState state = this; state != null; state = state.parent)
+        {
+            state.rendered = null;
+            state.unknowns = null;
+            state.unknownSet = null;
+            state.graphs = null;
+            state.innerGraph = null;
+            state.occurrences = null;
+        }
+    }
+
+    /**
+     * called when a graph name of the block changes, the block and the blocks around it have to be built
+     * again
+     */
+    void graphChanged()
+    {
+        for(StatementState state = this; state != null; state = state.parent)
+        {
+            state.rendered = null;
+            state.graphs = null;
+            state.innerGraph = null;
+            state.occurrences = null;
+        }
+    }
+
+    /**
+     * called when the block can no longer tell when it changes, it and the blocks around it stop keeping
+     * what they calculate
+     */
+    void untrack()
+    {
+        for(StatementState state = this; state != null; state = state.parent)
+        {
+            state.untracked = true;
+            state.rendered = null;
+            state.unknowns = null;
+            state.unknownSet = null;
+            state.graphs = null;
+            state.innerGraph = null;
+            state.occurrences = null;
+        }
+    }
+
+    /**
+     * called when a statement is put in the block: the statement tells the block when it changes from then on
+     *
+     * @param statement the statement
+     */
+    void adopt(Object statement)
+    {
+        if(!(statement instanceof IStatement) || statement instanceof SimpleStatement)
+        {
+            // strings and simple statements never change
+            return;
+        }
+        IStatement child = (IStatement) statement;
+        if(child.isFrozen())
+        {
+            return;
+        }
+        StatementState state = Statements.stateOf(child);
+        if(state == null)
+        {
+            // a statement from outside this package does not tell anyone that it changes
+            untrack();
+            return;
+        }
+        if(state.shared)
+        {
+            // a shared block keeps the parent it had, it is copied before it changes anyway
+            if(state.untracked)
+            {
+                untrack();
+            }
+            return;
+        }
+        if(state.parent != null && state.parent != this)
+        {
+            // the block it was in will no longer be told
+            state.parent.untrack();
+        }
+        state.parent = this;
+        if(state.untracked)
+        {
+            untrack();
+        }
+    }
+
+    /**
+     * copies the span and what was calculated from a block to a copy of that block with the same contents
+     *
+     * @param state the state of the block that was copied
+     */
+    void copy(StatementState state)
+    {
+        this.source = state.source;
+        if(!this.untracked)
+        {
+            this.rendered = state.rendered;
+            this.unknowns = state.unknowns;
+            this.unknownSet = state.unknownSet;
+            this.graphs = state.graphs;
+            this.innerGraph = state.innerGraph;
+        }
+    }
+
+    /**
+     * called when a statement is taken out of the block
+     *
+     * @param statement the statement
+     */
+    void release(Object statement)
+    {
+        if(statement instanceof IStatement)
+        {
+            StatementState state = Statements.stateOf((IStatement) statement);
+            if(state != null && state.parent == this)
+            {
+                state.parent = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Walks over statements and everything inside them, in the order in which they are written, and hands every
+ * statement to a visitor. The walk uses a stack of its own instead of recursion, and the stack is kept
+ * between walks, so walking a query with a walker that was used before allocates nothing.
+ *
+ * The walker reads the statements of a block directly, so walking a query does not make it copy the statements
+ * it shares with its clones (getStatements of the query does, as the caller may change the list it returns).
+ *
+ * While a statement is visited getDepth tells how deep it is nested, so a visitor can for instance find the
+ * deepest nesting of blocks in a query without a walk of its own.
+ *
+ * A walker is not thread safe, every thread needs its own. A visitor may start another walk with the same
+ * walker while it is being walked.
+ */
+public final class StatementWalker
+{
+    // the statements that still have to be visited, the next one is on top
+    private IStatement [] stack = new IStatement[16];
+
+    // the depth of every statement on the stack
+    private int [] depths = new int[16];
+
+    // the number of statements on the stack
+    private int size = 0;
+
+    // the depth of the statement that is being visited
+    private int depth = 0;
+
+    /**
+     * visits the statement and, as long as the visitor asks for it, everything inside it
+     *
+     * @param statement the statement
+     * @param visitor the visitor
+     */
+    public void walk(IStatement statement, IStatementVisitor visitor)
+    {
+        int base = this.size;
+        push(statement, 1);
+        run(base, visitor);
+    }
+
+    /**
+     * visits the statements one after the other and, as long as the visitor asks for it, everything inside
+     * them
+     *
+     * @param statements the statements, for instance those of a query
+     * @param visitor the visitor
+     */
+    public void walk(List<IStatement> statements, IStatementVisitor visitor)
+    {
+        int base = this.size;
+        pushAll(statements, 1);
+        run(base, visitor);
+    }
+
+    /**
+     * visits the statements above base on the stack, and the statements inside them
+     *
+     * @param base the size of the stack when the walk started
+     * @param visitor the visitor
+     */
+    private void run(int base, IStatementVisitor visitor)
+    {
+        // a walk started by a visitor gives the depth of the statement it was visiting back when it ends
+        int outerDepth = this.depth;
+        try
+        {
+            while(this.size > base)
+            {
+                IStatement statement = this.stack[--this.size];
+                int depth = this.depths[this.size];
+                this.stack[this.size] = null;
+                this.depth = depth;
+                if(statement.accept(visitor))
+                {
+                    pushInner(statement, depth + 1);
+                }
+            }
+        }
+        finally
+        {
+            // a visitor that throws leaves nothing behind for the next walk
+            while(this.size > base)
+                this.stack[--this.size] = null;
+            this.depth = outerDepth;
+        }
+    }
+
+    /**
+     * @return the depth of the statement that is being visited, the statements a walk starts with have depth 1
+     *         and the statements inside a block are 1 deeper than the block. The where block of an update block
+     *         is written next to it, it has the same depth as the update block.
+     */
+    public int getDepth()
+    {
+        return this.depth;
+    }
+
+    /**
+     * pushes the statements inside a statement, so they are visited next
+     *
+     * @param statement the statement
+     * @param depth the depth of the statements inside it
+     */
+    private void pushInner(IStatement statement, int depth)
+    {
+        if(statement instanceof ParenthesesBlock)
+        {
+            pushAll(((ParenthesesBlock) statement).statements, depth);
+        }
+        else if(statement instanceof UpdateBlockStatement)
+        {
+            // the where block comes after the statements
+            UpdateBlockStatement block = (UpdateBlockStatement) statement;
+            if(block.getWhereBlock() != null)
+            {
+                push(block.getWhereBlock(), depth - 1);
+            }
+            pushAll(block.statements, depth);
+        }
+        else if(statement instanceof BlockStatement)
+        {
+            pushAll(((BlockStatement) statement).statements, depth);
+        }
+        else if(statement instanceof SelectBlock)
+        {
+            pushAll(((SelectBlock) statement).statements, depth);
+        }
+        else if(statement instanceof DescribeBlock)
+        {
+            pushAll(((DescribeBlock) statement).statements, depth);
+        }
+        else if(statement instanceof ConstructBlock)
+        {
+            pushAll(((ConstructBlock) statement).statements, depth);
+        }
+    }
+
+    /**
+     * pushes the statements in reverse, so the first one is visited first
+     *
+     * @param statements the statements
+     * @param depth the depth of the statements
+     */
+    private void pushAll(List<IStatement> statements, int depth)
+    {
+        for(int i = statements.size() - 1; i >= 0; --i)
+            push(statements.get(i), depth);
+    }
+
+    /**
+     * @param statement a statement that has to be visited
+     * @param depth the depth of the statement
+     */
+    private void push(IStatement statement, int depth)
+    {
+        if(this.size == this.stack.length)
+        {
+            IStatement [] stack = new IStatement[this.stack.length * 2];
+            System.arraycopy(this.stack, 0, stack, 0, this.size);
+            this.stack = stack;
+            this.depths = Arrays.copyOf(this.depths, stack.length);
+        }
+        this.depths[this.size] = depth;
+        this.stack[this.size++] = statement;
+    }
+}
@@ -0,0 +1,650 @@
+package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Helper functions that are shared by the statements to freeze themselves, to return changed versions
+ * of themselves once they are frozen and to calculate their sets of unknowns.
+ *
+ * A frozen statement never changes, so the unchanged statements in a list of statements can be shared between
+ * the old and the new version of their parent. The functions on lists below only copy a list if one of its
+ * statements changes, and they keep every statement that did not change. SPARQLQuery uses the public ones
+ * for its own list of statements.
+ *
+ * A statement that is shared (see share) is not frozen, but it is not changed in its place either: the
+ * functions below that change the statements in a list first put a copy of a shared statement in its place,
+ * which shares the statements inside it in turn. So only the statements on the path to a change are copied.
+ */
+public final class Statements
+{
+    /**
+     * this class only has static functions
+     */
+    private Statements()
+    {
+    }
+
+    /**
+     * throws an exception if the statement is frozen, every method that changes a statement calls this first
+     *
+     * @param frozen true if the statement is frozen
+     * @throws UnsupportedOperationException if frozen is true
+     */
+    static void checkNotFrozen(boolean frozen)
+    {
+        if(frozen)
+        {
+            throw new UnsupportedOperationException("This statement is frozen and cannot be changed, use the with methods instead");
+        }
+    }
+
+    /**
+     * freezes all statements in the list
+     *
+     * @param statements the statements
+     * @return an unmodifiable copy of the list
+     */
+    static List<IStatement> freeze(List<IStatement> statements)
+    {
+        for(IStatement s : statements)
+            s.freeze();
+        return Collections.unmodifiableList(new ArrayList<IStatement>(statements));
+    }
+
+    /**
+     * @param strings a list of strings
+     * @return an unmodifiable copy of the list
+     */
+    static List<String> freezeStrings(List<String> strings)
+    {
+        return Collections.unmodifiableList(new ArrayList<String>(strings));
+    }
+
+    /**
+     * @param strings a set of strings
+     * @return an unmodifiable copy of the set
+     */
+    static Set<String> freezeStrings(Set<String> strings)
+    {
+        return Collections.unmodifiableSet(new HashSet<String>(strings));
+    }
+
+    /**
+     * calls withGraphStatements(newGraph) on all statements in the list
+     *
+     * @param statements the frozen statements
+     * @param newGraph the name of the new graph
+     * @return statements if no statement changed, otherwise an unmodifiable list that holds the changed
+     *         statements and shares all others
+     */
+    public static List<IStatement> withGraphStatements(List<IStatement> statements, String newGraph)
+    {
+        List<IStatement> changed = null;
+        for(int i = 0; i < statements.size(); ++i)
+        {
+            IStatement statement = statements.get(i);
+            IStatement replaced = statement.withGraphStatements(newGraph);
+            if(replaced != statement && changed == null)
+            {
+                changed = new ArrayList<IStatement>(statements.size());
+                changed.addAll(statements.subList(0, i));
+            }
+            if(changed != null)
+                changed.add(replaced);
+        }
+        return (changed == null) ? statements : Collections.unmodifiableList(changed);
+    }
+
+    /**
+     * calls withGraphStatements(oldGraph, newGraph) on all statements in the list
+     *
+     * @param statements the frozen statements
+     * @param oldGraph the name of tha graph that needs be replaced
+     * @param newGraph the new graph name
+     * @return statements if no statement changed, otherwise an unmodifiable list that holds the changed
+     *         statements and shares all others
+     */
+    public static List<IStatement> withGraphStatements(List<IStatement> statements, String oldGraph, String newGraph)
+    {
+        List<IStatement> changed = null;
+        for(int i = 0; i < statements.size(); ++i)
+        {
+            IStatement statement = statements.get(i);
+            IStatement replaced = names(statement, oldGraph) ? statement.withGraphStatements(oldGraph, newGraph) : statement;
+            if(replaced != statement && changed == null)
+            {
+                changed = new ArrayList<IStatement>(statements.size());
+                changed.addAll(statements.subList(0, i));
+            }
+            if(changed != null)
+                changed.add(replaced);
+        }
+        return (changed == null) ? statements : Collections.unmodifiableList(changed);
+    }
+
+    /**
+     * calls withRemappedGraphs(graphs, touched) on all statements in the list
+     *
+     * @param statements the frozen statements
+     * @param graphs the old graph names mapped on the new ones
+     * @param touched the set the old names of the graphs that were replaced are added to
+     * @return statements if no statement changed, otherwise an unmodifiable list that holds the changed
+     *         statements and shares all others
+     */
+    public static List<IStatement> withRemappedGraphs(List<IStatement> statements, Map<String, String> graphs, Set<String> touched)
+    {
+        List<IStatement> changed = null;
+        for(int i = 0; i < statements.size(); ++i)
+        {
+            IStatement statement = statements.get(i);
+            IStatement replaced = namesAny(statement, graphs) ? statement.withRemappedGraphs(graphs, touched) : statement;
+            if(replaced != statement && changed == null)
+            {
+                changed = new ArrayList<IStatement>(statements.size());
+                changed.addAll(statements.subList(0, i));
+            }
+            if(changed != null)
+                changed.add(replaced);
+        }
+        return (changed == null) ? statements : Collections.unmodifiableList(changed);
+    }
+
+    /**
+     * calls replaceGraphStatements(newGraph) on all statements in the list, a statement that is shared or frozen
+     * is replaced by a copy first
+     *
+     * @param statements the statements
+     * @param newGraph the name of the new graph
+     */
+    public static void replaceGraphStatements(List<IStatement> statements, String newGraph)
+    {
+        for(int i = 0; i < statements.size(); ++i)
+            writable(statements, i).replaceGraphStatements(newGraph);
+    }
+
+    /**
+     * calls replaceGraphStatements(oldGraph, newGraph) on all statements in the list, a statement that is
+     * shared or frozen is replaced by a copy first if it names the old graph
+     *
+     * @param statements the statements
+     * @param oldGraph the name of tha graph that needs be replaced
+     * @param newGraph the new graph name
+     */
+    public static void replaceGraphStatements(List<IStatement> statements, String oldGraph, String newGraph)
+    {
+        for(int i = 0; i < statements.size(); ++i)
+        {
+            IStatement statement = statements.get(i);
+            if(!copied(statement) || names(statement, oldGraph))
+                writable(statements, i).replaceGraphStatements(oldGraph, newGraph);
+        }
+    }
+
+    /**
+     * calls remapGraphs(graphs, touched) on all statements in the list, a statement that is shared or frozen
+     * is replaced by a copy first if it names one of the graphs
+     *
+     * @param statements the statements
+     * @param graphs the old graph names mapped on the new ones
+     * @param touched the set the old names of the graphs that were replaced are added to
+     */
+    public static void remapGraphs(List<IStatement> statements, Map<String, String> graphs, Set<String> touched)
+    {
+        for(int i = 0; i < statements.size(); ++i)
+        {
+            IStatement statement = statements.get(i);
+            if(!copied(statement) || namesAny(statement, graphs))
+                writable(statements, i).remapGraphs(graphs, touched);
+        }
+    }
+
+    /**
+     * marks a statement as shared, after which it is copied before it is changed, see writable
+     *
+     * @param statement a statement that is about to be held by another query or block as well
+     * @return the statement, or a clone of it if it is a statement from outside this package, which cannot be
+     *         told that it is shared
+     */
+    public static IStatement share(IStatement statement)
+    {
+        if(statement instanceof SimpleStatement || statement.isFrozen())
+        {
+            // these never change
+            return statement;
+        }
+        StatementState state = stateOf(statement);
+        if(state == null)
+        {
+            return statement.clone();
+        }
+        state.shared = true;
+        return statement;
+    }
+
+    /**
+     * marks all statements in the list as shared, see share(IStatement)
+     *
+     * @param statements the statements
+     * @return statements, or a copy of it if one of them had to be cloned
+     */
+    public static List<IStatement> share(List<IStatement> statements)
+    {
+        List<IStatement> shared = statements;
+        for(int i = 0; i < statements.size(); ++i)
+        {
+            IStatement statement = statements.get(i);
+            IStatement copy = share(statement);
+            if(copy != statement)
+            {
+                if(shared == statements)
+                {
+                    shared = new ArrayList<IStatement>(statements);
+                }
+                shared.set(i, copy);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * replaces every statement in the list, and inside the statements in it, that is shared or frozen by a
+     * clone of its own, so all of them can be changed by a caller that gets the list
+     *
+     * @param statements the statements
+     */
+    public static void unshare(List<IStatement> statements)
+    {
+        for(int i = 0; i < statements.size(); ++i)
+        {
+            IStatement statement = statements.get(i);
+            if(copied(statement))
+            {
+                put(statements, i, statement.clone());
+            }
+            else if(statement instanceof UpdateBlockStatement)
+            {
+                ((UpdateBlockStatement) statement).unshare();
+            }
+            else if(stateOf(statement) != null)
+            {
+                unshare(statementsOf(statement));
+            }
+        }
+    }
+
+    /**
+     * @param statements a list of statements
+     * @param index the index of a statement in the list
+     * @return the statement, or a copy of it that was put in its place if it is shared or frozen
+     */
+    static IStatement writable(List<IStatement> statements, int index)
+    {
+        IStatement statement = statements.get(index);
+        if(copied(statement))
+        {
+            statement = writableCopy(statement);
+            put(statements, index, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * @param statement a statement
+     * @return true if the statement has to be copied before it is changed: it is one of the blocks of this
+     *         package and it is shared or frozen
+     */
+    static boolean copied(IStatement statement)
+    {
+        StatementState state = stateOf(statement);
+        return state != null && (state.shared || statement.isFrozen());
+    }
+
+    /**
+     * puts a copy of a statement in its place in a list, the block the list belongs to does not change
+     *
+     * @param statements the list
+     * @param index the index of the statement
+     * @param copy the copy
+     */
+    private static void put(List<IStatement> statements, int index, IStatement copy)
+    {
+        if(statements instanceof TrackedList)
+        {
+            ((TrackedList<IStatement>) statements).swap(index, copy);
+        }
+        else
+        {
+            statements.set(index, copy);
+        }
+    }
+
+    /**
+     * @param statement one of the blocks of this package
+     * @return a copy of the block that is neither frozen nor shared, it shares the statements inside it
+     */
+    private static IStatement writableCopy(IStatement statement)
+    {
+        if(statement instanceof ParenthesesBlock)
+        {
+            return ((ParenthesesBlock) statement).writableCopy();
+        }
+        if(statement instanceof BlockStatement)
+        {
+            return ((BlockStatement) statement).writableCopy();
+        }
+        if(statement instanceof SelectBlock)
+        {
+            return ((SelectBlock) statement).writableCopy();
+        }
+        if(statement instanceof DescribeBlock)
+        {
+            return ((DescribeBlock) statement).writableCopy();
+        }
+        return ((ConstructBlock) statement).writableCopy();
+    }
+
+    /**
+     * @param statement one of the blocks of this package
+     * @return the statements inside the block
+     */
+    static List<IStatement> statementsOf(IStatement statement)
+    {
+        if(statement instanceof ParenthesesBlock)
+        {
+            return ((ParenthesesBlock) statement).statements;
+        }
+        if(statement instanceof BlockStatement)
+        {
+            return ((BlockStatement) statement).statements;
+        }
+        if(statement instanceof SelectBlock)
+        {
+            return ((SelectBlock) statement).statements;
+        }
+        if(statement instanceof DescribeBlock)
+        {
+            return ((DescribeBlock) statement).statements;
+        }
+        return ((ConstructBlock) statement).statements;
+    }
+
+    /**
+     * @param graph the graph of a statement, may be null
+     * @param graphs the old graph names mapped on the new ones
+     * @param touched the set graph is added to if it is replaced
+     * @return the graph the given graph maps to, the given graph itself if it is not in the map
+     */
+    public static String remapGraph(String graph, Map<String, String> graphs, Set<String> touched)
+    {
+        if(graph == null || !graphs.containsKey(graph))
+        {
+            return graph;
+        }
+        touched.add(graph);
+        return graphs.get(graph);
+    }
+
+    /**
+     * @param graph the graph of a block, may be null
+     * @param statements the statements of the block
+     * @return an unmodifiable set with the graph and the graphs of the statements
+     */
+    static Set<String> graphs(String graph, List<IStatement> statements)
+    {
+        Set<String> graphs = null;
+        if(graph != null && !graph.isEmpty())
+        {
+            graphs = new HashSet<String>();
+            graphs.add(graph);
+        }
+        for(IStatement statement : statements)
+        {
+            Set<String> inner = statement.getGraphs();
+            if(!inner.isEmpty())
+            {
+                if(graphs == null)
+                {
+                    graphs = new HashSet<String>();
+                }
+                graphs.addAll(inner);
+            }
+        }
+        return (graphs == null) ? Collections.<String>emptySet() : Collections.unmodifiableSet(graphs);
+    }
+
+    /**
+     * @param statement a frozen statement, or one of the blocks of this package
+     * @param graph a graph name, may be null
+     * @return false if the statement certainly does not name the graph, so replacing it can be skipped. An
+     *         empty graph name is matched by blocks without a graph, which getGraphs leaves out. Only
+     *         the graphs of a frozen statement or of a block of this package are certain, a statement from
+     *         outside this package that is not frozen may not know the graphs of the statements inside it.
+     */
+    public static boolean names(IStatement statement, String graph)
+    {
+        return graph == null || graph.isEmpty() || !knowsGraphs(statement) || statement.getGraphs().contains(graph);
+    }
+
+    /**
+     * @param statement a statement
+     * @return true if getGraphs of the statement holds all graphs inside it, see names
+     */
+    private static boolean knowsGraphs(IStatement statement)
+    {
+        return statement.isFrozen() || stateOf(statement) != null;
+    }
+
+    /**
+     * @param statement a frozen statement, or one of the blocks of this package
+     * @param graphs old graph names mapped on new ones
+     * @return false if the statement certainly names none of the graphs in the map. A block without a graph
+     *         is never remapped, so a null key in the map names nothing; the map is never asked for a null key,
+     *         as not every map allows that.
+     */
+    public static boolean namesAny(IStatement statement, Map<String, String> graphs)
+    {
+        if(!knowsGraphs(statement))
+        {
+            // see names
+            return true;
+        }
+        Set<String> named = statement.getGraphs();
+        if(named.isEmpty())
+        {
+            return graphs.containsKey("");
+        }
+        if(named.size() < graphs.size())
+        {
+            for(String graph : named)
+            {
+                if(graphs.containsKey(graph))
+                {
+                    return true;
+                }
+            }
+            return graphs.containsKey("");
+        }
+        for(String graph : graphs.keySet())
+        {
+            if(graph != null && (graph.isEmpty() || named.contains(graph)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * calculates the set of unknowns of a block from the sets of its statements
+     *
+     * @param table the variable table
+     * @param statements the statements of the block
+     * @param unknowns the unknowns of the block itself, null if it has none
+     * @return the union of the unknowns of the block and of its statements
+     */
+    static VariableSet unknowns(VariableTable table, List<IStatement> statements, Set<String> unknowns)
+    {
+        BitSet ids = (unknowns == null) ? new BitSet() : table.bitsOf(unknowns);
+        for(IStatement s : statements)
+            ids.or(s.getUnknowns(table).bits());
+        return new VariableSet(table, ids);
+    }
+
+    /**
+     * writes a statement into a StringBuilder that is exactly as large as its string representation
+     *
+     * @param statement the statement
+     * @return the string representation of the statement
+     */
+    static String toString(IStatement statement)
+    {
+        StringBuilder builder = new StringBuilder(statement.getLength());
+        try
+        {
+            statement.writeTo(new Rendering(builder));
+        }
+        catch(IOException e)
+        {
+            // a StringBuilder never throws
+            throw new UncheckedIOException(e);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * writes all statements in the list to the output
+     *
+     * @param statements the statements
+     * @param out the output
+     * @throws IOException if the output cannot be written to
+     */
+    static void writeTo(List<IStatement> statements, Appendable out) throws IOException
+    {
+        for(IStatement statement : statements)
+            write(statement, out);
+    }
+
+    /**
+     * writes a statement that is part of a block to the output. When the block is written by toString a
+     * statement that keeps its string representation (see StatementState) is written as that string, so a
+     * block that only changed in one place only builds that place again. Otherwise every statement streams
+     * itself to the output with writeTo, and no strings are built.
+     *
+     * @param statement the statement
+     * @param out the output
+     * @throws IOException if the output cannot be written to
+     */
+    static void write(IStatement statement, Appendable out) throws IOException
+    {
+        StatementState state;
+        if(out instanceof Rendering && (state = stateOf(statement)) != null && state.keeps(statement))
+        {
+            out.append(statement.toString());
+        }
+        else
+        {
+            statement.writeTo(out);
+        }
+    }
+
+    /**
+     * @param statement a statement
+     * @return the state of the statement, null if it is a simple statement or a statement from outside this
+     *         package
+     */
+    static StatementState stateOf(IStatement statement)
+    {
+        if(statement instanceof ParenthesesBlock)
+        {
+            return ((ParenthesesBlock) statement).state;
+        }
+        if(statement instanceof BlockStatement)
+        {
+            return ((BlockStatement) statement).state;
+        }
+        if(statement instanceof SelectBlock)
+        {
+            return ((SelectBlock) statement).state;
+        }
+        if(statement instanceof DescribeBlock)
+        {
+            return ((DescribeBlock) statement).state;
+        }
+        if(statement instanceof ConstructBlock)
+        {
+            return ((ConstructBlock) statement).state;
+        }
+        return null;
+    }
+
+    /**
+     * The output toString writes a statement to, see write
+     */
+    private static final class Rendering implements Appendable
+    {
+        // the builder the statement is written to
+        private final StringBuilder builder;
+
+        Rendering(StringBuilder builder)
+        {
+            this.builder = builder;
+        }
+
+        public Appendable append(CharSequence text)
+        {
+            this.builder.append(text);
+            return this;
+        }
+
+        public Appendable append(CharSequence text, int start, int end)
+        {
+            this.builder.append(text, start, end);
+            return this;
+        }
+
+        public Appendable append(char c)
+        {
+            this.builder.append(c);
+            return this;
+        }
+    }
+
+    /**
+     * @param statements the statements
+     * @return the sum of the lengths of the statements
+     */
+    static int length(List<IStatement> statements)
+    {
+        int length = 0;
+        for(IStatement statement : statements)
+            length += statement.getLength();
+        return length;
+    }
+
+    /**
+     * @param text a piece of text, may be null
+     * @return the number of characters the text adds to a string, "null" if it is null
+     */
+    static int length(String text)
+    {
+        return String.valueOf(text).length();
+    }
+
+    /**
+     * @param graph a graph name, may be null
+     * @param other another graph name, may be null
+     * @return true if both names are equal or both are null
+     */
+    public static boolean sameGraph(String graph, String other)
+    {
+        return (graph == null) ? other == null : graph.equals(other);
+    }
+}
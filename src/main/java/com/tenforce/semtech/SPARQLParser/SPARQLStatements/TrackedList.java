@@ -0,0 +1,101 @@
+package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A list that belongs to a block and tells the block when it changes, see StatementState. The blocks hand
+ * these out from getStatements and getSolutionModifier, so a caller can still change what they return.
+ *
+ * @param <E> statements, or the strings of a block
+ */
+final class TrackedList<E> extends AbstractList<E> implements RandomAccess
+{
+    // the state of the block the list belongs to
+    private final StatementState owner;
+
+    // the elements
+    private final List<E> elements;
+
+    /**
+     * @param owner the state of the block the list belongs to
+     */
+    TrackedList(StatementState owner)
+    {
+        this.owner = owner;
+        this.elements = new ArrayList<E>();
+    }
+
+    /**
+     * @param owner the state of the block the list belongs to
+     * @param elements the elements the list starts with, they are copied
+     */
+    TrackedList(StatementState owner, Collection<? extends E> elements)
+    {
+        this.owner = owner;
+        this.elements = new ArrayList<E>(elements);
+        for(E element : this.elements)
+            owner.adopt(element);
+    }
+
+    /**
+     * @param list a list
+     * @param owner the state of a block
+     * @return true if the list is a tracked list of that block
+     */
+    static boolean owns(List<?> list, StatementState owner)
+    {
+        return list instanceof TrackedList && ((TrackedList<?>) list).owner == owner;
+    }
+
+    public E get(int index)
+    {
+        return this.elements.get(index);
+    }
+
+    public int size()
+    {
+        return this.elements.size();
+    }
+
+    public void add(int index, E element)
+    {
+        this.elements.add(index, element);
+        ++this.modCount;
+        this.owner.changed();
+        this.owner.adopt(element);
+    }
+
+    public E set(int index, E element)
+    {
+        E old = this.elements.set(index, element);
+        this.owner.changed();
+        this.owner.release(old);
+        this.owner.adopt(element);
+        return old;
+    }
+
+    /**
+     * puts a copy of an element in its place, the block does not change
+     *
+     * @param index the index of the element
+     * @param copy the copy
+     */
+    void swap(int index, E copy)
+    {
+        this.elements.set(index, copy);
+        this.owner.adopt(copy);
+    }
+
+    public E remove(int index)
+    {
+        E old = this.elements.remove(index);
+        ++this.modCount;
+        this.owner.changed();
+        this.owner.release(old);
+        return old;
+    }
+}
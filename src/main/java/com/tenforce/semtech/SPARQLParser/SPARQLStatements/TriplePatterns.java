@@ -0,0 +1,590 @@
+package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
+
+import com.tenforce.semtech.SPARQLParser.SPARQL.SPARQLLexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The triple patterns of a simple statement, as subject, predicate and object terms that each have a kind
+ * (see TermKind). The terms of all triples are kept in a single array, 3 per triple, next to an array with
+ * their kinds, so a rewriter can look at and replace terms without splitting the text of the statement.
+ *
+ * The abbreviations ';' and ',' are expanded: "?s ex:p ?a, ?b ; ex:q ?c" gives 3 triples that all have ?s
+ * as their subject. Only statements that consist of nothing but triple patterns have them, a statement with
+ * a FILTER, a BIND, a property path, a collection or a blank node with properties has none (see parse).
+ *
+ * Triple patterns never change, withTerm returns a copy.
+ */
+public final class TriplePatterns
+{
+    /**
+     * The kinds of terms. The keyword 'a' is an IRI, numbers and the booleans true and false are literals,
+     * "[]" is a blank node.
+     */
+    public enum TermKind
+    {
+        VARIABLE, IRI, PREFIXED_NAME, LITERAL, BLANK_NODE
+    }
+
+    /**
+     * the positions of a term in its triple
+     */
+    public static final int SUBJECT = 0;
+    public static final int PREDICATE = 1;
+    public static final int OBJECT = 2;
+
+    // the kinds by ordinal, TermKind.values() makes a new array every time it is called
+    private static final TermKind [] KINDS = TermKind.values();
+
+    // the terms, 3 per triple
+    private final String [] terms;
+
+    // the kind of every term, as the ordinal of its TermKind
+    private final byte [] kinds;
+
+    /**
+     * default constructor
+     *
+     * @param terms the terms, 3 per triple
+     * @param kinds the ordinal of the kind of every term
+     */
+    private TriplePatterns(String [] terms, byte [] kinds)
+    {
+        this.terms = terms;
+        this.kinds = kinds;
+    }
+
+    /**
+     * Reads the triple patterns in a piece of text, for instance the text of a simple statement.
+     *
+     * @param text the text
+     * @return the triple patterns, null if the text holds anything but triple patterns
+     */
+    public static TriplePatterns parse(CharSequence text)
+    {
+        Scanner scanner = new Scanner(text);
+        List<String> terms = new ArrayList<String>();
+        List<TermKind> kinds = new ArrayList<TermKind>();
+
+        while(!scanner.atEnd())
+        {
+            if(!scanner.nextTerm())
+            {
+                return null;
+            }
+            String subject = scanner.term;
+            TermKind subjectKind = scanner.kind;
+
+            do
+            {
+                if(!scanner.nextTerm() || !isVerb(scanner.kind))
+                {
+                    return null;
+                }
+                String predicate = scanner.term;
+                TermKind predicateKind = scanner.kind;
+
+                do
+                {
+                    if(!scanner.nextTerm())
+                    {
+                        return null;
+                    }
+                    terms.add(subject);
+                    terms.add(predicate);
+                    terms.add(scanner.term);
+                    kinds.add(subjectKind);
+                    kinds.add(predicateKind);
+                    kinds.add(scanner.kind);
+                }
+                while(scanner.skip(','));
+            }
+            while(scanner.skipPredicateSeparators());
+
+            if(!scanner.skip('.') && !scanner.atEnd())
+            {
+                return null;
+            }
+        }
+
+        byte [] kindOrdinals = new byte[kinds.size()];
+        for(int i = 0; i < kindOrdinals.length; ++i)
+            kindOrdinals[i] = (byte) kinds.get(i).ordinal();
+        return new TriplePatterns(terms.toArray(new String[terms.size()]), kindOrdinals);
+    }
+
+    /**
+     * @param term a single term, for instance "?x", "&lt;http://example.org/x&gt;" or "\"x\"@en"
+     * @return the kind of the term
+     * @throws IllegalArgumentException if the text is not a single term
+     */
+    public static TermKind kindOf(String term)
+    {
+        Scanner scanner = new Scanner(term);
+        if(!scanner.nextTerm() || !scanner.atEnd())
+        {
+            throw new IllegalArgumentException(term + " is not a single term");
+        }
+        return scanner.kind;
+    }
+
+    /**
+     * @return the number of triples
+     */
+    public int size()
+    {
+        return this.terms.length / 3;
+    }
+
+    /**
+     * @param triple the index of the triple
+     * @param position SUBJECT, PREDICATE or OBJECT
+     * @return the term as it is written
+     */
+    public String getTerm(int triple, int position)
+    {
+        return this.terms[index(triple, position)];
+    }
+
+    /**
+     * @param triple the index of the triple
+     * @param position SUBJECT, PREDICATE or OBJECT
+     * @return the kind of the term
+     */
+    public TermKind getKind(int triple, int position)
+    {
+        return KINDS[this.kinds[index(triple, position)]];
+    }
+
+    /**
+     * @param triple the index of the triple
+     * @return the subject of the triple
+     */
+    public String getSubject(int triple)
+    {
+        return getTerm(triple, SUBJECT);
+    }
+
+    /**
+     * @param triple the index of the triple
+     * @return the predicate of the triple
+     */
+    public String getPredicate(int triple)
+    {
+        return getTerm(triple, PREDICATE);
+    }
+
+    /**
+     * @param triple the index of the triple
+     * @return the object of the triple
+     */
+    public String getObject(int triple)
+    {
+        return getTerm(triple, OBJECT);
+    }
+
+    /**
+     * @param triple the index of the triple
+     * @param position SUBJECT, PREDICATE or OBJECT
+     * @param term the new term
+     * @return a copy of these triple patterns in which the term is replaced
+     * @throws IllegalArgumentException if the new term is not a single term, or if it is not a variable or an
+     *         IRI while it replaces a predicate
+     */
+    public TriplePatterns withTerm(int triple, int position, String term)
+    {
+        int index = index(triple, position);
+        TermKind kind = kindOf(term);
+        if(position == PREDICATE && !isVerb(kind))
+        {
+            throw new IllegalArgumentException(term + " cannot be a predicate");
+        }
+
+        String [] terms = Arrays.copyOf(this.terms, this.terms.length);
+        byte [] kinds = Arrays.copyOf(this.kinds, this.kinds.length);
+        terms[index] = term;
+        kinds[index] = (byte) kind.ordinal();
+        return new TriplePatterns(terms, kinds);
+    }
+
+    /**
+     * @return the triples, each written in full and ended with a '.'
+     */
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < this.terms.length; i += 3)
+        {
+            builder.append(' ').append(this.terms[i]).append(' ').append(this.terms[i + 1]).append(' ')
+                    .append(this.terms[i + 2]).append(" .");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param triple the index of a triple
+     * @param position SUBJECT, PREDICATE or OBJECT
+     * @return the index of the term in this.terms
+     */
+    private int index(int triple, int position)
+    {
+        if(triple < 0 || triple >= size() || position < SUBJECT || position > OBJECT)
+        {
+            throw new IndexOutOfBoundsException("no term " + position + " in triple " + triple);
+        }
+        return triple * 3 + position;
+    }
+
+    /**
+     * @param kind the kind of a term
+     * @return true if a term of that kind can be a predicate
+     */
+    private static boolean isVerb(TermKind kind)
+    {
+        return kind == TermKind.VARIABLE || kind == TermKind.IRI || kind == TermKind.PREFIXED_NAME;
+    }
+
+    /**
+     * Reads the terms and the punctuation in a text front to back, without building anything but the
+     * terms themselves.
+     */
+    private static class Scanner
+    {
+        // the text
+        private final CharSequence text;
+
+        // the position of the next character that will be read
+        private int position = 0;
+
+        // the last term that was read and its kind
+        private String term;
+        private TermKind kind;
+
+        private Scanner(CharSequence text)
+        {
+            this.text = text;
+        }
+
+        /**
+         * @return true if only whitespace is left
+         */
+        private boolean atEnd()
+        {
+            skipWhitespace();
+            return this.position >= this.text.length();
+        }
+
+        /**
+         * skips the given punctuation character if it is next
+         *
+         * @param c the character
+         * @return true if it was skipped
+         */
+        private boolean skip(char c)
+        {
+            skipWhitespace();
+            if(this.position < this.text.length() && this.text.charAt(this.position) == c)
+            {
+                ++this.position;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * skips the ';' characters between the predicates of a subject, a ';' may end the list
+         *
+         * @return true if another predicate follows
+         */
+        private boolean skipPredicateSeparators()
+        {
+            if(!skip(';'))
+            {
+                return false;
+            }
+            while(skip(';'))
+                ;
+            return !atEnd() && this.text.charAt(this.position) != '.';
+        }
+
+        /**
+         * reads the next term
+         *
+         * @return false if the next thing in the text is not a term that ends where a term may end
+         */
+        private boolean nextTerm()
+        {
+            if(atEnd())
+            {
+                return false;
+            }
+            int start = this.position;
+            char c = this.text.charAt(start);
+
+            if(c == '?' || c == '$')
+            {
+                this.position = skipWhile(start + 1, false);
+                if(this.position == start + 1)
+                {
+                    return false;
+                }
+                return found(start, TermKind.VARIABLE);
+            }
+            if(c == '<')
+            {
+                int end = indexOf('>', start + 1);
+                if(end < 0)
+                {
+                    return false;
+                }
+                this.position = end + 1;
+                return found(start, TermKind.IRI);
+            }
+            if(c == '\"' || c == '\'')
+            {
+                return readLiteral(start, c);
+            }
+            if(c == '[')
+            {
+                // only the anonymous blank node, a blank node with properties is not a single term
+                ++this.position;
+                if(!skip(']'))
+                {
+                    return false;
+                }
+                this.term = "[]";
+                this.kind = TermKind.BLANK_NODE;
+                return endsHere();
+            }
+            if(c == '_' && start + 1 < this.text.length() && this.text.charAt(start + 1) == ':')
+            {
+                this.position = skipWhile(start + 2, true);
+                return found(start, TermKind.BLANK_NODE);
+            }
+            if((c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.')
+            {
+                return readNumber(start);
+            }
+
+            this.position = skipWhile(start, true);
+            String word = this.text.subSequence(start, this.position).toString();
+            if(word.equals("a"))
+            {
+                return found(start, TermKind.IRI);
+            }
+            if(word.equals("true") || word.equals("false"))
+            {
+                return found(start, TermKind.LITERAL);
+            }
+            if(word.indexOf(':') < 0)
+            {
+                return false;
+            }
+            return found(start, TermKind.PREFIXED_NAME);
+        }
+
+        /**
+         * reads a string literal with its language tag or datatype
+         *
+         * @param start the offset of its first quote
+         * @param quote the quote character
+         * @return false if the literal is not closed
+         */
+        private boolean readLiteral(int start, char quote)
+        {
+            boolean longQuote = start + 2 < this.text.length() && this.text.charAt(start + 1) == quote &&
+                    this.text.charAt(start + 2) == quote;
+            int i = start + (longQuote ? 3 : 1);
+            while(true)
+            {
+                if(i >= this.text.length())
+                {
+                    return false;
+                }
+                char c = this.text.charAt(i);
+                if(c == '\\')
+                {
+                    i += 2;
+                    continue;
+                }
+                if(c == quote && (!longQuote || (i + 2 < this.text.length() && this.text.charAt(i + 1) == quote &&
+                        this.text.charAt(i + 2) == quote)))
+                {
+                    i += longQuote ? 3 : 1;
+                    break;
+                }
+                ++i;
+            }
+
+            if(i < this.text.length() && this.text.charAt(i) == '@')
+            {
+                int end = i + 1;
+                while(end < this.text.length() && (Character.isLetterOrDigit(this.text.charAt(end)) || this.text.charAt(end) == '-'))
+                    ++end;
+                if(end == i + 1)
+                {
+                    return false;
+                }
+                i = end;
+            }
+            else if(i + 1 < this.text.length() && this.text.charAt(i) == '^' && this.text.charAt(i + 1) == '^')
+            {
+                i += 2;
+                if(i < this.text.length() && this.text.charAt(i) == '<')
+                {
+                    int end = indexOf('>', i + 1);
+                    if(end < 0)
+                    {
+                        return false;
+                    }
+                    i = end + 1;
+                }
+                else
+                {
+                    int end = skipWhile(i, true);
+                    if(end == i || this.text.subSequence(i, end).toString().indexOf(':') < 0)
+                    {
+                        return false;
+                    }
+                    i = end;
+                }
+            }
+            this.position = i;
+            return found(start, TermKind.LITERAL);
+        }
+
+        /**
+         * reads an integer, decimal or double
+         *
+         * @param start the offset of its first character
+         * @return false if there is no number at start
+         */
+        private boolean readNumber(int start)
+        {
+            int i = start;
+            if(this.text.charAt(i) == '+' || this.text.charAt(i) == '-')
+            {
+                ++i;
+            }
+            int digits = i;
+            i = skipDigits(i);
+            boolean hasDigits = i > digits;
+            // a '.' that is not followed by a digit ends the triple
+            if(i + 1 < this.text.length() && this.text.charAt(i) == '.' && isDigit(this.text.charAt(i + 1)))
+            {
+                i = skipDigits(i + 1);
+                hasDigits = true;
+            }
+            if(!hasDigits)
+            {
+                return false;
+            }
+            if(i < this.text.length() && (this.text.charAt(i) == 'e' || this.text.charAt(i) == 'E'))
+            {
+                int exponent = i + 1;
+                if(exponent < this.text.length() && (this.text.charAt(exponent) == '+' || this.text.charAt(exponent) == '-'))
+                {
+                    ++exponent;
+                }
+                int end = skipDigits(exponent);
+                if(end == exponent)
+                {
+                    return false;
+                }
+                i = end;
+            }
+            this.position = i;
+            return found(start, TermKind.LITERAL);
+        }
+
+        /**
+         * keeps the term that was read from start up to the current position
+         *
+         * @param start the offset of the term
+         * @param kind the kind of the term
+         * @return true if the term ends where a term may end
+         */
+        private boolean found(int start, TermKind kind)
+        {
+            this.term = this.text.subSequence(start, this.position).toString();
+            this.kind = kind;
+            return endsHere();
+        }
+
+        /**
+         * @return true if the current position is the end of the text, whitespace or punctuation between terms
+         */
+        private boolean endsHere()
+        {
+            if(this.position >= this.text.length())
+            {
+                return true;
+            }
+            char c = this.text.charAt(this.position);
+            return c <= ' ' || c == '.' || c == ';' || c == ',';
+        }
+
+        /**
+         * @param start an offset
+         * @param names true to skip the characters of a prefixed name or blank node label, false to skip those
+         *              of a variable name
+         * @return the offset of the first character that is not skipped, a name never ends with a '.'
+         */
+        private int skipWhile(int start, boolean names)
+        {
+            int i = start;
+            while(i < this.text.length())
+            {
+                char c = this.text.charAt(i);
+                if(SPARQLLexer.isVariableNameChar(c) || (names && (c == '-' || c == '.' || c == ':' || c == '%')))
+                {
+                    ++i;
+                }
+                else if(names && c == '\\' && i + 1 < this.text.length())
+                {
+                    i += 2;
+                }
+                else
+                {
+                    break;
+                }
+            }
+            while(names && i > start && this.text.charAt(i - 1) == '.')
+                --i;
+            return i;
+        }
+
+        private int skipDigits(int start)
+        {
+            int i = start;
+            while(i < this.text.length() && isDigit(this.text.charAt(i)))
+                ++i;
+            return i;
+        }
+
+        private static boolean isDigit(char c)
+        {
+            return c >= '0' && c <= '9';
+        }
+
+        private int indexOf(char c, int start)
+        {
+            for(int i = start; i < this.text.length(); ++i)
+            {
+                if(this.text.charAt(i) == c)
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void skipWhitespace()
+        {
+            while(this.position < this.text.length() && this.text.charAt(this.position) <= ' ')
+                ++this.position;
+        }
+    }
+}
@@ -1,9 +1,10 @@
 package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
 
 import com.tenforce.semtech.SPARQLParser.SPARQL.InvalidSPARQLException;
+import com.tenforce.semtech.SPARQLParser.SPARQL.SPARQLLexer.Keyword;
 import com.tenforce.semtech.SPARQLParser.SPARQL.SplitQuery;
 
-import java.util.HashSet;
+import java.io.IOException;
 import java.util.Set;
 
 /**
@@ -30,17 +31,10 @@ public class UpdateBlockStatement extends BlockStatement
 
     }
 
-    public Set<String> getUnknowns()
-    {
-        Set<String> u = new HashSet<String>();
-        for(IStatement s : this.statements)
-            u.addAll(s.getUnknowns());
-        return u;
-    }
-
     public UpdateBlockStatement(BLOCKTYPE type, SplitQuery.SplitQueryIterator iterator) throws InvalidSPARQLException
     {
         this.type = type;
+        int start = iterator.getCurrentStart(); // the INSERT or DELETE
 
         if(!iterator.hasNext())
         {
@@ -48,7 +42,7 @@ public class UpdateBlockStatement extends BlockStatement
         }
 
         // who cares if it starts with insert data or insert
-        if(iterator.peekNext().toLowerCase().startsWith("data"))
+        if(iterator.peekNextStartsWith(Keyword.DATA))
         {
             String data = iterator.next();
             iterator.breakOff(data.substring(0, 4));
@@ -61,83 +55,124 @@ public class UpdateBlockStatement extends BlockStatement
         iterator.breakOff("{");
 
         parseBlock(iterator);
+        this.state.source = SourceSpan.of(iterator, start, -1, -1, null);
     }
 
     private void parseBlock(SplitQuery.SplitQueryIterator iterator) throws InvalidSPARQLException
     {
-        String block = "";
+        StringBuilder block = new StringBuilder();
+        Set<String> blockUnknowns = null; // the unknowns in block, collected while it is read
+        boolean blockIsEmpty = true; // true as long as the block only holds whitespace
+        String innerGraph = ""; // the graph of the first block inside this one that names one, see getGraph
 
         while (iterator.hasNextIncludingNewLines()) {
 
             // do we get a new inner block
-            if (iterator.peekNext().startsWith("}")) {
+            if (iterator.peekNextStartsWith('}')) {
                 iterator.next();
                 iterator.breakOff("}");
-                if(!block.trim().isEmpty()) {
-                    statements.add(new SimpleStatement(block));
+                if(!blockIsEmpty) {
+                    statements.add(new SimpleStatement(block.toString(), blockUnknowns));
                 }
+                this.state.innerGraph = innerGraph;
 
                 if(this.getUnknowns().size() > 0)
                 {
-                    if(!iterator.peekNext().toLowerCase().startsWith("where"))
+                    if(!iterator.peekNextStartsWith(Keyword.WHERE))
                     {
                         throw new InvalidSPARQLException("Invalid SPARQL on line: " + iterator.getCurrentLine() + " expected WHERE clause after " + this.type.name() + " clause around " + iterator.getPrevious());
                     }
                 }
 
-                if(iterator.hasNext() && iterator.peekNext().toLowerCase().startsWith("where"))
+                if(iterator.hasNext() && iterator.peekNextStartsWith(Keyword.WHERE))
                 {
                     String where = iterator.next();
                     iterator.breakOff(where.substring(0, 5));
                     this.whereBlock = new WhereBlockStatement(iterator);
+                    this.state.adopt(this.whereBlock);
                 }
                 return;
             }
 
             // hooray we have a new inner block!
-            if(iterator.peekNext().startsWith("{") || iterator.peekNext().toLowerCase().startsWith("graph")) {
-                if(!block.trim().isEmpty()) {
-                    statements.add(new SimpleStatement(block));
+            if(iterator.peekNextStartsWith('{') || iterator.peekNextStartsWith(Keyword.GRAPH)) {
+                if(!blockIsEmpty) {
+                    statements.add(new SimpleStatement(block.toString(), blockUnknowns));
+                }
+                block.setLength(0);
+                blockUnknowns = null;
+                blockIsEmpty = true;
+                ParenthesesBlock inner = new ParenthesesBlock(iterator);
+                statements.add(inner);
+                if(innerGraph.isEmpty() && inner.getGraph() != null)
+                {
+                    innerGraph = inner.getGraph();
                 }
-                block = "";
-                statements.add(new ParenthesesBlock(iterator));
                 continue;
             }
 
             String nextPart = iterator.nextIncludingNewLines();
 
-            if (nextPart.trim().equals("\n")) {
-                block += nextPart;
-            } else {
-                block += " " + nextPart;
-            }
+            block.append(' ').append(nextPart);
+            blockUnknowns = iterator.addVariables(blockUnknowns);
+            blockIsEmpty = blockIsEmpty && nextPart.trim().isEmpty();
         }
     }
 
-    public String toString()
+    /**
+     * writes the string representation of this block, and of its where block, to the output
+     *
+     * @param out the output
+     * @throws IOException if the output cannot be written to
+     */
+    public void writeTo(Appendable out) throws IOException
     {
-        String toReturn = "";
+        if(this.state.rendered != null)
+        {
+            out.append(this.state.rendered);
+            return;
+        }
+
         if(type == BLOCKTYPE.INSERT) {
-            toReturn += "INSERT \n{";
+            out.append("INSERT \n{");
         }
         else {
-            toReturn += "DELETE \n{";
+            out.append("DELETE \n{");
         }
 
         for(IStatement statement:statements)
         {
-            toReturn += statement.toString() + "\n";
+            Statements.write(statement, out);
+            out.append("\n");
         }
-        toReturn = toReturn.substring(0, toReturn.length());
 
-        toReturn += "\n}";
+        out.append("\n}");
 
         if(this.whereBlock != null)
         {
-            toReturn += "\n" + this.whereBlock.toString();
+            out.append("\n");
+            Statements.write(this.whereBlock, out);
         }
+    }
 
-        return toReturn;
+    /**
+     * @return the length of the string representation of this block
+     */
+    public int getLength()
+    {
+        if(this.state.rendered != null)
+        {
+            return this.state.rendered.length();
+        }
+
+        int length = "INSERT \n{".length() + Statements.length(this.statements) + statements.size() + "\n}".length();
+
+        if(this.whereBlock != null)
+        {
+            length += 1 + this.whereBlock.getLength();
+        }
+
+        return length;
     }
 
     public WhereBlockStatement getWhereBlock()
@@ -145,6 +180,15 @@ public class UpdateBlockStatement extends BlockStatement
         return this.whereBlock;
     }
 
+    /**
+     * @param visitor the visitor
+     * @return what visitor.visit(this) returned
+     */
+    public boolean accept(IStatementVisitor visitor)
+    {
+        return visitor.visit(this);
+    }
+
     public StatementType getType()
     {
         return StatementType.UPDATEBLOCK;
@@ -152,11 +196,74 @@ public class UpdateBlockStatement extends BlockStatement
 
     public BLOCKTYPE getUpdateType() { return this.type; }
 
-    public void setUpdateType(BLOCKTYPE type){this.type = type;}
+    public void setUpdateType(BLOCKTYPE type)
+    {
+        Statements.checkNotFrozen(this.frozen);
+        this.state.changed();
+        this.type = type;
+    }
 
     public void setWhereBlock(WhereBlockStatement whereBlock)
     {
+        Statements.checkNotFrozen(this.frozen);
+        this.state.changed();
+        this.state.release(this.whereBlock);
         this.whereBlock = whereBlock;
+        this.state.adopt(whereBlock);
+    }
+
+    public UpdateBlockStatement freeze()
+    {
+        if(!this.frozen && this.whereBlock != null)
+            this.whereBlock.freeze();
+        super.freeze();
+        return this;
+    }
+
+    protected UpdateBlockStatement shallowCopy()
+    {
+        UpdateBlockStatement copy = new UpdateBlockStatement();
+        copy.type = this.type;
+        copy.graph = this.graph;
+        copy.statements = this.statements;
+        copy.whereBlock = this.whereBlock;
+        return copy;
+    }
+
+    /**
+     * @return a copy of this block that is neither frozen nor shared, the statements inside it and its where
+     *         block are shared with this block, see Statements.writable
+     */
+    UpdateBlockStatement writableCopy()
+    {
+        UpdateBlockStatement copy = (UpdateBlockStatement) super.writableCopy();
+        if(copy.whereBlock != null)
+        {
+            Statements.share(copy.whereBlock);
+            copy.state.adopt(copy.whereBlock);
+        }
+        return copy;
+    }
+
+    /**
+     * gives this block clones of its own of the statements it shares, and of its where block if it shares that,
+     * see Statements.unshare
+     */
+    void unshare()
+    {
+        Statements.unshare(this.statements);
+        if(this.whereBlock != null)
+        {
+            if(Statements.copied(this.whereBlock))
+            {
+                this.whereBlock = this.whereBlock.clone();
+                this.state.adopt(this.whereBlock);
+            }
+            else
+            {
+                Statements.unshare(this.whereBlock.statements);
+            }
+        }
     }
 
     public UpdateBlockStatement clone()
@@ -172,29 +279,42 @@ public class UpdateBlockStatement extends BlockStatement
         for(IStatement s : this.statements)
             clone.getStatements().add(s.clone());
 
-        for(String s : this.getUnknowns())
-            clone.getUnknowns().add(s);
+        // the clone reads the same as this block, so it is spliced like this block is, see Splice
+        clone.state.source = this.state.source;
 
         return clone;
     }
 
+    /**
+     * @return the graph of this block, or if it has none the graph of the first block inside it that names one.
+     *         That graph is found when the block is parsed and kept until a graph inside the block changes,
+     *         see StatementState.
+     */
     public String getGraph()
     {
-        if(this.graph.isEmpty())
+        if(!this.graph.isEmpty())
         {
-            String graph = "";
+            return this.graph;
+        }
+        String graph = this.state.innerGraph;
+        if(graph == null)
+        {
+            graph = "";
             for(IStatement statement : this.statements)
             {
-                if(statement.getType() == StatementType.PARENTHESESBLOCK)
+                String inner = statement.getGraph();
+                if(statement.getType() == StatementType.PARENTHESESBLOCK && inner != null && !inner.isEmpty())
                 {
-                    if(!statement.getGraph().isEmpty())
-                    {
-                        return statement.getGraph();
-                    }
+                    graph = inner;
+                    break;
                 }
             }
+            if(this.state.keeps(this))
+            {
+                this.state.innerGraph = graph;
+            }
         }
-        return this.graph;
+        return graph.isEmpty() ? this.graph : graph;
     }
 
 
@@ -0,0 +1,183 @@
+package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
+
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * An immutable set of unknowns (variables) of a query, represented by their ids in a VariableTable.
+ *
+ * The set is backed by a BitSet so intersects, containsAll, union and intersection work on whole words.
+ * Sets can only be combined with sets of the same table.
+ */
+public final class VariableSet
+{
+    // the table that gives the ids their meaning
+    private final VariableTable table;
+
+    // the ids of the unknowns in this set, this BitSet is never changed
+    private final BitSet ids;
+
+    /**
+     * default constructor, the BitSet becomes part of this set and must not be changed anymore
+     *
+     * @param table the table
+     * @param ids the ids of the unknowns in the set
+     */
+    VariableSet(VariableTable table, BitSet ids)
+    {
+        this.table = table;
+        this.ids = ids;
+    }
+
+    /**
+     * @return the table of this set
+     */
+    public VariableTable getTable()
+    {
+        return this.table;
+    }
+
+    /**
+     * @param name the name of an unknown without the '?'
+     * @return true if the unknown is in this set
+     */
+    public boolean contains(String name)
+    {
+        int id = this.table.getId(name);
+        return id >= 0 && this.ids.get(id);
+    }
+
+    /**
+     * @param id the id of an unknown
+     * @return true if the unknown is in this set
+     */
+    public boolean contains(int id)
+    {
+        return this.ids.get(id);
+    }
+
+    /**
+     * @param other a set of the same table
+     * @return true if at least 1 unknown is in both sets
+     */
+    public boolean intersects(VariableSet other)
+    {
+        checkSameTable(other);
+        return this.ids.intersects(other.ids);
+    }
+
+    /**
+     * @param other a set of the same table
+     * @return true if every unknown of the other set is in this set
+     */
+    public boolean containsAll(VariableSet other)
+    {
+        checkSameTable(other);
+        BitSet missing = (BitSet) other.ids.clone();
+        missing.andNot(this.ids);
+        return missing.isEmpty();
+    }
+
+    /**
+     * @param other a set of the same table
+     * @return a set with the unknowns that are in either set
+     */
+    public VariableSet union(VariableSet other)
+    {
+        checkSameTable(other);
+        BitSet union = (BitSet) this.ids.clone();
+        union.or(other.ids);
+        return new VariableSet(this.table, union);
+    }
+
+    /**
+     * @param other a set of the same table
+     * @return a set with the unknowns that are in both sets
+     */
+    public VariableSet intersection(VariableSet other)
+    {
+        checkSameTable(other);
+        BitSet intersection = (BitSet) this.ids.clone();
+        intersection.and(other.ids);
+        return new VariableSet(this.table, intersection);
+    }
+
+    /**
+     * @return the number of unknowns in this set
+     */
+    public int size()
+    {
+        return this.ids.cardinality();
+    }
+
+    /**
+     * @return true if this set has no unknowns
+     */
+    public boolean isEmpty()
+    {
+        return this.ids.isEmpty();
+    }
+
+    /**
+     * @return a copy of the ids of the unknowns in this set
+     */
+    public BitSet toBitSet()
+    {
+        return (BitSet) this.ids.clone();
+    }
+
+    /**
+     * @return the names of the unknowns in this set, ordered by id
+     */
+    public Set<String> toNames()
+    {
+        Set<String> names = new LinkedHashSet<String>();
+        for(int id = this.ids.nextSetBit(0); id >= 0; id = this.ids.nextSetBit(id + 1))
+            names.add(this.table.getName(id));
+        return names;
+    }
+
+    /**
+     * @return the ids of the unknowns in this set, they must not be changed
+     */
+    BitSet bits()
+    {
+        return this.ids;
+    }
+
+    public boolean equals(Object other)
+    {
+        if(!(other instanceof VariableSet))
+        {
+            return false;
+        }
+        VariableSet set = (VariableSet) other;
+        return this.table == set.table && this.ids.equals(set.ids);
+    }
+
+    public int hashCode()
+    {
+        return this.ids.hashCode();
+    }
+
+    /**
+     * @return the names of the unknowns in this set
+     */
+    public String toString()
+    {
+        return toNames().toString();
+    }
+
+    /**
+     * @param other another set
+     * @throws IllegalArgumentException if the other set belongs to another table
+     */
+    private void checkSameTable(VariableSet other)
+    {
+        if(other.table != this.table)
+        {
+            throw new IllegalArgumentException("The sets of unknowns belong to different variable tables");
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The symbol table of the unknowns (variables) of a query. Every distinct unknown gets an int id, the first
+ * unknown that is added gets 0, the next one 1 and so on. An id never changes, the table only grows.
+ *
+ * The ids make it possible to represent a set of unknowns as a VariableSet, which is backed by a BitSet, so
+ * checking whether 2 sets of unknowns overlap or taking their union works on whole words instead of on
+ * strings. A query has its own table (see SPARQLQuery.getVariableTable) and every statement caches its set of
+ * unknowns for that table (see IStatement.getUnknowns(VariableTable)).
+ *
+ * The table is thread safe, so the table of a frozen query can be shared between threads. Looking up an
+ * unknown that is already in the table takes no lock, only adding an unknown does.
+ */
+public class VariableTable
+{
+    // the id of every unknown
+    private final ConcurrentHashMap<String, Integer> ids;
+
+    // the name of every unknown, by id, only the first size entries are used. An unknown is added to this array
+    // before it is added to ids, so every id that can be found has a name.
+    private volatile String [] names;
+    private volatile int size;
+
+    /**
+     * default constructor, creates an empty table
+     */
+    public VariableTable()
+    {
+        this.ids = new ConcurrentHashMap<String, Integer>();
+        this.names = new String[16];
+        this.size = 0;
+    }
+
+    /**
+     * constructor for a copy of a table
+     *
+     * @param table the table to copy
+     */
+    private VariableTable(VariableTable table)
+    {
+        synchronized(table)
+        {
+            this.ids = new ConcurrentHashMap<String, Integer>(table.ids);
+            this.names = Arrays.copyOf(table.names, Math.max(16, table.size));
+            this.size = table.size;
+        }
+    }
+
+    /**
+     * returns a copy of this table, the unknowns in the copy have the same ids as in this table but unknowns
+     * added to the one are not added to the other
+     *
+     * @return a copy of this table
+     */
+    public VariableTable copy()
+    {
+        return new VariableTable(this);
+    }
+
+    /**
+     * returns the id of the given unknown, the unknown is added to the table if it is not in it yet
+     *
+     * @param name the name of the unknown without the '?'
+     * @return the id of the unknown
+     */
+    public int intern(String name)
+    {
+        Integer id = this.ids.get(name);
+        if(id != null)
+        {
+            return id;
+        }
+        return add(name);
+    }
+
+    /**
+     * adds the given unknown to the table, unless another thread added it in the mean time
+     *
+     * @param name the name of the unknown without the '?'
+     * @return the id of the unknown
+     */
+    private synchronized int add(String name)
+    {
+        Integer id = this.ids.get(name);
+        if(id != null)
+        {
+            return id;
+        }
+
+        int size = this.size;
+        String [] names = this.names;
+        if(size == names.length)
+        {
+            names = Arrays.copyOf(names, size * 2);
+        }
+        names[size] = name;
+        this.names = names;
+        this.size = size + 1;
+        this.ids.put(name, size);
+        return size;
+    }
+
+    /**
+     * @param name the name of an unknown without the '?'
+     * @return the id of the unknown, -1 if it is not in the table
+     */
+    public int getId(String name)
+    {
+        Integer id = this.ids.get(name);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * @param id the id of an unknown
+     * @return the name of the unknown
+     * @throws IndexOutOfBoundsException if there is no unknown with the given id
+     */
+    public String getName(int id)
+    {
+        int size = this.size;
+        if(id < 0 || id >= size)
+        {
+            throw new IndexOutOfBoundsException("There is no unknown with id " + id + " in a table of " + size);
+        }
+        return this.names[id];
+    }
+
+    /**
+     * @return the number of unknowns in the table
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * returns the set of the given unknowns, the unknowns that are not in the table yet are added to it
+     *
+     * @param names the names of the unknowns without the '?'
+     * @return a set with the given unknowns
+     */
+    public VariableSet of(Collection<String> names)
+    {
+        return new VariableSet(this, bitsOf(names));
+    }
+
+    /**
+     * @param names the names of unknowns
+     * @return a BitSet with the ids of the unknowns, interning them where needed
+     */
+    BitSet bitsOf(Collection<String> names)
+    {
+        BitSet bits = new BitSet();
+        for(String name : names)
+            bits.set(intern(name));
+        return bits;
+    }
+}
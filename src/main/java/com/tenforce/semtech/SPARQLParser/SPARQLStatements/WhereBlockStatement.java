@@ -2,9 +2,10 @@ package com.tenforce.semtech.SPARQLParser.SPARQLStatements;
 
 import com.tenforce.semtech.SPARQLParser.SPARQL.SplitQuery;
 import com.tenforce.semtech.SPARQLParser.SPARQL.InvalidSPARQLException;
+import com.tenforce.semtech.SPARQLParser.SPARQL.SPARQLLexer.Keyword;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -30,6 +31,7 @@ public class WhereBlockStatement extends BlockStatement
     public WhereBlockStatement(SplitQuery.SplitQueryIterator iterator) throws InvalidSPARQLException
     {
         this.type = BLOCKTYPE.WHERE;
+        int start = iterator.getCurrentStart(); // the WHERE
 
         if(!iterator.hasNext())
         {
@@ -43,66 +45,93 @@ public class WhereBlockStatement extends BlockStatement
         iterator.breakOff("{");
 
         parseBlock(iterator);
-    }
-
-    public Set<String> getUnknowns()
-    {
-        Set<String> u = new HashSet<String>();
-        for(IStatement s : this.statements)
-            u.addAll(s.getUnknowns());
-        return u;
+        this.state.source = SourceSpan.of(iterator, start, -1, -1, null);
     }
 
     private void parseBlock(SplitQuery.SplitQueryIterator iterator) throws InvalidSPARQLException
     {
-        String block = "";
+        StringBuilder block = new StringBuilder();
+        Set<String> blockUnknowns = null; // the unknowns in block, collected while it is read
+        boolean blockIsEmpty = true; // true as long as the block only holds whitespace
 
         while (iterator.hasNextIncludingNewLines()) {
 
             // do we get a new inner block
-            if (iterator.peekNext().startsWith("}")) {
+            if (iterator.peekNextStartsWith('}')) {
                 iterator.next();
                 iterator.breakOff("}");
-                if(!block.trim().isEmpty()) {
-                    statements.add(new SimpleStatement(block));
+                if(!blockIsEmpty) {
+                    statements.add(new SimpleStatement(block.toString(), blockUnknowns));
                 }
                 return;
             }
 
             // hooray we have a new inner block!
-            if(iterator.peekNext().startsWith("{") || iterator.peekNext().toLowerCase().startsWith("graph")
-                    || iterator.peekNext().toLowerCase().startsWith("otpional")) {
-                if(!block.trim().isEmpty()) {
-                    statements.add(new SimpleStatement(block));
+            if(iterator.peekNextStartsWith('{') || iterator.peekNextStartsWith(Keyword.GRAPH)
+                    || iterator.peekNextStartsWith(Keyword.OPTIONAL)) {
+                if(!blockIsEmpty) {
+                    statements.add(new SimpleStatement(block.toString(), blockUnknowns));
                 }
-                block = "";
+                block.setLength(0);
+                blockUnknowns = null;
+                blockIsEmpty = true;
                 statements.add(new ParenthesesBlock(iterator));
                 continue;
             }
 
             String nextPart = iterator.nextIncludingNewLines();
 
-            if (nextPart.trim().equals("\n")) {
-                block += nextPart;
-            } else {
-                block += " " + nextPart;
-            }
+            block.append(' ').append(nextPart);
+            blockUnknowns = iterator.addVariables(blockUnknowns);
+            blockIsEmpty = blockIsEmpty && nextPart.trim().isEmpty();
         }
     }
 
-    public String toString()
+    /**
+     * writes the string representation of this block to the output
+     *
+     * @param out the output
+     * @throws IOException if the output cannot be written to
+     */
+    public void writeTo(Appendable out) throws IOException
     {
-        String toReturn = "WHERE\n {";
+        if(this.state.rendered != null)
+        {
+            out.append(this.state.rendered);
+            return;
+        }
+
+        out.append("WHERE\n {");
 
         for(IStatement statement:statements)
         {
-            toReturn += statement.toString() + "\n";
+            Statements.write(statement, out);
+            out.append("\n");
         }
-        toReturn = toReturn.substring(0, toReturn.length());
 
-        toReturn += "\n}";
+        out.append("\n}");
+    }
 
-        return toReturn;
+    /**
+     * @return the length of the string representation of this block
+     */
+    public int getLength()
+    {
+        if(this.state.rendered != null)
+        {
+            return this.state.rendered.length();
+        }
+
+        return "WHERE\n {".length() + Statements.length(this.statements) + statements.size() + "\n}".length();
+    }
+
+    /**
+     * @param visitor the visitor
+     * @return what visitor.visit(this) returned
+     */
+    public boolean accept(IStatementVisitor visitor)
+    {
+        return visitor.visit(this);
     }
 
     @Override
@@ -110,7 +139,21 @@ public class WhereBlockStatement extends BlockStatement
         return StatementType.WHEREBLOCK;
     }
 
-    public void setType(BLOCKTYPE type){this.type = type;}
+    public void setType(BLOCKTYPE type)
+    {
+        Statements.checkNotFrozen(this.frozen);
+        this.state.changed();
+        this.type = type;
+    }
+
+    protected WhereBlockStatement shallowCopy()
+    {
+        WhereBlockStatement copy = new WhereBlockStatement();
+        copy.type = this.type;
+        copy.graph = this.graph;
+        copy.statements = this.statements;
+        return copy;
+    }
 
     public WhereBlockStatement clone()
     {
@@ -122,8 +165,8 @@ public class WhereBlockStatement extends BlockStatement
         for(IStatement s : this.statements)
             clone.getStatements().add(s.clone());
 
-        for(String s : this.getUnknowns())
-            clone.getUnknowns().add(s);
+        // the clone reads the same as this block, so it is spliced like this block is, see Splice
+        clone.state.source = this.state.source;
 
         return clone;
     }
@@ -0,0 +1,61 @@
+package com.tenforce.semtech.SPARQLParser.SPARQL;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The queries the tests run on, read from queries.txt. The queries in that file are separated by a line that
+ * holds nothing but "====". Some of them are not valid SPARQL, on purpose.
+ */
+final class Corpus
+{
+    private Corpus()
+    {
+    }
+
+    /**
+     * @return the queries in queries.txt, in the order in which they appear in the file
+     * @throws IOException if the file could not be read
+     */
+    static List<String> queries() throws IOException
+    {
+        InputStream in = Corpus.class.getResourceAsStream("queries.txt");
+        if(in == null)
+        {
+            throw new IOException("queries.txt is not on the class path");
+        }
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte [] buffer = new byte[4096];
+            int read;
+            while((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+            String text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+            return new ArrayList<String>(Arrays.asList(text.split("\n====\n")));
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the queries in queries.txt, and the same queries with every newline written as a carriage
+     *         return followed by a newline
+     * @throws IOException if the file could not be read
+     */
+    static List<String> queriesWithLineEndings() throws IOException
+    {
+        List<String> queries = queries();
+        List<String> all = new ArrayList<String>(queries);
+        for(String query : queries)
+            all.add(query.replace("\n", "\r\n"));
+        return all;
+    }
+}
@@ -0,0 +1,157 @@
+package com.tenforce.semtech.SPARQLParser.SPARQL;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the SPARQLParseService parses a query once, however many threads ask for it at the same time.
+ */
+public class SPARQLParseServiceTest
+{
+    // the number of threads that ask for the same query at the same time
+    private static final int CALLERS = 16;
+
+    @After
+    public void removeListener()
+    {
+        SPARQLQuery.setParseListener(null);
+    }
+
+    @Test
+    public void parsesOnceForConcurrentCallers() throws Exception
+    {
+        SPARQLParseService service = new SPARQLParseService();
+        AtomicInteger parsed = holdParses(service);
+        List<SPARQLQuery> queries = callConcurrently(service, SPARQLQueryCacheTest.query(1), false);
+
+        assertEquals(1, parsed.get());
+        assertEquals(1, service.getParseCount());
+        assertEquals(CALLERS - 1, service.getCoalescedCount());
+
+        // every caller gets a copy of its own
+        for(int i = 1; i < queries.size(); ++i)
+        {
+            assertNotSame(queries.get(0), queries.get(i));
+            assertFalse(queries.get(i).isFrozen());
+            assertEquals(queries.get(0).toString(), queries.get(i).toString());
+        }
+    }
+
+    @Test
+    public void parsesOnceWithACache() throws Exception
+    {
+        SPARQLQueryCache cache = new SPARQLQueryCache(10);
+        SPARQLParseService service = new SPARQLParseService(cache);
+        AtomicInteger parsed = holdParses(service);
+        String query = SPARQLQueryCacheTest.query(2);
+        List<SPARQLQuery> queries = callConcurrently(service, query, true);
+
+        assertEquals(1, parsed.get());
+        assertEquals(1, service.getParseCount());
+        assertEquals(CALLERS - 1, service.getCoalescedCount());
+        for(SPARQLQuery shared : queries)
+            assertSame(queries.get(0), shared);
+        assertTrue(queries.get(0).isFrozen());
+        assertSame(queries.get(0), cache.getSharedIfPresent(query));
+
+        // the cached query is not parsed again
+        service.parse(query);
+        assertEquals(1, parsed.get());
+        assertEquals(1, service.getParseCount());
+    }
+
+    @Test
+    public void everyCallerGetsTheParseError() throws Exception
+    {
+        SPARQLParseService service = new SPARQLParseService();
+        try
+        {
+            callConcurrently(service, "FOO BAR", false);
+            fail("an invalid query was parsed");
+        }
+        catch(ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof InvalidSPARQLException);
+        }
+    }
+
+    /**
+     * holds up every parse until all other callers wait for it, so they all ask while the query is in flight
+     *
+     * @param service the service
+     * @return the number of queries that were parsed
+     */
+    private static AtomicInteger holdParses(final SPARQLParseService service)
+    {
+        final AtomicInteger parsed = new AtomicInteger();
+        SPARQLQuery.setParseListener(new ParseListener() {
+            public void queryParsed(SPARQLQuery query, ParseStatistics statistics)
+            {
+                parsed.incrementAndGet();
+                // a broken service fails the test instead of hanging it
+                long deadline = System.currentTimeMillis() + 10000;
+                while(service.getCoalescedCount() < CALLERS - 1 && System.currentTimeMillis() < deadline)
+                    Thread.yield();
+            }
+        });
+        return parsed;
+    }
+
+    /**
+     * lets CALLERS threads ask the service for the same query at the same time
+     *
+     * @param service the service
+     * @param query the query
+     * @param shared true to call parseShared instead of parse
+     * @return the query every thread got, in the order in which the threads were started
+     * @throws ExecutionException with the exception of the first thread that failed as its cause
+     */
+    private static List<SPARQLQuery> callConcurrently(final SPARQLParseService service, final String query,
+                                                      final boolean shared) throws Exception
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+        try
+        {
+            List<Future<SPARQLQuery>> results = new ArrayList<Future<SPARQLQuery>>();
+            for(int i = 0; i < CALLERS; ++i)
+            {
+                results.add(executor.submit(new Callable<SPARQLQuery>() {
+                    public SPARQLQuery call() throws Exception
+                    {
+                        start.await();
+                        return shared ? service.parseShared(query) : service.parse(query);
+                    }
+                }));
+            }
+            start.countDown();
+
+            List<SPARQLQuery> queries = new ArrayList<SPARQLQuery>();
+            for(Future<SPARQLQuery> result : results)
+                queries.add(result.get(60, TimeUnit.SECONDS));
+            return queries;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.tenforce.semtech.SPARQLParser.SPARQL;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the counters of the SPARQLQueryCache, that it stays within its size and which queries it evicts.
+ */
+public class SPARQLQueryCacheTest
+{
+    @Test
+    public void countsHitsAndMisses() throws InvalidSPARQLException
+    {
+        SPARQLQueryCache cache = new SPARQLQueryCache(10);
+        String query = query(0);
+
+        assertNull(cache.getIfPresent(query));
+        SPARQLQuery first = cache.get(query);
+        SPARQLQuery second = cache.get(query);
+        SPARQLQuery shared = cache.getShared(query);
+
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(0, cache.getEvictionCount());
+        assertEquals(1, cache.size());
+
+        // get gives every caller a copy of its own, getShared the frozen query itself
+        assertNotSame(first, second);
+        assertFalse(first.isFrozen());
+        assertTrue(shared.isFrozen());
+        assertSame(shared, cache.getSharedIfPresent(query));
+        assertEquals(shared.toString(), first.toString());
+        assertEquals(3, cache.getHitCount());
+    }
+
+    @Test
+    public void copiesDoNotChangeTheCachedQuery() throws InvalidSPARQLException
+    {
+        SPARQLQueryCache cache = new SPARQLQueryCache(10);
+        String query = "SELECT ?s WHERE { GRAPH <http://g1> { ?s ?p ?o } }";
+
+        SPARQLQuery copy = cache.get(query);
+        copy.replaceGraphStatement("http://g1", "http://g2");
+
+        assertTrue(copy.getGraphs().contains("http://g2"));
+        assertTrue(cache.getShared(query).getGraphs().contains("http://g1"));
+        assertFalse(cache.get(query).getGraphs().contains("http://g2"));
+    }
+
+    @Test
+    public void invalidQueriesAreNotCached()
+    {
+        SPARQLQueryCache cache = new SPARQLQueryCache(10);
+        try
+        {
+            cache.get("FOO BAR");
+            fail("an invalid query was parsed");
+        }
+        catch(InvalidSPARQLException e)
+        {
+            // expected
+        }
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesAnEmptyCache()
+    {
+        new SPARQLQueryCache(0);
+    }
+
+    @Test
+    public void evictsToStayWithinItsSize() throws InvalidSPARQLException
+    {
+        SPARQLQueryCache cache = new SPARQLQueryCache(4);
+        for(int i = 0; i < 20; ++i)
+        {
+            cache.get(query(i));
+            assertTrue(cache.size() <= 4);
+        }
+        assertEquals(20, cache.getMissCount());
+        assertEquals(16, cache.getEvictionCount());
+        assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void evictsQueriesThatAreUsedLess() throws InvalidSPARQLException
+    {
+        SPARQLQueryCache cache = new SPARQLQueryCache(8);
+        String hot = query(0);
+        for(int i = 0; i < 10; ++i)
+            cache.get(hot);
+
+        // a burst of queries that are used once evicts those queries, not the one that is used a lot
+        for(int i = 1; i < 100; ++i)
+        {
+            cache.get(query(i));
+            assertNotNull(query(i), cache.getSharedIfPresent(hot));
+        }
+        assertEquals(8, cache.size());
+    }
+
+    @Test
+    public void evictsUnderConcurrency() throws Exception
+    {
+        final int threads = 8;
+        final int queriesPerThread = 200;
+        final SPARQLQueryCache cache = new SPARQLQueryCache(50);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for(int t = 0; t < threads; ++t)
+            {
+                final int thread = t;
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception
+                    {
+                        start.await();
+                        for(int round = 0; round < 3; ++round)
+                        {
+                            for(int i = 0; i < queriesPerThread; ++i)
+                            {
+                                // every thread has queries of its own, so every miss adds a query
+                                SPARQLQuery query = cache.get(query(thread * queriesPerThread + i));
+                                assertNotNull(query);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for(Future<Void> result : results)
+                result.get(60, TimeUnit.SECONDS);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        assertTrue(cache.size() <= cache.getMaximumSize());
+        assertEquals(3L * threads * queriesPerThread, cache.getHitCount() + cache.getMissCount());
+        assertEquals(cache.getMissCount() - cache.getEvictionCount(), cache.size());
+        assertTrue(cache.getEvictionCount() >= threads * queriesPerThread - cache.getMaximumSize());
+    }
+
+    /**
+     * @param i a number
+     * @return a valid query that is different for every number
+     */
+    static String query(int i)
+    {
+        return "SELECT ?s WHERE { GRAPH <http://graph/" + i + "> { ?s ?p " + i + " } }";
+    }
+}
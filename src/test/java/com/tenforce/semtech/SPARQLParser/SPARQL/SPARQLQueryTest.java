@@ -0,0 +1,255 @@
+package com.tenforce.semtech.SPARQLParser.SPARQL;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that every way to parse a query gives the same query, and that a query of which graphs were swapped
+ * is rewritten to the query it renders.
+ */
+public class SPARQLQueryTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * A way to parse a query
+     */
+    private interface Parser
+    {
+        SPARQLQuery parse(String query) throws IOException, InvalidSPARQLException;
+    }
+
+    @Test
+    public void parseFromReader() throws IOException
+    {
+        checkParser(new Parser() {
+            public SPARQLQuery parse(String query) throws IOException, InvalidSPARQLException
+            {
+                return SPARQLQuery.parse(new StringReader(query));
+            }
+        });
+    }
+
+    @Test
+    public void parseFromInputStream() throws IOException
+    {
+        checkParser(new Parser() {
+            public SPARQLQuery parse(String query) throws IOException, InvalidSPARQLException
+            {
+                return SPARQLQuery.parse(new ByteArrayInputStream(query.getBytes(StandardCharsets.UTF_8)));
+            }
+        });
+    }
+
+    @Test
+    public void parseFromBytes() throws IOException
+    {
+        checkParser(new Parser() {
+            public SPARQLQuery parse(String query) throws IOException, InvalidSPARQLException
+            {
+                return SPARQLQuery.parse(query.getBytes(StandardCharsets.UTF_8));
+            }
+        });
+    }
+
+    @Test
+    public void parseFromByteBuffer() throws IOException
+    {
+        checkParser(new Parser() {
+            public SPARQLQuery parse(String query) throws IOException, InvalidSPARQLException
+            {
+                // the query is in the middle of the buffer, only the bytes between position and limit are parsed
+                byte [] utf8 = query.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(utf8.length + 8);
+                buffer.put("garbage ".getBytes(StandardCharsets.UTF_8));
+                buffer.put(utf8);
+                buffer.flip();
+                buffer.position(8);
+                SPARQLQuery parsed = SPARQLQuery.parse(buffer);
+                assertEquals(8, buffer.position());
+                return parsed;
+            }
+        });
+    }
+
+    @Test
+    public void parseFromPath() throws IOException
+    {
+        checkParser(new Parser() {
+            public SPARQLQuery parse(String query) throws IOException, InvalidSPARQLException
+            {
+                File file = folder.newFile();
+                Files.write(file.toPath(), query.getBytes(StandardCharsets.UTF_8));
+                return SPARQLQuery.parse(file.toPath());
+            }
+        });
+    }
+
+    @Test
+    public void rewrittenQueryIsTheSwappedQuery() throws IOException, InvalidSPARQLException
+    {
+        int swaps = 0;
+        for(String text : validQueries())
+        {
+            for(String graph : new SPARQLQuery(text).getGraphs())
+            {
+                SPARQLQuery query = new SPARQLQuery(text);
+                query.replaceGraphStatement(graph, "http://swapped/" + swaps);
+                checkRewritten(text, query);
+
+                SPARQLQuery clone = new SPARQLQuery(text).clone();
+                clone.replaceGraphStatement(graph, "http://swapped/" + swaps);
+                checkRewritten(text, clone);
+                assertEquals(text, query.toString(), clone.toString());
+
+                SPARQLQuery bytes = SPARQLQuery.parse(text.getBytes(StandardCharsets.UTF_8));
+                bytes.replaceGraphStatement(graph, "http://swapped/" + swaps);
+                checkRewritten(text, bytes);
+                assertEquals(text, query.getRewrittenQuery(), bytes.getRewrittenQuery());
+                ++swaps;
+            }
+
+            Map<String, String> graphs = new HashMap<String, String>();
+            for(String graph : new SPARQLQuery(text).getGraphs())
+                graphs.put(graph, graph + "/remapped");
+            SPARQLQuery remapped = new SPARQLQuery(text);
+            remapped.remapGraphs(graphs);
+            checkRewritten(text, remapped);
+
+            SPARQLQuery frozen = new SPARQLQuery(text).freeze().withRemappedGraphs(graphs, new HashSet<String>());
+            checkRewritten(text, frozen);
+            assertEquals(text, remapped.toString(), frozen.toString());
+        }
+        assertTrue(swaps > 10);
+    }
+
+    @Test
+    public void rewrittenQueryKeepsTheOriginalText() throws InvalidSPARQLException
+    {
+        String text = "# which graphs\n" +
+                "SELECT ?s   WHERE {\n" +
+                "  GRAPH <http://g1> { ?s ?p ?o } # the first\n" +
+                "  GRAPH <http://g2> {?s ?p \"<http://g1>\"}\n" +
+                "}";
+        SPARQLQuery query = new SPARQLQuery(text);
+        query.replaceGraphStatement("http://g1", "http://x");
+
+        assertEquals(text.replace("GRAPH <http://g1>", "GRAPH <http://x>"), query.getRewrittenQuery());
+        assertEquals(query.getRewrittenQuery(),
+                StandardCharsets.UTF_8.decode(query.toRewrittenUtf8()).toString());
+    }
+
+    @Test
+    public void rewrittenQueryIsRenderedOnceMoreThanAGraphChanged() throws InvalidSPARQLException
+    {
+        SPARQLQuery query = new SPARQLQuery("SELECT ?s WHERE { GRAPH <http://g1> { ?s ?p ?o } }");
+        query.replaceGraphStatement("http://g1", "http://x");
+        query.getStatements().remove(0);
+
+        assertEquals(query.toString(), query.getRewrittenQuery());
+    }
+
+    /**
+     * parses every query of the corpus with the parser and with the constructor, and checks that they give the
+     * same query, or fail in the same way
+     *
+     * @param parser the parser
+     * @throws IOException if the parser cannot read the query
+     */
+    private static void checkParser(Parser parser) throws IOException
+    {
+        for(String text : Corpus.queriesWithLineEndings())
+        {
+            SPARQLQuery expected;
+            try
+            {
+                expected = new SPARQLQuery(text);
+            }
+            catch(Exception e)
+            {
+                try
+                {
+                    parser.parse(text);
+                    fail(text + " can be parsed from a string");
+                }
+                catch(Exception streamed)
+                {
+                    assertEquals(text, e.getClass(), streamed.getClass());
+                    assertEquals(text, e.getMessage(), streamed.getMessage());
+                }
+                continue;
+            }
+
+            SPARQLQuery parsed;
+            try
+            {
+                parsed = parser.parse(text);
+            }
+            catch(InvalidSPARQLException e)
+            {
+                throw new AssertionError(text + " cannot be parsed: " + e.getMessage());
+            }
+            assertEquals(text, expected.getType(), parsed.getType());
+            assertEquals(text, expected.getGraph(), parsed.getGraph());
+            assertEquals(text, expected.getPrefixes(), parsed.getPrefixes());
+            assertEquals(text, expected.getUnknowns(), parsed.getUnknowns());
+            assertEquals(text, expected.getGraphs(), parsed.getGraphs());
+            assertEquals(text, expected.toString(), parsed.toString());
+        }
+    }
+
+    /**
+     * checks that the rewritten text of a query parses to the query
+     *
+     * @param text the text the query was parsed from
+     * @param query the query, of which only graphs changed
+     * @throws InvalidSPARQLException if the rewritten text is not valid
+     */
+    private static void checkRewritten(String text, SPARQLQuery query) throws InvalidSPARQLException
+    {
+        String rewritten = query.getRewrittenQuery();
+        assertEquals(text, query.toString(), new SPARQLQuery(rewritten).toString());
+        assertEquals(text, rewritten, StandardCharsets.UTF_8.decode(query.toRewrittenUtf8()).toString());
+    }
+
+    /**
+     * @return the queries of the corpus that are valid
+     * @throws IOException if the corpus cannot be read
+     */
+    private static List<String> validQueries() throws IOException
+    {
+        List<String> valid = new ArrayList<String>();
+        for(String text : Corpus.queriesWithLineEndings())
+        {
+            try
+            {
+                new SPARQLQuery(text);
+                valid.add(text);
+            }
+            catch(Exception e)
+            {
+                // invalid queries are left out
+            }
+        }
+        return valid;
+    }
+}
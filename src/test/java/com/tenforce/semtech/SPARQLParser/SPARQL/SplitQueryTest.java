@@ -0,0 +1,183 @@
+package com.tenforce.semtech.SPARQLParser.SPARQL;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the SPARQLLexer, and SplitQuery on top of it, split every query of the corpus in the same tokens
+ * as the splitter SplitQuery had before it used the lexer.
+ */
+public class SplitQueryTest
+{
+    @Test
+    public void lexerSplitsLikeTheBaseline() throws IOException
+    {
+        for(String query : Corpus.queriesWithLineEndings())
+        {
+            List<String> tokens = new ArrayList<String>();
+            SPARQLLexer lexer = new SPARQLLexer(query);
+            while(lexer.nextToken())
+                tokens.add(query.substring(lexer.getTokenStart(), lexer.getTokenEnd()));
+
+            assertEquals(query, baselineSplit(query), tokens);
+        }
+    }
+
+    @Test
+    public void lexerFindsKeywordsIgnoringCase() throws IOException
+    {
+        for(String query : Corpus.queriesWithLineEndings())
+        {
+            SPARQLLexer lexer = new SPARQLLexer(query);
+            while(lexer.nextToken())
+            {
+                if(lexer.getTokenKind() != SPARQLLexer.TOKEN_WORD)
+                {
+                    continue;
+                }
+                String token = query.substring(lexer.getTokenStart(), lexer.getTokenEnd());
+                assertEquals(token, SPARQLLexer.Keyword.lookup(token.toUpperCase()), lexer.getTokenKeyword());
+            }
+        }
+    }
+
+    @Test
+    public void splitQuerySplitsLikeTheBaseline() throws IOException
+    {
+        for(String query : Corpus.queriesWithLineEndings())
+            assertEquals(query, baselineSplit(query), tokens(new SplitQuery(query)));
+    }
+
+    @Test
+    public void streamedSplitQuerySplitsLikeTheBaseline() throws IOException
+    {
+        for(String query : Corpus.queriesWithLineEndings())
+        {
+            List<String> expected = baselineSplit(query);
+            assertEquals(query, expected, tokens(new SplitQuery(new StringReader(query))));
+            byte [] utf8 = query.getBytes(StandardCharsets.UTF_8);
+            assertEquals(query, expected, tokens(new SplitQuery(ByteBuffer.wrap(utf8))));
+        }
+    }
+
+    /**
+     * @param splitQuery a split query
+     * @return all tokens of the query, newlines included
+     */
+    private static List<String> tokens(SplitQuery splitQuery)
+    {
+        List<String> tokens = new ArrayList<String>();
+        SplitQuery.SplitQueryIterator iterator = (SplitQuery.SplitQueryIterator) splitQuery.iterator();
+        while(iterator.hasNextIncludingNewLines())
+            tokens.add(iterator.nextIncludingNewLines());
+        return tokens;
+    }
+
+    /**
+     * The splitter of version 0.0.1 of SplitQuery, as a reference, without its 2 bugs: it looked at the bytes of
+     * the query instead of its characters, which split characters that are not ASCII, and it did not empty its
+     * buffer at a '#', which glued the token in front of a comment to the token after it.
+     *
+     * @param query the query
+     * @return the tokens of the query
+     */
+    private static List<String> baselineSplit(String query)
+    {
+        List<String> splitQuery = new ArrayList<String>();
+        StringBuilder currentBuffer = new StringBuilder();
+        boolean inString = false;
+        boolean inComments = false;
+        boolean inURI = false;
+
+        for(char c : query.toCharArray())
+        {
+            if(!inString && !inComments && !inURI)
+            {
+                if(c == ' ' || c == '\t')
+                {
+                    add(splitQuery, currentBuffer);
+                    continue;
+                }
+                if(c == '\n' || c == '\r' || c == '{' || c == '}')
+                {
+                    add(splitQuery, currentBuffer);
+                    splitQuery.add("" + c);
+                    continue;
+                }
+                if(c == '\"')
+                {
+                    add(splitQuery, currentBuffer);
+                    currentBuffer.append('\"');
+                    inString = true;
+                    continue;
+                }
+                if(c == '<')
+                {
+                    add(splitQuery, currentBuffer);
+                    currentBuffer.append('<');
+                    inURI = true;
+                    continue;
+                }
+                if(c == '#')
+                {
+                    add(splitQuery, currentBuffer);
+                    inComments = true;
+                    continue;
+                }
+            }
+            else
+            {
+                if(inString && c == '\"')
+                {
+                    currentBuffer.append('\"');
+                    add(splitQuery, currentBuffer);
+                    inString = false;
+                    continue;
+                }
+                if(inURI && c == '>')
+                {
+                    currentBuffer.append('>');
+                    add(splitQuery, currentBuffer);
+                    inURI = false;
+                    continue;
+                }
+                if(inComments)
+                {
+                    if(c == '\n' || c == '\r')
+                    {
+                        inComments = false;
+                    }
+                    continue;
+                }
+            }
+
+            currentBuffer.append(c);
+        }
+        add(splitQuery, currentBuffer);
+        return splitQuery;
+    }
+
+    /**
+     * adds the trimmed buffer to the tokens if it is not empty, and empties the buffer
+     *
+     * @param tokens the tokens
+     * @param buffer the buffer
+     */
+    private static void add(List<String> tokens, StringBuilder buffer)
+    {
+        String token = buffer.toString().trim();
+        if(token.length() > 0)
+        {
+            tokens.add(token);
+        }
+        buffer.setLength(0);
+    }
+}